@@ -18,19 +18,38 @@
  */
 package org.amelia.dsl.lib;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -38,6 +57,7 @@ import org.amelia.dsl.lib.descriptors.AssetBundle;
 import org.amelia.dsl.lib.descriptors.CommandDescriptor;
 import org.amelia.dsl.lib.descriptors.Host;
 import org.amelia.dsl.lib.util.Configuration;
+import org.amelia.dsl.lib.util.ExecutionHistory;
 import org.amelia.dsl.lib.util.Log;
 import org.amelia.dsl.lib.util.Strings;
 import org.amelia.dsl.lib.util.Threads;
@@ -52,81 +72,97 @@ import com.jcraft.jsch.JSchException;
 public class DescriptorGraph
 		extends HashMap<CommandDescriptor, List<CommandDescriptor>> {
 
-	public class DependencyThread extends Thread
-			implements Observer, Comparable<DependencyThread> {
+	public class DependencyTask
+			implements Runnable, Comparable<DependencyTask> {
 		
 		private final UUID internalId;
 		private final CommandDescriptor descriptor;
 		private final SSHHandler handler;
 		private final ScheduledTask<?> command;
-		private final List<CommandDescriptor> dependencies;
-		private final CountDownLatch doneSignal;
-		private final CountDownLatch mainDoneSignal;
+		private final long priority;
+		private final List<DependencyTask> dependants;
+		private final AtomicInteger pendingDependencies;
+		private final AtomicBoolean dispatched;
+		private final AtomicReference<Throwable> failedDependency;
+		private final CompletableFuture<Void> future;
+		private volatile Throwable failure;
 		private volatile boolean shutdown;
 
 		/**
-		 * "dependencies" contains the descriptors on which this thread depends,
-		 * while "actualDependencies" corresponds to the number of tasks
-		 * executing those descriptors.
+		 * "actualDependencies" corresponds to the number of tasks executing the
+		 * descriptors on which this task depends. Tasks with higher
+		 * "priority" are dispatched first.
 		 */
-		public DependencyThread(final CommandDescriptor descriptor,
+		public DependencyTask(final CommandDescriptor descriptor,
 				final SSHHandler handler, final ScheduledTask<?> command,
-				final List<CommandDescriptor> dependencies,
-				final int actualDependencies, final CountDownLatch doneSignal) {
+				final int actualDependencies, final long priority) {
 			this.internalId = UUID.randomUUID();
 			this.descriptor = descriptor;
 			this.handler = handler;
 			this.command = command;
-			this.dependencies = dependencies;
-			this.doneSignal = new CountDownLatch(actualDependencies);
-			this.mainDoneSignal = doneSignal;
+			this.priority = priority;
+			this.dependants = new ArrayList<DependencyTask>();
+			this.pendingDependencies = new AtomicInteger(actualDependencies);
+			this.dispatched = new AtomicBoolean(false);
+			this.failedDependency = new AtomicReference<Throwable>();
+			this.future = new CompletableFuture<Void>();
 			this.shutdown = false;
-
-			// Make this thread observe the corresponding dependencies
-			for (CommandDescriptor dependency : this.dependencies) {
-				dependency.addObserver(this);
-			}
 		}
 
 		public void run() {
+			Log.setContext(subsystem);
 			try {
-				this.doneSignal.await();
-				if (!this.shutdown) {
-					if (Boolean.valueOf(System.getProperty("amelia.debug_mode"))) {
-						if (this.descriptor.isExecution()) {
-							Log.debug(this.handler.host(), "Composite awaiting execution: "
-									+ getCompositeName(this.descriptor.toCommandString()));
-						} else {
-							Log.debug(this.handler.host(), "Command awaiting execution: "
-									+ this.descriptor.toCommandString());
-						}
+				if (this.shutdown) {
+					skip(new CancellationException("Deployment shutting down"));
+					return;
+				} else if (this.failedDependency.get() != null) {
+					skip(this.failedDependency.get());
+					return;
+				}
+				if (Boolean.valueOf(System.getProperty("amelia.debug_mode"))) {
+					if (this.descriptor.isExecution()) {
+						Log.debug(this.handler.host(), "Composite awaiting execution: "
+								+ getCompositeName(this.descriptor.toCommandString()));
+					} else {
+						Log.debug(this.handler.host(), "Command awaiting execution: "
+								+ this.descriptor.toCommandString());
 					}
-					if (this.descriptor.shouldExecute())
-						this.handler.executeCommand(this.descriptor, this.command);
-
-					// Notify when command is not executed
-					if (!this.descriptor.shouldExecute())
-						Log.info(
-							this.handler.host(),
-							String.format("not executed: %s", this.descriptor.toCommandString())
-						);
-					// prevent dependencies from missing the notification
-					synchronized(this.descriptor) {
-						if (this.descriptor.isExecution()) {
-							// FIXME: Temporary workaround to avoid service-not-bound
-							// errors (RMI) in FraSCAti executions
-							Thread.sleep(2000);
-						}
-						this.descriptor.done(this.handler.host());
-						this.descriptor.notifyObservers();
+				}
+				if (this.descriptor.shouldExecute()) {
+					long start = System.currentTimeMillis();
+					this.handler.executeCommand(this.descriptor,
+							this.command, this.priority);
+					if (this.shutdown) {
+						// The command was canceled
+						skip(new CancellationException("Deployment shutting down"));
+						return;
 					}
+					// Dependants are released once the service is ready
+					this.descriptor.awaitReadiness(this.handler.host());
+					history.record(this.descriptor,
+							System.currentTimeMillis() - start);
+				} else {
+					// Notify when command is not executed
+					Log.info(
+						this.handler.host(),
+						String.format("not executed: %s", this.descriptor.toCommandString())
+					);
 				}
+				this.descriptor.done(this.handler.host());
+				complete(null);
 			} catch (Exception e) {
+				if (this.shutdown || shuttingDown) {
+					// The command was interrupted while shutting down
+					skip(e);
+					return;
+				}
 				logger.error(e);
-				throw new RuntimeException(e.getMessage(), e.getCause());
-			} finally {
-				// Notify to main thread
-				this.mainDoneSignal.countDown();
+				this.failure = e;
+				failedTasks.add(this);
+				complete(e);
+				// Under the "graph" policy, abort the whole deployment
+				if (!isSubtreeFailurePolicy())
+					throw new RuntimeException(e.getMessage(), e.getCause());
 			}
 		}
 		
@@ -140,8 +176,56 @@ public class DescriptorGraph
 			return command.split(" ")[0];
 		}
 
-		public synchronized void update(Observable o, Object arg) {
-			this.doneSignal.countDown();
+		/**
+		 * Completes this task without executing its command, propagating the
+		 * given cause to the dependants.
+		 */
+		private void skip(Throwable cause) {
+			skippedTasks.incrementAndGet();
+			if (!this.shutdown && Boolean.valueOf(System.getProperty("amelia.debug_mode")))
+				Log.debug(this.handler.host(), "Command skipped: "
+						+ this.descriptor.toCommandString());
+			complete(cause);
+		}
+
+		/**
+		 * Completes the future of this task (exceptionally if there is a
+		 * cause) and releases its dependants.
+		 */
+		private void complete(Throwable cause) {
+			boolean completed = cause == null ? this.future.complete(null)
+					: this.future.completeExceptionally(cause);
+			if (completed) {
+				for (DependencyTask dependant : this.dependants)
+					dependant.dependencyCompleted(cause);
+			}
+		}
+
+		/**
+		 * Invoked each time a task on which this task depends is completed.
+		 * The task is dispatched after the last of them.
+		 */
+		private void dependencyCompleted(Throwable cause) {
+			if (cause != null)
+				this.failedDependency.compareAndSet(null, cause);
+			if (this.pendingDependencies.decrementAndGet() == 0)
+				dispatch();
+		}
+
+		/**
+		 * Schedules this task in the worker pool. A task is dispatched only
+		 * once, either because all of its dependencies are completed or
+		 * because the deployment is shutting down.
+		 */
+		public void dispatch() {
+			if (this.dispatched.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					// The pool is no longer accepting tasks
+					skip(new CancellationException("Deployment shutting down"));
+				}
+			}
 		}
 		
 		public boolean equals(Object obj) {
@@ -149,19 +233,29 @@ public class DescriptorGraph
 				return true;
 			else if ((null == obj) || (obj.getClass() != this.getClass()))
 				return false;
-			return this.compareTo((DependencyThread) obj) == 0;
+			return this.compareTo((DependencyTask) obj) == 0;
 		}
 
-		public int compareTo(DependencyThread o) {
+		/**
+		 * Tasks on the critical path come first
+		 */
+		public int compareTo(DependencyTask o) {
+			if (this.priority != o.priority)
+				return this.priority > o.priority ? -1 : 1;
 			return this.internalId.compareTo(o.internalId);
 		}
 
+		public boolean isReady() {
+			return this.pendingDependencies.get() <= 0;
+		}
+
+		public CompletableFuture<Void> future() {
+			return this.future;
+		}
+
 		public void shutdown() {
 			this.shutdown = true;
-			this.descriptor.deleteObserver(this);
-			this.handler.shutdownTaskQueue();
-			while (this.doneSignal.getCount() > 0)
-				this.doneSignal.countDown();
+			dispatch();
 		}
 	}
 
@@ -178,10 +272,35 @@ public class DescriptorGraph
 
 	private final Set<Host> ftpHosts;
 
-	private final TreeSet<DependencyThread> threads;
+	private final List<DependencyTask> dependencyTasks;
+
+	/**
+	 * The hosts whose SSH session was acquired from the session cache
+	 */
+	private final Set<Host> acquiredHosts;
 	
 	private final Configuration configuration;
 
+	/**
+	 * The bounded pool executing the tasks whose dependencies are done
+	 */
+	private volatile ThreadPoolExecutor executor;
+
+	/**
+	 * The tasks whose command failed
+	 */
+	private final Queue<DependencyTask> failedTasks;
+
+	/**
+	 * The number of tasks skipped due to a failure or shutdown
+	 */
+	private final AtomicInteger skippedTasks;
+
+	/**
+	 * The recorded durations of the commands, used to weight them
+	 */
+	private final ExecutionHistory history;
+
 	/**
 	 * The variable indicating whether the current deployment is being shutting
 	 * down
@@ -200,7 +319,13 @@ public class DescriptorGraph
 		this.tasks = new HashMap<CommandDescriptor, List<ScheduledTask<?>>>();
 		this.sshHosts = new HashSet<Host>();
 		this.ftpHosts = new HashSet<Host>();
-		this.threads = new TreeSet<DependencyThread>();
+		this.dependencyTasks = new ArrayList<DependencyTask>();
+		this.acquiredHosts = Collections.newSetFromMap(
+				new ConcurrentHashMap<Host, Boolean>());
+		this.failedTasks = new ConcurrentLinkedQueue<DependencyTask>();
+		this.skippedTasks = new AtomicInteger();
+		this.history = new ExecutionHistory(new File("sessions" + File.separator
+				+ subsystem + File.separator + "durations.properties"));
 		this.shuttingDown = false;
 	}
 	
@@ -222,7 +347,7 @@ public class DescriptorGraph
 				continue;
 			}
 			// The only known use of the FTP connection is the AssetBundle
-			if (descriptor instanceof AssetBundle)
+			if (descriptor instanceof AssetBundle && !AssetBundle.usesSftp())
 				this.ftpHosts.addAll(descriptor.hosts());
 			else
 				this.sshHosts.addAll(descriptor.hosts());
@@ -272,28 +397,92 @@ public class DescriptorGraph
 			stopAllExecutions();
 		
 		int totalTasks = countTotalTasks();
-		CountDownLatch doneSignal = new CountDownLatch(totalTasks);
+		boolean criticalPathFirst = "critical_path"
+				.equals(System.getProperty("amelia.scheduling_policy"));
+		Map<CommandDescriptor, Long> priorities = criticalPathFirst
+				? criticalPathLengths() : new HashMap<CommandDescriptor, Long>();
 		
+		Map<CommandDescriptor, List<DependencyTask>> tasksPerDescriptor = 
+				new HashMap<CommandDescriptor, List<DependencyTask>>();
 		for (CommandDescriptor e : keySet()) {
-			List<CommandDescriptor> dependencies = get(e);
-			List<ScheduledTask<?>> tasks = this.tasks.get(e);
-			int deps = countDependencyThreads(dependencies);
-			for (ScheduledTask<?> task : tasks) {
-				DependencyThread thread = new DependencyThread(e,
-						task.host().ssh(), task, dependencies, deps, doneSignal);
-				thread.setUncaughtExceptionHandler(
-						Threads.exceptionHandler());
-				threads.add(thread);
+			List<DependencyTask> descriptorTasks = new ArrayList<DependencyTask>();
+			int deps = countDependencyTasks(get(e));
+			long priority = criticalPathFirst ? priorities.get(e) : 0;
+			for (ScheduledTask<?> task : this.tasks.get(e)) {
+				DependencyTask dependencyTask = new DependencyTask(e,
+						task.host().ssh(), task, deps, priority);
+				descriptorTasks.add(dependencyTask);
+				this.dependencyTasks.add(dependencyTask);
 			}
+			tasksPerDescriptor.put(e, descriptorTasks);
 		}
-		Log.info("Executing commands (" + totalTasks + ")");
-		for (DependencyThread thread : this.threads) {
-			thread.start();
+		// Each task releases the tasks depending on it
+		for (CommandDescriptor e : keySet())
+			for (CommandDescriptor dependency : get(e))
+				for (DependencyTask dependencyTask : tasksPerDescriptor.get(dependency))
+					dependencyTask.dependants.addAll(tasksPerDescriptor.get(e));
+		// Ready tasks wait in priority order when all workers are busy
+		BlockingQueue<Runnable> readyQueue = criticalPathFirst
+				? new PriorityBlockingQueue<Runnable>()
+				: new LinkedBlockingQueue<Runnable>();
+		int parallelism = parallelism(totalTasks);
+		this.executor = new ThreadPoolExecutor(parallelism, parallelism, 0L,
+				TimeUnit.MILLISECONDS, readyQueue,
+				Threads.threadFactory("amelia-" + this.subsystem));
+		Log.info("Executing commands (" + totalTasks + ") using "
+				+ parallelism + " worker" + (parallelism == 1 ? "" : "s"));
+		// Only tasks without pending dependencies are ready to run
+		for (DependencyTask dependencyTask : this.dependencyTasks) {
+			if (dependencyTask.isReady())
+				dependencyTask.dispatch();
+		}
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[totalTasks];
+		for (int i = 0; i < totalTasks; i++)
+			futures[i] = this.dependencyTasks.get(i).future();
+		try {
+			CompletableFuture.allOf(futures).get();
+		} catch (ExecutionException | CancellationException e) {
+			// Failed tasks are reported by the worker executing them
+		}
+		this.executor.shutdown();
+		this.history.save();
+		if (!this.failedTasks.isEmpty()) {
+			printFailureReport();
+			// Only the failed subtrees were skipped, now fail the subsystem
+			if (isSubtreeFailurePolicy())
+				throw new RuntimeException(this.failedTasks.size()
+						+ " command(s) failed in subsystem " + this.subsystem);
 		}
-		doneSignal.await();
 		if(shutdownAfterDeployment)
 			shutdown(stopExecutionsWhenFinish);
 	}
+
+	/**
+	 * Property {@code amelia.failure_policy} decides what to do when a
+	 * command fails: either abort the whole deployment ("graph"), or skip the
+	 * commands depending on the failed one only ("subtree"), so that the
+	 * rest of the graph is still executed.
+	 * 
+	 * @return whether the policy is "subtree"
+	 */
+	private boolean isSubtreeFailurePolicy() {
+		return "subtree".equals(System.getProperty("amelia.failure_policy"));
+	}
+
+	private void printFailureReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Failure report (" + this.subsystem + "): "
+				+ this.failedTasks.size() + " failed, "
+				+ this.skippedTasks.get() + " skipped");
+		for (DependencyTask task : this.failedTasks) {
+			String message = task.failure.getMessage() == null
+					? task.failure.getClass().getSimpleName()
+					: task.failure.getMessage();
+			sb.append("\n\t" + task.handler.host() + " "
+					+ task.descriptor.toCommandString() + ": " + message);
+		}
+		Log.error(sb.toString());
+	}
 		
 	private boolean establishConnections() throws InterruptedException {
 		final List<Boolean> connectionOk = new ArrayList<Boolean>();
@@ -327,7 +516,76 @@ public class DescriptorGraph
 		return total;
 	}
 	
-	private int countDependencyThreads(List<CommandDescriptor> dependencies) {
+	/**
+	 * Computes the size of the worker pool. Property
+	 * {@code amelia.parallelism} bounds the number of tasks running at the
+	 * same time; when it is not positive, there is one worker per shell
+	 * channel, which matches the concurrency allowed by the hosts' task
+	 * queues. Virtual
+	 * workers are cheap, so in that case there is no bound by default.
+	 * 
+	 * @param totalTasks
+	 *            The number of tasks to execute
+	 * @return the number of workers
+	 */
+	private int parallelism(int totalTasks) {
+		int parallelism = Integer.parseInt(
+				System.getProperty("amelia.parallelism"));
+		if (parallelism <= 0 && Threads.isVirtualThreadsEnabled())
+			parallelism = totalTasks;
+		else if (parallelism <= 0)
+			parallelism = hosts().size() * Math.max(1, Integer.parseInt(
+					System.getProperty("amelia.channels_per_host")));
+		return Math.max(1, Math.min(parallelism, totalTasks));
+	}
+	
+	/**
+	 * Computes, for each descriptor, the weight of the longest path from the
+	 * descriptor to a sink (i.e., a descriptor without dependants), including
+	 * the descriptor's own weight. Descriptors are processed from the sinks
+	 * up, so the graph is traversed only once.
+	 * 
+	 * @return the critical path length of each descriptor
+	 */
+	Map<CommandDescriptor, Long> criticalPathLengths() {
+		Map<CommandDescriptor, Integer> pendingDependants = 
+				new HashMap<CommandDescriptor, Integer>();
+		Map<CommandDescriptor, Long> longestDependantPath = 
+				new HashMap<CommandDescriptor, Long>();
+		Map<CommandDescriptor, Long> lengths = new HashMap<CommandDescriptor, Long>();
+		for (CommandDescriptor descriptor : keySet()) {
+			pendingDependants.put(descriptor, 0);
+			longestDependantPath.put(descriptor, 0L);
+		}
+		for (CommandDescriptor descriptor : keySet())
+			for (CommandDescriptor dependency : get(descriptor))
+				pendingDependants.put(dependency, pendingDependants.get(dependency) + 1);
+		LinkedList<CommandDescriptor> sinks = new LinkedList<CommandDescriptor>();
+		for (CommandDescriptor descriptor : keySet())
+			if (pendingDependants.get(descriptor) == 0)
+				sinks.add(descriptor);
+		while (!sinks.isEmpty()) {
+			CommandDescriptor descriptor = sinks.removeFirst();
+			long length = this.history.weight(descriptor)
+					+ longestDependantPath.get(descriptor);
+			lengths.put(descriptor, length);
+			for (CommandDescriptor dependency : get(descriptor)) {
+				if (longestDependantPath.get(dependency) < length)
+					longestDependantPath.put(dependency, length);
+				int pending = pendingDependants.get(dependency) - 1;
+				pendingDependants.put(dependency, pending);
+				if (pending == 0)
+					sinks.add(dependency);
+			}
+		}
+		// Descriptors in a cycle are never released, weigh them anyway
+		for (CommandDescriptor descriptor : keySet())
+			if (!lengths.containsKey(descriptor))
+				lengths.put(descriptor, this.history.weight(descriptor));
+		return lengths;
+	}
+	
+	private int countDependencyTasks(List<CommandDescriptor> dependencies) {
 		int n = 0;
 		for (CommandDescriptor e : dependencies)
 			n += this.tasks.get(e).size();
@@ -344,31 +602,32 @@ public class DescriptorGraph
 	private void closeFTPConnections() throws IOException {
 		if (!this.ftpHosts.isEmpty())
 			Log.info("Closing FTP connections");
-		for (Host host : this.ftpHosts) {
-			boolean connected = host.ftp() != null && host.ftp().isConnected();
-			if (host.closeFTPConnection() && connected) {
-				logger.info("FTP connection for " + host
-						+ " was successfully closed");
+		forEachHost(this.ftpHosts, new HostAction() {
+			@Override public void apply(Host host) throws Exception {
+				boolean connected = host.ftp() != null && host.ftp().isConnected();
+				if (host.closeFTPConnection() && connected) {
+					logger.info("FTP connection for " + host
+							+ " was successfully closed");
+				}
 			}
-		}
+		});
 	}
 
 	/**
-	 * Closes the SSH connection with the corresponding hosts.
+	 * Releases the SSH connection with the corresponding hosts. Connections
+	 * are closed by the {@link SessionCache} once no subsystem uses them.
 	 * 
 	 * @throws IOException
 	 *             If I/O error occurs.
 	 */
 	private void closeSSHConnections() throws IOException {
-		if (!this.sshHosts.isEmpty())
-			Log.info("Closing SSH connections");
-		for (Host host : this.sshHosts) {
-			boolean connected = host.ssh() != null && host.ssh().isConnected();
-			if (host.closeSSHConnection() && connected) {
-				logger.info("SSH connection for " + host
-						+ " was successfully closed");
+		final SessionCache sessions = SubsystemGraph.getInstance().sessions();
+		forEachHost(this.acquiredHosts, new HostAction() {
+			@Override public void apply(Host host) throws Exception {
+				sessions.release(host);
 			}
-		}
+		});
+		this.acquiredHosts.clear();
 	}
 	
 	/**
@@ -402,13 +661,17 @@ public class DescriptorGraph
 			throws InterruptedException, SocketException, IOException {
 		if (!this.ftpHosts.isEmpty())
 			Log.info("Establishing FTP connections (" + this.ftpHosts.size() + ")");
-		for (Host host : this.ftpHosts) {
-			boolean connected = host.ftp() != null && host.ftp().isConnected();
-			if (host.openFTPConnection() && !connected) {
-				logger.info("FTP connection for " + host
-						+ " was successfully established");
+		forEachHost(this.ftpHosts, maxConcurrentHandshakes(), new HostAction() {
+			@Override public void apply(Host host) throws Exception {
+				boolean connected = host.ftp() != null && host.ftp().isConnected();
+				long start = System.currentTimeMillis();
+				if (host.openFTPConnection() && !connected) {
+					logger.info("FTP connection for " + host
+							+ " was successfully established in "
+							+ (System.currentTimeMillis() - start) + " ms");
+				}
 			}
-		}
+		});
 	}
 
 	/**
@@ -427,13 +690,34 @@ public class DescriptorGraph
 	private void openSSHConnections() throws Exception {
 		if (!this.sshHosts.isEmpty())
 			Log.info("Establishing SSH connections (" + this.sshHosts.size() + ")");
-		for (Host host : this.sshHosts) {
-			boolean connected = host.ssh() != null && host.ssh().isConnected();
-			if (host.openSSHConnection(this.subsystem) && !connected) {
-				logger.info("SSH connection for " + host
-						+ " was successfully established");
+		final SessionCache sessions = SubsystemGraph.getInstance().sessions();
+		forEachHost(this.sshHosts, maxConcurrentHandshakes(), new HostAction() {
+			@Override public void apply(Host host) throws Exception {
+				boolean connected = host.ssh() != null && host.ssh().isConnected();
+				long start = System.currentTimeMillis();
+				// Sessions opened by other subsystems are reused
+				boolean opened = sessions.acquire(host, subsystem);
+				acquiredHosts.add(host);
+				if (opened && !connected) {
+					logger.info("SSH connection for " + host
+							+ " was successfully established in "
+							+ (System.currentTimeMillis() - start) + " ms");
+				}
 			}
-		}
+		});
+	}
+
+	/**
+	 * Property {@code amelia.max_concurrent_handshakes} bounds the number of
+	 * connections being established at the same time, so that servers
+	 * limiting unauthenticated connections (e.g., sshd's MaxStartups) do not
+	 * drop them.
+	 * 
+	 * @return the maximum number of concurrent handshakes
+	 */
+	private int maxConcurrentHandshakes() {
+		return Math.max(1, Integer.parseInt(
+				System.getProperty("amelia.max_concurrent_handshakes")));
 	}
 	
 	/**
@@ -458,11 +742,11 @@ public class DescriptorGraph
 			shuttingDown = true;
 			Log.info("Shutting down deployment (" + this.subsystem + ")");
 			try {
+				stopCurrentThreads();
 				if (stopAllExecutedComponents)
 					stopAllExecutions();
 				else
 					stopExecutions(compositeNames);
-				stopCurrentThreads();
 				closeFTPConnections();
 				closeSSHConnections();
 			} catch (Exception e) {
@@ -495,9 +779,7 @@ public class DescriptorGraph
 				}
 			}
 		}
-		for (Host host : executionsPerHost.keySet()) {
-			host.stopExecutions(executionsPerHost.get(host));
-		}
+		stopExecutions(executionsPerHost);
 	}
 	
 	public void stopAllExecutions() throws IOException {
@@ -514,16 +796,105 @@ public class DescriptorGraph
 				}
 			}
 		}
-		for (Host host : executionsPerHost.keySet()) {
-			host.stopExecutions(executionsPerHost.get(host));
+		stopExecutions(executionsPerHost);
+	}
+
+	private void stopExecutions(
+			final Map<Host, List<CommandDescriptor>> executionsPerHost)
+					throws IOException {
+		forEachHost(executionsPerHost.keySet(), new HostAction() {
+			@Override public void apply(Host host) throws Exception {
+				host.stopExecutions(executionsPerHost.get(host));
+			}
+		});
+	}
+
+	/**
+	 * Cancels the pending commands and interrupts the running ones in all of
+	 * the hosts
+	 */
+	private void cancelCommands() throws IOException {
+		final SessionCache sessions = SubsystemGraph.getInstance().sessions();
+		forEachHost(this.sshHosts, new HostAction() {
+			@Override public void apply(Host host) throws Exception {
+				// Leave sessions used by other subsystems alone, unless the
+				// whole deployment is aborting
+				boolean shared = sessions.isShared(host)
+						&& !Threads.isAnySubsystemAborting();
+				if (host.ssh() != null && !shared)
+					host.ssh().cancel();
+			}
+		});
+	}
+
+	private interface HostAction {
+		public void apply(Host host) throws Exception;
+	}
+
+	private void forEachHost(final Set<Host> hosts, final HostAction action)
+			throws IOException {
+		forEachHost(hosts, hosts.size(), action);
+	}
+
+	/**
+	 * Applies the given action to each host, in parallel, and waits for all
+	 * of them to finish.
+	 * 
+	 * @param hosts
+	 *            The hosts
+	 * @param parallelism
+	 *            The maximum number of hosts processed at the same time
+	 * @param action
+	 *            The action to apply
+	 * @throws IOException
+	 *             If the action fails for any host. I/O errors are thrown as
+	 *             they are, other errors are wrapped
+	 */
+	private void forEachHost(final Set<Host> hosts, final int parallelism,
+			final HostAction action) throws IOException {
+		if (hosts.isEmpty())
+			return;
+		ExecutorService pool = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(parallelism, hosts.size())),
+				Threads.threadFactory("amelia-" + this.subsystem + "-hosts"));
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (final Host host : hosts) {
+			results.add(pool.submit(new Callable<Void>() {
+				@Override public Void call() throws Exception {
+					action.apply(host);
+					return null;
+				}
+			}));
+		}
+		pool.shutdown();
+		IOException exception = null;
+		for (Future<Void> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				exception = new IOException(e);
+			} catch (ExecutionException e) {
+				logger.error(e.getCause());
+				if (exception == null)
+					exception = e.getCause() instanceof IOException
+							? (IOException) e.getCause()
+							: new IOException(e.getCause().getMessage(), e.getCause());
+			}
 		}
+		if (exception != null)
+			throw exception;
 	}
 
-	public void stopCurrentThreads() throws InterruptedException {
-		for (DependencyThread thread : this.threads)
-			thread.shutdown();
-		for (DependencyThread thread : this.threads)
-			thread.join();
+	public void stopCurrentThreads() throws InterruptedException, IOException {
+		for (DependencyTask dependencyTask : this.dependencyTasks)
+			dependencyTask.shutdown();
+		// Interrupt running commands rather than wait for them
+		cancelCommands();
+		if (this.executor != null) {
+			this.executor.shutdown();
+			this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
 	}
 	
 	public boolean isShuttingDown() {
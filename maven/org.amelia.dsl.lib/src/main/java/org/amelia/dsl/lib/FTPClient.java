@@ -19,9 +19,18 @@
 package org.amelia.dsl.lib;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.amelia.dsl.lib.util.SharedFiles;
+import org.amelia.dsl.lib.util.TransferManifest;
 
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPFile;
@@ -42,6 +51,11 @@ import org.apache.commons.net.ftp.FTPFile;
  */
 public class FTPClient extends org.apache.commons.net.ftp.FTPClient {
 
+	/**
+	 * The remote file separator, once known
+	 */
+	private String separator;
+
 	/**
 	 * Creates new sub-directories on the FTP server in the current directory
 	 * (if a relative pathname is given) or where specified (if an absolute
@@ -171,9 +185,33 @@ public class FTPClient extends org.apache.commons.net.ftp.FTPClient {
 	 */
 	public void upload(String localPath, String remotePath, boolean overwrite)
 			throws IOException {
+		for (String[] file : prepareUpload(localPath, remotePath, overwrite))
+			uploadFile(file[0], file[1]);
+	}
+
+	/**
+	 * Prepares the upload of either a file or directory to the specified
+	 * remote location, that is, it creates the remote directories (removing
+	 * the existing one if necessary) but it does not upload any file.
+	 * 
+	 * @param localPath
+	 *            The pathname of the local file/directory to upload
+	 * @param remotePath
+	 *            The destination pathname of the remote file/directory
+	 * @param overwrite
+	 *            If the remote path is an existing directory, it will be
+	 *            overwritten if {@code overwrite} is {@code true}
+	 * @return the pairs of local and remote pathnames of the files to upload
+	 * @throws IOException
+	 *             If an I/O error occurs while either sending a command to the
+	 *             server or receiving a reply from the server
+	 */
+	public List<String[]> prepareUpload(String localPath, String remotePath,
+			boolean overwrite) throws IOException {
 
 		File file = new File(localPath);
 		boolean isDir = file.isDirectory();
+		List<String[]> files = new ArrayList<String[]>();
 
 		// Unless an existing directory is removed, an IOException will be
 		// thrown
@@ -184,27 +222,110 @@ public class FTPClient extends org.apache.commons.net.ftp.FTPClient {
 		makeDirectories(isDir ? remotePath : getPathParent(remotePath));
 
 		if (isDir)
-			uploadDirectory(localPath, remotePath);
+			prepareDirectory(localPath, remotePath, files);
 		else
-			uploadFile(localPath, remotePath);
+			files.add(new String[] { localPath, remotePath });
+		return files;
+	}
+
+	/**
+	 * Prepares the upload of the files that changed according to the given
+	 * manifest, and removes the stale remote files if {@code overwrite} is
+	 * {@code true}. The remote directory is not removed.
+	 * 
+	 * @param localPath
+	 *            The pathname of the local file/directory to upload
+	 * @param remotePath
+	 *            The destination pathname of the remote file/directory
+	 * @param overwrite
+	 *            Whether the remote files that do not exist locally are
+	 *            removed
+	 * @param manifest
+	 *            The differences between the local and remote files, or
+	 *            {@code null} to upload all of the files
+	 * @return the pairs of local and remote pathnames of the files to upload
+	 * @throws IOException
+	 *             If an I/O error occurs while either sending a command to the
+	 *             server or receiving a reply from the server
+	 */
+	public List<String[]> prepareUpload(String localPath, String remotePath,
+			boolean overwrite, TransferManifest manifest) throws IOException {
+		if (manifest == null)
+			return prepareUpload(localPath, remotePath, overwrite);
+
+		List<String[]> files = new ArrayList<String[]>();
+		if (!new File(localPath).isDirectory()) {
+			if (manifest.isChanged(TransferManifest.FILE)) {
+				makeDirectories(getPathParent(remotePath));
+				files.add(new String[] { localPath, remotePath });
+			}
+			return files;
+		}
+
+		String separator = remoteFileSeparator();
+		makeDirectories(remotePath);
+		if (overwrite) {
+			for (String path : manifest.stale()) {
+				String remoteFilePath = remotePath + separator
+						+ path.replace("/", separator);
+				if (!super.deleteFile(remoteFilePath))
+					throw new IOException("Unable to delete remote file "
+							+ remoteFilePath + ". Error is: "
+							+ super.getReplyString());
+			}
+		}
+		Set<String> directories = new HashSet<String>();
+		directories.add(remotePath);
+		for (String path : manifest.changed()) {
+			String remoteFilePath = remotePath + separator
+					+ path.replace("/", separator);
+			String parent = getPathParent(remoteFilePath);
+			if (directories.add(parent))
+				makeDirectories(parent);
+			files.add(new String[] {
+					new File(localPath, path).getPath(), remoteFilePath });
+		}
+		return files;
 	}
 
-	private void uploadFile(String localPath, String remotePath)
+	/**
+	 * Uploads a single file. The remote directory must exist.
+	 * 
+	 * @param localPath
+	 *            The pathname of the local file
+	 * @param remotePath
+	 *            The destination pathname of the remote file
+	 * @return the number of bytes uploaded
+	 * @throws IOException
+	 *             If the file cannot be uploaded
+	 */
+	public long uploadFile(String localPath, String remotePath)
 			throws IOException {
 
 		setFileType(FTP.BINARY_FILE_TYPE);
 
 		File localFile = new File(localPath);
-		InputStream stream = new FileInputStream(localFile);
-		if (!super.storeFile(remotePath, stream))
-			throw new IOException("Unable to upload local file " + localPath
-					+ ". Error is: " + getReplyString());
-
-		stream.close();
+		InputStream stream = SharedFiles.open(localFile);
+		try {
+			if (!super.storeFile(remotePath, stream))
+				throw new IOException("Unable to upload local file " + localPath
+						+ ". Error is: " + getReplyString());
+		} finally {
+			stream.close();
+		}
+		if (TransferManifest.isEnabled()) {
+			// Keep the modification time for the next comparison. Servers
+			// without MFMT ignore it, and their files are compared by hash
+			SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			super.setModificationTime(remotePath,
+					format.format(new Date(localFile.lastModified())));
+		}
+		return localFile.length();
 	}
 
-	private void uploadDirectory(String localPath, String remotePath)
-			throws IOException {
+	private void prepareDirectory(String localPath, String remotePath,
+			List<String[]> files) throws IOException {
 
 		String separator = remoteFileSeparator();
 
@@ -220,7 +341,7 @@ public class FTPClient extends org.apache.commons.net.ftp.FTPClient {
 				String remoteFilePath = remotePath + file.getName();
 
 				if (file.isFile()) {
-					uploadFile(localFilePath, remoteFilePath);
+					files.add(new String[] { localFilePath, remoteFilePath });
 				} else {
 					// create directory on the server
 					if (!super.makeDirectory(remoteFilePath)) {
@@ -231,7 +352,7 @@ public class FTPClient extends org.apache.commons.net.ftp.FTPClient {
 								+ remoteFilePath);
 					}
 
-					uploadDirectory(localFilePath, remoteFilePath);
+					prepareDirectory(localFilePath, remoteFilePath, files);
 				}
 			}
 		}
@@ -261,13 +382,16 @@ public class FTPClient extends org.apache.commons.net.ftp.FTPClient {
 	 * @return The remote file separator
 	 */
 	public String remoteFileSeparator() throws IOException {
-		String separator = "/";
-		String systemType = super.getSystemType().toLowerCase();
+		if (this.separator == null) {
+			String separator = "/";
+			String systemType = super.getSystemType().toLowerCase();
 
-		if (systemType.contains("windows"))
-			separator = "\\";
+			if (systemType.contains("windows"))
+				separator = "\\";
 
-		return separator;
+			this.separator = separator;
+		}
+		return this.separator;
 	}
 
 }
@@ -18,13 +18,29 @@
  */
 package org.amelia.dsl.lib;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.amelia.dsl.lib.descriptors.AssetBundle;
 import org.amelia.dsl.lib.descriptors.Host;
+import org.amelia.dsl.lib.util.Threads;
+import org.amelia.dsl.lib.util.TransferManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * @author Miguel Jiménez - Initial contribution and API
@@ -34,10 +50,35 @@ public class FTPHandler extends Thread {
 	private final Host host;
 
 	private final FTPClient client;
+
+	/**
+	 * The maximum number of connections used to upload the files of a bundle
+	 * ({@code amelia.ftp_connections})
+	 */
+	private final int connections;
+
+	/**
+	 * Additional connections to upload files in parallel. They are opened
+	 * the first time they are needed
+	 */
+	private final List<FTPClient> workers;
+
+	/**
+	 * Uploads files through the connections in parallel
+	 */
+	private volatile ExecutorService executor;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(FTPHandler.class);
 	
 	public FTPHandler(final Host host) {
 		this.host = host;
 		this.client = new FTPClient();
+		this.connections = Math.max(1,
+				Integer.parseInt(System.getProperty("amelia.ftp_connections")));
+		this.workers = new CopyOnWriteArrayList<FTPClient>();
 	}
 	
 	public void setup() throws SocketException, IOException {
@@ -54,19 +95,170 @@ public class FTPHandler extends Thread {
 	}
 
 	public boolean close() throws IOException {
+		// An ongoing upload is not waited for; it fails
+		for (FTPClient worker : this.workers) {
+			try {
+				if (worker.isConnected()) {
+					worker.logout();
+					worker.disconnect();
+				}
+			} catch (IOException e) {
+				logger.warn("Could not close an FTP connection to "
+						+ this.host + ": " + e.getMessage());
+			}
+		}
+		this.workers.clear();
+		ExecutorService executor = this.executor;
+		if (executor != null)
+			executor.shutdownNow();
 		if(this.client != null && this.client.isConnected())
 			return this.client.logout();
 		else
 			return false;
 	}
 
-	public synchronized void upload(AssetBundle bundle) throws IOException {
+	/**
+	 * Uploads the files of the given bundle. The remote directories are
+	 * created through the main connection, and then the files are distributed
+	 * among up to {@code amelia.ftp_connections} connections, largest files
+	 * first.
+	 * 
+	 * @param bundle
+	 *            The bundle to upload
+	 * @return the number of bytes uploaded
+	 * @throws IOException
+	 *             If any file cannot be uploaded
+	 */
+	public synchronized long upload(AssetBundle bundle) throws IOException {
+		List<String[]> files = new ArrayList<String[]>();
+		long archived = 0;
 		for (Map.Entry<String, List<String>> pair : bundle.transfers()
 				.entrySet()) {
 			for (String remote : pair.getValue()) {
-				this.client.upload(pair.getKey(), remote, bundle.overwrite());
+				TransferManifest manifest = TransferManifest.compare(
+						this.host, pair.getKey(), remote);
+				if (SSHHandler.usesArchiveTransfers() && this.host.ssh() != null
+						&& new File(pair.getKey()).isDirectory()) {
+					// A single data channel instead of a round trip per file
+					archived += uploadArchive(pair.getKey(), remote,
+							bundle.overwrite(), manifest);
+					continue;
+				}
+				files.addAll(this.client.prepareUpload(pair.getKey(), remote,
+						bundle.overwrite(), manifest));
+			}
+		}
+		return archived + upload(files);
+	}
+
+	private long uploadArchive(String localPath, String remotePath,
+			boolean overwrite, TransferManifest manifest) throws IOException {
+		try {
+			return this.host.ssh().uploadArchive(localPath, remotePath,
+					overwrite, manifest);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Uploads the given files (pairs of local and remote pathnames).
+	 */
+	private long upload(List<String[]> files) throws IOException {
+		List<FTPClient> clients = clients(files.size());
+		if (clients.size() == 1) {
+			long bytes = 0;
+			for (String[] file : files)
+				bytes += this.client.uploadFile(file[0], file[1]);
+			return bytes;
+		}
+		// Balance the load by uploading the largest files first
+		Collections.sort(files, new Comparator<String[]>() {
+			@Override public int compare(String[] a, String[] b) {
+				return Long.compare(new File(b[0]).length(),
+						new File(a[0]).length());
+			}
+		});
+		final ConcurrentLinkedQueue<String[]> pending =
+				new ConcurrentLinkedQueue<String[]>(files);
+		final AtomicBoolean failed = new AtomicBoolean();
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for (final FTPClient client : clients) {
+			futures.add(this.executor.submit(new Callable<Long>() {
+				@Override public Long call() throws IOException {
+					long bytes = 0;
+					String[] file;
+					try {
+						while (!failed.get() && (file = pending.poll()) != null)
+							bytes += client.uploadFile(file[0], file[1]);
+					} catch (IOException e) {
+						failed.set(true);
+						throw e;
+					}
+					return bytes;
+				}
+			}));
+		}
+		long bytes = 0;
+		IOException failure = null;
+		for (Future<Long> future : futures) {
+			try {
+				bytes += future.get();
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause() instanceof IOException
+							? (IOException) e.getCause()
+							: new IOException(e.getCause().getMessage(), e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while uploading files to "
+						+ this.host, e);
+			}
+		}
+		if (failure != null)
+			throw failure;
+		return bytes;
+	}
+
+	/**
+	 * Opens the additional connections necessary to upload the given number
+	 * of files. If a connection cannot be opened, the upload continues with
+	 * fewer connections.
+	 * 
+	 * @return the connections to use, including the main one
+	 */
+	private List<FTPClient> clients(final int files) {
+		int target = Math.min(this.connections, files);
+		while (this.workers.size() + 1 < target) {
+			FTPClient worker = new FTPClient();
+			try {
+				worker.connect(this.host.hostname(), this.host.ftpPort());
+				if (!worker.login(this.host.username(), this.host.password()))
+					throw new IOException(worker.getReplyString());
+				this.workers.add(worker);
+			} catch (IOException e) {
+				logger.warn("Could not open an additional FTP connection to "
+						+ this.host + ": " + e.getMessage());
+				// Do not leak the socket of a refused login
+				try {
+					if (worker.isConnected())
+						worker.disconnect();
+				} catch (IOException e1) {
+					// The connection is discarded anyway
+				}
+				break;
 			}
 		}
+		List<FTPClient> clients = new ArrayList<FTPClient>();
+		clients.add(this.client);
+		for (int i = 0; i < this.workers.size() && clients.size() < target; i++)
+			clients.add(this.workers.get(i));
+		if (clients.size() > 1 && this.executor == null)
+			this.executor = Executors.newFixedThreadPool(this.connections,
+					Threads.threadFactory("amelia-ftp-" + this.host));
+		return clients;
 	}
 	
 	public boolean isConnected() {
@@ -0,0 +1,292 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.amelia.dsl.lib.descriptors.Host;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+
+/**
+ * Tunnels SSH sessions through jump hosts (bastions). A single authenticated
+ * session is opened to each jump host, and the sessions to the hosts behind
+ * it are tunnelled over direct-tcpip channels of that session. The session
+ * to a jump host is closed once no session is tunnelled through it.
+ * <p>
+ * A host uses its own jump host (see {@link Host#setJumpHost(Host)}) or,
+ * otherwise, the one configured in property {@code amelia.jump_host}
+ * (user@hostname[:port]).
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class JumpHosts {
+
+	/**
+	 * A proxy connecting to the target host through a direct-tcpip channel
+	 * of the jump host's session.
+	 */
+	private static class DirectTcpipProxy implements Proxy {
+
+		private final Session gateway;
+
+		private ChannelDirectTCPIP channel;
+
+		private InputStream in;
+
+		private OutputStream out;
+
+		public DirectTcpipProxy(final Session gateway) {
+			this.gateway = gateway;
+		}
+
+		@Override
+		public void connect(SocketFactory factory, String host, int port,
+				int timeout) throws Exception {
+			this.channel = (ChannelDirectTCPIP) this.gateway
+					.openChannel("direct-tcpip");
+			this.channel.setHost(host);
+			this.channel.setPort(port);
+			this.in = this.channel.getInputStream();
+			this.out = this.channel.getOutputStream();
+			this.channel.connect(timeout);
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return this.in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return this.out;
+		}
+
+		@Override
+		public Socket getSocket() {
+			// There is no socket of its own
+			return null;
+		}
+
+		@Override
+		public void close() {
+			if (this.channel != null)
+				this.channel.disconnect();
+		}
+	}
+
+	private static class Entry {
+
+		/**
+		 * The number of sessions tunnelled through the jump host
+		 */
+		private int references;
+
+		private Session session;
+	}
+
+	/**
+	 * The jump host used by hosts that do not specify one, if any
+	 */
+	private final Host defaultJumpHost;
+
+	/**
+	 * The sessions per jump host
+	 */
+	private final Map<Host, Entry> entries;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(JumpHosts.class);
+
+	public JumpHosts() {
+		this.entries = new HashMap<Host, Entry>();
+		this.defaultJumpHost = parse(System.getProperty("amelia.jump_host"));
+	}
+
+	/**
+	 * @param jumpHost
+	 *            A jump host in the form user@hostname[:port]
+	 * @return the corresponding host, or {@code null} if there is none
+	 */
+	private static Host parse(final String jumpHost) {
+		if (jumpHost == null || jumpHost.trim().isEmpty())
+			return null;
+		String address = jumpHost.trim();
+		int at = address.indexOf('@');
+		if (at < 1)
+			throw new IllegalArgumentException(
+					"The jump host must be in the form user@hostname[:port]: "
+							+ jumpHost);
+		String username = address.substring(0, at);
+		String hostname = address.substring(at + 1);
+		int port = 22;
+		int colon = hostname.lastIndexOf(':');
+		if (colon != -1) {
+			port = Integer.parseInt(hostname.substring(colon + 1));
+			hostname = hostname.substring(0, colon);
+		}
+		return new Host(hostname, 21, port, username, null);
+	}
+
+	/**
+	 * @param host
+	 *            A target host
+	 * @return the jump host through which the given host is reached, or
+	 *         {@code null} if it is reached directly
+	 */
+	public Host jumpHostOf(final Host host) {
+		Host jumpHost = host.jumpHost();
+		if (jumpHost == null)
+			jumpHost = this.defaultJumpHost;
+		if (jumpHost == null || jumpHost.equals(host)
+				|| (jumpHost.hostname().equals(host.hostname())
+						&& jumpHost.sshPort() == host.sshPort()))
+			return null;
+		return jumpHost;
+	}
+
+	/**
+	 * Opens the session to the given jump host if necessary, and creates a
+	 * proxy tunnelling a new session through it. Each call must be followed
+	 * by a call to {@link #release(Host)} once the tunnelled session is
+	 * closed.
+	 * 
+	 * @param jumpHost
+	 *            The jump host
+	 * @param timeout
+	 *            The connection timeout, in milliseconds
+	 * @return a proxy for the session to the target host
+	 * @throws Exception
+	 *             If the session to the jump host cannot be opened
+	 */
+	public Proxy acquire(final Host jumpHost, final int timeout)
+			throws Exception {
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(jumpHost);
+			if (entry == null) {
+				entry = new Entry();
+				this.entries.put(jumpHost, entry);
+			}
+			entry.references++;
+		}
+		synchronized (entry) {
+			try {
+				if (entry.session == null || !entry.session.isConnected()) {
+					// Release the lost session and the chain behind it first
+					disconnect(jumpHost, entry);
+					entry.session = connect(jumpHost, timeout);
+				}
+				return new DirectTcpipProxy(entry.session);
+			} catch (Exception e) {
+				release(jumpHost);
+				throw e;
+			}
+		}
+	}
+
+	private Session connect(final Host jumpHost, final int timeout)
+			throws Exception {
+		long start = System.currentTimeMillis();
+		Session session = SSHHandler.newJSch().getSession(jumpHost.username(),
+				jumpHost.hostname(), jumpHost.sshPort());
+		if (jumpHost.password() != null)
+			session.setPassword(jumpHost.password());
+		session.setUserInfo(SSHHandler.newUserInfo());
+		SSHHandler.configureKeepAlive(session);
+		// A jump host may be behind another one (set explicitly)
+		final Host next = jumpHost.jumpHost();
+		if (next != null)
+			session.setProxy(acquire(next, timeout));
+		try {
+			session.connect(timeout);
+		} catch (Exception e) {
+			if (next != null)
+				release(next);
+			throw e;
+		}
+		logger.info("Connection to jump host " + jumpHost + " established ("
+				+ (System.currentTimeMillis() - start) + " ms)");
+		return session;
+	}
+
+	/**
+	 * Releases the session to the given jump host. The session is closed if
+	 * no other session is tunnelled through it.
+	 * 
+	 * @param jumpHost
+	 *            The jump host
+	 */
+	public void release(final Host jumpHost) {
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(jumpHost);
+			if (entry == null || entry.references == 0 || --entry.references > 0)
+				return;
+		}
+		synchronized (entry) {
+			synchronized (this) {
+				// The jump host was acquired again in the meantime
+				if (entry.references > 0)
+					return;
+			}
+			disconnect(jumpHost, entry);
+		}
+	}
+
+	private void disconnect(final Host jumpHost, final Entry entry) {
+		if (entry.session == null)
+			return;
+		entry.session.disconnect();
+		entry.session = null;
+		logger.info("Connection to jump host " + jumpHost + " was closed");
+		Host next = jumpHost.jumpHost();
+		if (next != null)
+			release(next);
+	}
+
+	/**
+	 * Closes the sessions to all jump hosts
+	 */
+	public void closeAll() {
+		Map<Host, Entry> entries;
+		synchronized (this) {
+			entries = new HashMap<Host, Entry>(this.entries);
+			for (Entry entry : entries.values())
+				entry.references = 0;
+		}
+		for (Map.Entry<Host, Entry> e : entries.entrySet()) {
+			synchronized (e.getValue()) {
+				disconnect(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+}
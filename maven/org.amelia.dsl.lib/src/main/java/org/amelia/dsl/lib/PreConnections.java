@@ -0,0 +1,241 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.amelia.dsl.lib.descriptors.AssetBundle;
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.descriptors.Host;
+import org.amelia.dsl.lib.util.Threads;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Establishes the connections of a subsystem's hosts while the subsystems
+ * on which it depends are still being deployed, so that its first command
+ * starts as soon as its dependencies are done. SSH sessions are acquired
+ * from the {@link SessionCache} on behalf of the subsystem, and released
+ * once the subsystem is deployed (or skipped); the deployment acquires them
+ * again, already connected.
+ * <p>
+ * Pre-connection is enabled by property {@code amelia.preconnect}.
+ * Connection errors are only logged, as the deployment will try again.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class PreConnections {
+
+	private static class Entry {
+
+		private final List<Future<?>> futures;
+
+		/**
+		 * The hosts whose SSH session was acquired
+		 */
+		private final Set<Host> sshHosts;
+
+		/**
+		 * The hosts whose FTP connection was opened
+		 */
+		private final Set<Host> ftpHosts;
+
+		public Entry() {
+			this.futures = new ArrayList<Future<?>>();
+			this.sshHosts = Collections.newSetFromMap(
+					new ConcurrentHashMap<Host, Boolean>());
+			this.ftpHosts = Collections.newSetFromMap(
+					new ConcurrentHashMap<Host, Boolean>());
+		}
+	}
+
+	private final SessionCache sessions;
+
+	private final ExecutorService executor;
+
+	private final Map<Subsystem, Entry> entries;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(PreConnections.class);
+
+	public PreConnections(final SessionCache sessions) {
+		this.sessions = sessions;
+		this.entries = new HashMap<Subsystem, Entry>();
+		this.executor = Executors.newFixedThreadPool(
+				Math.max(1, Integer.parseInt(System.getProperty(
+						"amelia.max_concurrent_handshakes"))),
+				Threads.threadFactory("amelia-preconnect"));
+	}
+
+	/**
+	 * @return whether property {@code amelia.preconnect} is enabled
+	 */
+	public static boolean isEnabled() {
+		return Boolean.valueOf(System.getProperty("amelia.preconnect"));
+	}
+
+	/**
+	 * Starts establishing the connections of the given subsystem's hosts in
+	 * the background. The subsystem must be already set up.
+	 * 
+	 * @param subsystem
+	 *            The subsystem
+	 */
+	public void start(final Subsystem subsystem) {
+		Set<Host> sshHosts = new LinkedHashSet<Host>();
+		Set<Host> ftpHosts = new LinkedHashSet<Host>();
+		try {
+			for (CommandDescriptor descriptor : subsystem.deployment().getAllRules()) {
+				if (descriptor == null)
+					continue;
+				// The only known use of the FTP connection is the AssetBundle
+				if (descriptor instanceof AssetBundle && !AssetBundle.usesSftp())
+					ftpHosts.addAll(descriptor.hosts());
+				else
+					sshHosts.addAll(descriptor.hosts());
+			}
+		} catch (RuntimeException e) {
+			// The rules depend on values that are not known yet
+			logger.debug("Hosts of " + subsystem + " are not known yet: "
+					+ e.getMessage());
+			return;
+		}
+		final Entry entry = new Entry();
+		synchronized (this) {
+			this.entries.put(subsystem, entry);
+		}
+		try {
+			for (final Host host : sshHosts) {
+				entry.futures.add(this.executor.submit(new Runnable() {
+					@Override public void run() {
+						try {
+							sessions.acquire(host, subsystem.alias());
+							entry.sshHosts.add(host);
+						} catch (Exception e) {
+							logger.warn("Cannot pre-connect to " + host
+									+ " (SSH): " + e.getMessage());
+						}
+					}
+				}));
+			}
+			for (final Host host : ftpHosts) {
+				entry.futures.add(this.executor.submit(new Runnable() {
+					@Override public void run() {
+						try {
+							host.openFTPConnection();
+							entry.ftpHosts.add(host);
+						} catch (Exception e) {
+							logger.warn("Cannot pre-connect to " + host
+									+ " (FTP): " + e.getMessage());
+						}
+					}
+				}));
+			}
+		} catch (RejectedExecutionException e) {
+			// The deployment is shutting down
+		}
+	}
+
+	/**
+	 * Waits until the pre-connection of the given subsystem finishes, so that
+	 * its deployment does not open the same connections concurrently.
+	 * 
+	 * @param subsystem
+	 *            The subsystem
+	 */
+	public void await(final Subsystem subsystem) throws InterruptedException {
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(subsystem);
+		}
+		if (entry == null)
+			return;
+		for (Future<?> future : entry.futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				// Errors are logged by the task
+			} catch (CancellationException e) {
+				// The deployment is shutting down
+			}
+		}
+	}
+
+	/**
+	 * Releases the connections established for the given subsystem.
+	 * 
+	 * @param subsystem
+	 *            The subsystem
+	 * @param deployed
+	 *            Whether the subsystem's deployment ran, and thus it closes
+	 *            the FTP connections it uses
+	 */
+	public void release(final Subsystem subsystem, final boolean deployed)
+			throws InterruptedException {
+		await(subsystem);
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.remove(subsystem);
+		}
+		if (entry == null)
+			return;
+		for (Host host : entry.sshHosts) {
+			try {
+				this.sessions.release(host);
+			} catch (Exception e) {
+				logger.error(e);
+			}
+		}
+		if (!deployed) {
+			for (Host host : entry.ftpHosts) {
+				try {
+					host.closeFTPConnection();
+				} catch (Exception e) {
+					logger.error(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops establishing connections
+	 */
+	public void shutdown() {
+		// Pending tasks are cancelled, so that no one waits for them
+		for (Runnable task : this.executor.shutdownNow())
+			if (task instanceof Future<?>)
+				((Future<?>) task).cancel(false);
+	}
+
+}
@@ -18,17 +18,27 @@
  */
 package org.amelia.dsl.lib;
 
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.descriptors.Host;
+
 /**
- * This class allows to have observables that can be changed by external
- * objects.
+ * A check telling whether the service started by a command is ready to be
+ * used. Probes are polled after the command is executed, and commands
+ * depending on it are released as soon as the probe succeeds.
  * 
+ * @see org.amelia.dsl.lib.util.ReadinessProbes
  * @author Miguel Jiménez - Initial contribution and API
  */
-public class OpenObservable extends java.util.Observable {
-	
-	@Override
-	public void setChanged() {
-		super.setChanged();
-	}
+public interface ReadinessProbe {
+
+	/**
+	 * Checks whether the service is ready.
+	 * @param host the host where the command was executed
+	 * @param descriptor the executed command
+	 * @return whether the service is ready
+	 * @throws Exception in case the service cannot become ready
+	 */
+	public boolean isReady(Host host, CommandDescriptor descriptor)
+			throws Exception;
 
 }
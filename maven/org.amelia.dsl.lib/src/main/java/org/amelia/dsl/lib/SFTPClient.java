@@ -0,0 +1,248 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+
+import org.amelia.dsl.lib.util.SharedFiles;
+import org.amelia.dsl.lib.util.TransferManifest;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Uploads files through an SFTP channel of an existing SSH session, as an
+ * alternative to {@link FTPClient} for hosts without an FTP server. It
+ * offers the same semantics as {@link FTPClient#upload(String, String,
+ * boolean)}. Writes are pipelined: up to {@code amelia.sftp_bulk_requests}
+ * write requests are sent before waiting for their acknowledgement.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class SFTPClient {
+
+	private final ChannelSftp channel;
+
+	/**
+	 * Opens an SFTP channel in the given session.
+	 * 
+	 * @param session
+	 *            A connected SSH session
+	 * @param timeout
+	 *            The connection timeout, in milliseconds
+	 * @throws JSchException
+	 *             If the channel cannot be opened
+	 */
+	public SFTPClient(final Session session, final int timeout)
+			throws JSchException {
+		this.channel = (ChannelSftp) session.openChannel("sftp");
+		this.channel.setBulkRequests(Math.max(1, Integer.parseInt(
+				System.getProperty("amelia.sftp_bulk_requests"))));
+		this.channel.connect(timeout);
+	}
+
+	/**
+	 * Uploads either a file or directory to the specified remote location. It
+	 * automatically creates the directories if necessary.
+	 * 
+	 * @param localPath
+	 *            The pathname of the local file/directory to upload
+	 * @param remotePath
+	 *            The destination pathname of the remote file/directory
+	 * @param overwrite
+	 *            If the remote path is an existing directory, it will be
+	 *            overwritten if {@code overwrite} is {@code true}
+	 * @return the number of bytes uploaded
+	 * @throws IOException
+	 *             If the file/directory cannot be uploaded
+	 */
+	public long upload(String localPath, String remotePath, boolean overwrite)
+			throws IOException {
+		File file = new File(localPath);
+		try {
+			if (file.isDirectory()) {
+				if (overwrite && directoryExists(remotePath))
+					removeDirectoryWithContents(remotePath);
+				makeDirectories(remotePath);
+				return uploadDirectory(file, remotePath);
+			}
+			makeDirectories(parent(remotePath));
+			return put(file, remotePath);
+		} catch (SftpException e) {
+			throw new IOException("Unable to upload local file " + localPath
+					+ ". Error is: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Uploads the files that changed according to the given manifest, and
+	 * removes the stale remote files if {@code overwrite} is {@code true}.
+	 * The remote directory is not removed.
+	 * 
+	 * @param localPath
+	 *            The pathname of the local file/directory to upload
+	 * @param remotePath
+	 *            The destination pathname of the remote file/directory
+	 * @param overwrite
+	 *            Whether the remote files that do not exist locally are
+	 *            removed
+	 * @param manifest
+	 *            The differences between the local and remote files, or
+	 *            {@code null} to upload all of the files
+	 * @return the number of bytes uploaded
+	 * @throws IOException
+	 *             If the file/directory cannot be uploaded
+	 */
+	public long upload(String localPath, String remotePath, boolean overwrite,
+			TransferManifest manifest) throws IOException {
+		if (manifest == null)
+			return upload(localPath, remotePath, overwrite);
+		File file = new File(localPath);
+		long bytes = 0;
+		try {
+			if (!file.isDirectory()) {
+				if (manifest.isChanged(TransferManifest.FILE)) {
+					makeDirectories(parent(remotePath));
+					bytes += put(file, remotePath);
+				}
+				return bytes;
+			}
+			makeDirectories(remotePath);
+			if (overwrite)
+				for (String path : manifest.stale())
+					this.channel.rm(remotePath + "/" + path);
+			Set<String> directories = new HashSet<String>();
+			directories.add(remotePath);
+			for (String path : manifest.changed()) {
+				String remoteFilePath = remotePath + "/" + path;
+				String parent = parent(remoteFilePath);
+				if (directories.add(parent))
+					makeDirectories(parent);
+				bytes += put(new File(file, path), remoteFilePath);
+			}
+			return bytes;
+		} catch (SftpException e) {
+			throw new IOException("Unable to upload local file " + localPath
+					+ ". Error is: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Uploads a single file, reading it through its shared buffer if
+	 * enabled.
+	 */
+	private long put(File file, String remotePath)
+			throws IOException, SftpException {
+		InputStream stream = SharedFiles.open(file);
+		try {
+			this.channel.put(stream, remotePath);
+		} finally {
+			stream.close();
+		}
+		// Keep the modification time for the next comparison
+		if (TransferManifest.isEnabled())
+			this.channel.setMtime(remotePath,
+					(int) (file.lastModified() / 1000));
+		return file.length();
+	}
+
+	private long uploadDirectory(File directory, String remotePath)
+			throws IOException, SftpException {
+		long bytes = 0;
+		File[] files = directory.listFiles();
+		if (files == null)
+			return bytes;
+		for (File file : files) {
+			String remoteFilePath = remotePath + "/" + file.getName();
+			if (file.isFile()) {
+				bytes += put(file, remoteFilePath);
+			} else {
+				this.channel.mkdir(remoteFilePath);
+				bytes += uploadDirectory(file, remoteFilePath);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Creates the given directory and its missing parents.
+	 */
+	public void makeDirectories(String pathname) throws SftpException {
+		if (pathname.isEmpty() || directoryExists(pathname))
+			return;
+		String parent = parent(pathname);
+		if (!parent.equals(pathname))
+			makeDirectories(parent);
+		this.channel.mkdir(pathname);
+	}
+
+	/**
+	 * @return whether the given directory exists
+	 */
+	public boolean directoryExists(String pathname) throws SftpException {
+		try {
+			SftpATTRS attributes = this.channel.stat(pathname);
+			return attributes.isDir();
+		} catch (SftpException e) {
+			if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+				return false;
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes a directory with all of its contents
+	 */
+	public void removeDirectoryWithContents(String pathname)
+			throws SftpException {
+		@SuppressWarnings("unchecked")
+		Vector<LsEntry> entries = this.channel.ls(pathname);
+		for (LsEntry entry : entries) {
+			String name = entry.getFilename();
+			if (name.equals(".") || name.equals(".."))
+				continue;
+			if (entry.getAttrs().isDir())
+				removeDirectoryWithContents(pathname + "/" + name);
+			else
+				this.channel.rm(pathname + "/" + name);
+		}
+		this.channel.rmdir(pathname);
+	}
+
+	private String parent(String path) {
+		int last = path.lastIndexOf('/');
+		if (last > 0)
+			return path.substring(0, last);
+		return last == 0 ? "/" : "";
+	}
+
+	public void close() {
+		this.channel.disconnect();
+	}
+
+}
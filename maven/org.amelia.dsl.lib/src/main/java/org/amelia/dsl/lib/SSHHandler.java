@@ -22,29 +22,50 @@ import static net.sf.expectit.filter.Filters.removeColors;
 import static net.sf.expectit.filter.Filters.removeNonPrintable;
 import static net.sf.expectit.matcher.Matchers.regexp;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.amelia.dsl.lib.descriptors.AssetBundle;
 import org.amelia.dsl.lib.descriptors.CommandDescriptor;
 import org.amelia.dsl.lib.descriptors.Host;
 import org.amelia.dsl.lib.util.Arrays;
 import org.amelia.dsl.lib.util.AuthenticationUserInfo;
 import org.amelia.dsl.lib.util.Log;
 import org.amelia.dsl.lib.util.ShellUtils;
-import org.amelia.dsl.lib.util.Threads;
+import org.amelia.dsl.lib.util.TarWriter;
+import org.amelia.dsl.lib.util.TranscriptWriter;
+import org.amelia.dsl.lib.util.TransferManifest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
@@ -60,14 +81,167 @@ import net.sf.expectit.Result;
 public class SSHHandler extends Thread {
 
 	/**
+	 * An append-only log of the output of a shell channel. The output is kept
+	 * in segments, each one located by the offset of its first character in
+	 * the whole output. Offsets grow monotonically, so a reader can remember
+	 * the current {@link #offset()} and later get the output produced since
+	 * then without copying the rest of the log. Optionally, the logs of a
+	 * session share a limit of characters in memory (see {@link Retention});
+	 * the oldest segments are evicted once the session exceeds it. The log
+	 * writes its output to the session transcript, from which the evicted
+	 * segments are read back (see {@link #fetch(long, long)}).
+	 * 
 	 * @author Miguel Jiménez - Initial contribution and API
 	 */
 	public static final class OutputLog implements Appendable {
 
 		/**
-		 * All lines read by the SSH channel.
+		 * The limit of characters kept in memory by the output logs of a
+		 * session.
 		 */
-		private final ArrayList<CharSequence> logs;
+		public static final class Retention {
+
+			/**
+			 * The maximum number of characters, or 0 for no limit
+			 */
+			private final long limit;
+
+			/**
+			 * The number of characters currently retained by the logs
+			 */
+			private final AtomicLong retained;
+
+			/**
+			 * @param limit
+			 *            The maximum number of characters, or 0 for no limit
+			 */
+			public Retention(final long limit) {
+				this.limit = limit;
+				this.retained = new AtomicLong();
+			}
+
+		}
+
+		/**
+		 * A chunk of output and its offset in the whole output.
+		 */
+		private static final class Segment {
+
+			private final long offset;
+
+			private final CharSequence text;
+
+			private Segment(final long offset, final CharSequence text) {
+				this.offset = offset;
+				this.text = text;
+			}
+
+			private long end() {
+				return this.offset + this.text.length();
+			}
+
+		}
+
+		/**
+		 * A read-only view of a range of the log. The view references the
+		 * segments in the range, so it is not affected by later appends or by
+		 * the retention policy.
+		 */
+		private static final class Range implements CharSequence {
+
+			private final List<Segment> segments;
+
+			private final long start;
+
+			private final long end;
+
+			private Range(final List<Segment> segments, final long start,
+					final long end) {
+				this.segments = segments;
+				this.start = start;
+				this.end = end;
+			}
+
+			@Override
+			public int length() {
+				return (int) (this.end - this.start);
+			}
+
+			@Override
+			public char charAt(int index) {
+				if (index < 0 || index >= length())
+					throw new IndexOutOfBoundsException("Index: " + index);
+				long offset = this.start + index;
+				Segment segment = this.segments.get(find(this.segments, 0,
+						this.segments.size(), offset));
+				return segment.text.charAt((int) (offset - segment.offset));
+			}
+
+			@Override
+			public CharSequence subSequence(int start, int end) {
+				if (start < 0 || end > length() || start > end)
+					throw new IndexOutOfBoundsException(
+							"Range: [" + start + ", " + end + ")");
+				return new Range(this.segments, this.start + start,
+						this.start + end);
+			}
+
+			@Override
+			public String toString() {
+				StringBuilder builder = new StringBuilder(length());
+				for (Segment segment : this.segments) {
+					long from = Math.max(this.start, segment.offset);
+					long to = Math.min(this.end, segment.end());
+					if (from < to)
+						builder.append(segment.text,
+								(int) (from - segment.offset),
+								(int) (to - segment.offset));
+				}
+				return builder.toString();
+			}
+
+		}
+
+		/**
+		 * The lines read by the SSH channel. The retained segments start at
+		 * index {@link #first}.
+		 */
+		private final ArrayList<Segment> segments;
+
+		/**
+		 * The index of the oldest retained segment
+		 */
+		private int first;
+
+		/**
+		 * The offset following the last character appended
+		 */
+		private long offset;
+
+		/**
+		 * The limit shared with the other logs of the session
+		 */
+		private final Retention retention;
+
+		/**
+		 * The transcript containing the whole output, or {@code null}
+		 */
+		private final TranscriptWriter transcript;
+
+		/**
+		 * The number of characters retained in memory by all logs
+		 */
+		private static final AtomicLong retainedChars = new AtomicLong();
+
+		/**
+		 * The maximum value reached by {@link #retainedChars}
+		 */
+		private static final AtomicLong peakRetainedChars = new AtomicLong();
+
+		/**
+		 * The number of characters evicted from memory by all logs
+		 */
+		private static final AtomicLong evictedChars = new AtomicLong();
 
 		/**
 		 * Sinks fed by this appendable.
@@ -75,10 +249,27 @@ public class SSHHandler extends Thread {
 		private final List<Appendable> replicas;
 
 		/**
-		 * Default constructor.
+		 * Default constructor. The log retains all of its output, and it has
+		 * no transcript.
 		 */
 		public OutputLog() {
-			this.logs = new ArrayList<CharSequence>();
+			this(new Retention(0), null);
+		}
+
+		/**
+		 * @param retention
+		 *            The limit of characters in memory of the session
+		 * @param transcript
+		 *            The transcript to which the output is written, or
+		 *            {@code null}. No other output must be appended to it
+		 */
+		public OutputLog(final Retention retention,
+				final TranscriptWriter transcript) {
+			this.segments = new ArrayList<Segment>();
+			this.first = 0;
+			this.offset = 0;
+			this.retention = retention;
+			this.transcript = transcript;
 			this.replicas = new ArrayList<Appendable>();
 		}
 
@@ -87,7 +278,7 @@ public class SSHHandler extends Thread {
 		 * @param appendable The appendable
 		 * @return if the appendable is added to the list of replicas
 		 */
-		public boolean echoTo(Appendable appendable) {
+		public synchronized boolean echoTo(Appendable appendable) {
 			return this.replicas.add(appendable);
 		}
 
@@ -96,11 +287,21 @@ public class SSHHandler extends Thread {
 		 * @see java.lang.Appendable#append(java.lang.CharSequence)
 		 */
 		@Override
-		public Appendable append(CharSequence csq) throws IOException {
-			if (!csq.toString().isEmpty() && !csq.toString().equals("\n")) {
-				this.logs.add(csq);
+		public synchronized Appendable append(CharSequence csq) throws IOException {
+			if (csq.length() > 0 && !(csq.length() == 1 && csq.charAt(0) == '\n')) {
+				String text = csq.toString();
+				this.segments.add(new Segment(this.offset, text));
+				this.offset += text.length();
+				this.retention.retained.addAndGet(text.length());
+				long retained = retainedChars.addAndGet(text.length());
+				long peak;
+				while (retained > (peak = peakRetainedChars.get())
+						&& !peakRetainedChars.compareAndSet(peak, retained));
+				if (this.transcript != null)
+					this.transcript.append(text);
+				retain();
 				for (Appendable tmp: this.replicas)
-					tmp.append(csq);
+					tmp.append(text);
 			}
 			return this;
 		}
@@ -127,17 +328,366 @@ public class SSHHandler extends Thread {
 		}
 
 		/**
-		 * @return a cloned version of the current list of logs
+		 * Evicts the oldest segments of this log while the session exceeds
+		 * its retention limit. The most recent segment is always retained.
+		 */
+		private void retain() {
+			if (this.retention.limit <= 0)
+				return;
+			while (this.segments.size() - this.first > 1
+					&& this.retention.retained.get() > this.retention.limit) {
+				int length = this.segments.get(this.first).text.length();
+				this.retention.retained.addAndGet(-length);
+				retainedChars.addAndGet(-length);
+				evictedChars.addAndGet(length);
+				this.segments.set(this.first++, null);
+			}
+			// Compact the list once half of it is discarded
+			if (this.first > 32 && this.first > this.segments.size() / 2) {
+				this.segments.subList(0, this.first).clear();
+				this.first = 0;
+			}
+		}
+
+		/**
+		 * @return the offset following the last character appended so far
+		 */
+		public synchronized long offset() {
+			return this.offset;
+		}
+
+		/**
+		 * @return the offset of the oldest character retained in memory
+		 */
+		public synchronized long firstOffset() {
+			return this.first < this.segments.size()
+					? this.segments.get(this.first).offset
+					: this.offset;
+		}
+
+		/**
+		 * @param offset
+		 *            An offset previously obtained from {@link #offset()}
+		 * @return a view of the output appended since the given offset. If
+		 *         part of that output is no longer retained, the view starts
+		 *         at the oldest character retained
+		 */
+		public CharSequence since(long offset) {
+			return range(offset, Long.MAX_VALUE);
+		}
+
+		/**
+		 * @param start
+		 *            The offset of the first character (inclusive)
+		 * @param end
+		 *            The offset of the last character (exclusive)
+		 * @return a view of the retained output between the given offsets
+		 */
+		public synchronized CharSequence range(long start, long end) {
+			start = Math.max(start, firstOffset());
+			end = Math.min(end, this.offset);
+			if (start >= end)
+				return "";
+			int from = find(this.segments, this.first, this.segments.size(), start);
+			int to = find(this.segments, from, this.segments.size(), end - 1);
+			List<Segment> view = new ArrayList<Segment>(
+					this.segments.subList(from, to + 1));
+			return new Range(view, start, end);
+		}
+
+		/**
+		 * Reads the output between the given offsets, including the output
+		 * evicted from memory if the transcript is readable (see
+		 * {@link TranscriptWriter#isReadable()}).
+		 * 
+		 * @param start
+		 *            The offset of the first character (inclusive)
+		 * @param end
+		 *            The offset of the last character (exclusive)
+		 * @return the output between the given offsets, starting at the
+		 *         oldest character available
+		 * @throws IOException
+		 *             If the transcript cannot be read
+		 */
+		public String fetch(long start, long end) throws IOException {
+			long inMemory;
+			CharSequence recent;
+			synchronized (this) {
+				inMemory = firstOffset();
+				recent = range(start, end);
+			}
+			// The transcript is read without blocking the appends
+			if (this.transcript == null || !this.transcript.isReadable()
+					|| start >= inMemory)
+				return recent.toString();
+			return this.transcript.read(start, Math.min(end, inMemory)) + recent;
+		}
+
+		/**
+		 * @return the number of bytes retained in memory by all logs at the
+		 *         same time, at most
+		 */
+		public static long peakMemory() {
+			return peakRetainedChars.get() * 2;
+		}
+
+		/**
+		 * @return the number of bytes evicted from memory by all logs
+		 */
+		public static long evictedMemory() {
+			return evictedChars.get() * 2;
+		}
+
+		/**
+		 * Resets the memory statistics, e.g., before a new execution. The
+		 * peak starts over from the memory currently retained.
+		 */
+		public static void resetMemoryStatistics() {
+			peakRetainedChars.set(retainedChars.get());
+			evictedChars.set(0);
+		}
+
+		/**
+		 * @return the retained segments of the log. Prefer
+		 *         {@link #since(long)} to read recent output
 		 */
-		@SuppressWarnings("unchecked")
 		public synchronized List<CharSequence> logs() {
-			return (List<CharSequence>) this.logs.clone();
+			List<CharSequence> logs = new ArrayList<CharSequence>(
+					this.segments.size() - this.first);
+			for (int i = this.first; i < this.segments.size(); i++)
+				logs.add(this.segments.get(i).text);
+			return logs;
 		}
 
-		public List<Appendable> replicas() {
+		public synchronized List<Appendable> replicas() {
 			return this.replicas;
 		}
-		
+
+		/**
+		 * Binary search of the segment containing the given offset.
+		 */
+		private static int find(List<Segment> segments, int from, int to,
+				long offset) {
+			int low = from;
+			int high = to - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (segments.get(middle).offset <= offset)
+					low = middle;
+				else
+					high = middle - 1;
+			}
+			return low;
+		}
+
+	}
+
+	/**
+	 * The result of a command executed on an exec channel
+	 * 
+	 * @author Miguel Jiménez - Initial contribution and API
+	 */
+	public static final class ExecResult {
+
+		private final int exitStatus;
+
+		private final String output;
+
+		private final String error;
+
+		public ExecResult(final int exitStatus, final String output,
+				final String error) {
+			this.exitStatus = exitStatus;
+			this.output = output;
+			this.error = error;
+		}
+
+		public int exitStatus() {
+			return this.exitStatus;
+		}
+
+		/**
+		 * @return the standard output of the command
+		 */
+		public String output() {
+			return this.output;
+		}
+
+		/**
+		 * @return the standard error of the command
+		 */
+		public String error() {
+			return this.error;
+		}
+	}
+
+	/**
+	 * Collects the standard error of an exec channel. JSch closes it when the
+	 * channel is closed, once the exit status has arrived, so it also tells
+	 * when the command finished.
+	 */
+	private static class ExecErrorStream extends ByteArrayOutputStream {
+
+		private final CountDownLatch closed = new CountDownLatch(1);
+
+		@Override
+		public void close() {
+			this.closed.countDown();
+		}
+
+		/**
+		 * Waits until the channel is closed
+		 * 
+		 * @param timeout
+		 *            The maximum time to wait in milliseconds, or a
+		 *            non-positive number to wait indefinitely
+		 * @return whether the channel was closed
+		 */
+		public boolean awaitClose(final long timeout)
+				throws InterruptedException {
+			if (timeout <= 0) {
+				this.closed.await();
+				return true;
+			}
+			return this.closed.await(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public String toString() {
+			try {
+				return toString("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				return super.toString();
+			}
+		}
+	}
+
+	/**
+	 * A shell channel opened on the SSH session. Each channel has its own
+	 * Amelia prompt, output log and task queue, so commands sent to different
+	 * channels run concurrently.
+	 * 
+	 * @author Miguel Jiménez - Initial contribution and API
+	 */
+	private final class ShellChannel {
+
+		private final int index;
+
+		private final SingleThreadTaskQueue taskQueue;
+
+		/**
+		 * A runtime representation of the shell channel.
+		 */
+		private final OutputLog outputLog;
+
+		/**
+		 * Persists the output of this channel in the background
+		 */
+		private final TranscriptWriter transcript;
+
+		/**
+		 * The number of commands either waiting or running in this channel
+		 */
+		private final AtomicInteger load;
+
+		/**
+		 * Whether a command is running in this channel
+		 */
+		private volatile boolean running;
+
+		/**
+		 * The working directory of the commands executed on exec channels on
+		 * behalf of this channel, or {@code null} if it has not changed
+		 */
+		private String workingDirectory;
+
+		/**
+		 * The variables exported by the commands executed on exec channels
+		 * on behalf of this channel
+		 */
+		private final Map<String, String> environment;
+
+		/**
+		 * The working directory to restore in the shell, because an exec
+		 * command changed it, or {@code null}
+		 */
+		private String pendingDirectory;
+
+		/**
+		 * The variables to export in the shell, because exec commands
+		 * exported them
+		 */
+		private final Map<String, String> pendingEnvironment;
+
+		private Channel channel;
+
+		private Expect expect;
+
+		public ShellChannel(final int index) throws Exception {
+			this.index = index;
+			this.taskQueue = new SingleThreadTaskQueue();
+			this.transcript = new TranscriptWriter(createOutputFile(index));
+			this.outputLog = new OutputLog(retention, this.transcript);
+			this.load = new AtomicInteger();
+			this.environment = new LinkedHashMap<String, String>();
+			this.pendingEnvironment = new LinkedHashMap<String, String>();
+		}
+
+		private void connect() throws JSchException, IOException {
+			this.channel = session.openChannel("shell");
+			this.channel.connect(connectionTimeout);
+		}
+
+		private void initialize() throws Exception {
+			this.expect = new ExpectBuilder()
+				.withOutput(this.channel.getOutputStream())
+				.withInputs(this.channel.getInputStream(),
+					this.channel.getExtInputStream())
+				.withEchoInput(this.outputLog)
+				.withEchoOutput(this.outputLog)
+				.withInputFilters(removeColors(), removeNonPrintable())
+				.withExceptionOnFailure()
+				.withTimeout(executionTimeout, TimeUnit.MILLISECONDS)
+				.build();
+		}
+
+		private void configure() throws IOException {
+			String initialPrompt = "\\$|#";
+
+			this.expect.expect(regexp(initialPrompt));
+
+			// Switch off echo
+			this.expect.sendLine("stty -echo");
+			this.expect.expect(regexp(initialPrompt));
+
+			// Query the current shell
+			this.expect.sendLine(ShellUtils.currentShellCommand());
+			Result result = this.expect.expect(regexp(initialPrompt));
+
+			String shell = result.getBefore().split("\n")[0].trim();
+
+			if (!shell.matches("bash|zsh")) {
+				RuntimeException e = new RuntimeException(
+						"Shell not supported: " + shell);
+				logger.error("Shell not supported: " + shell, e);
+				throw e;
+			}
+
+			// Change shell prompt to the Amelia prompt
+			this.expect.sendLine(ShellUtils.ameliaPromptFormat(shell, nonce));
+			this.expect.expect(promptMatcher());
+		}
+
+		private void close() throws IOException {
+			if (this.expect != null)
+				this.expect.close();
+			if (this.channel != null && this.channel.isConnected())
+				this.channel.disconnect();
+		}
+
+		private boolean isConnected() {
+			return this.channel != null && this.channel.isConnected();
+		}
 	}
 
 	private final Host host;
@@ -146,26 +696,70 @@ public class SSHHandler extends Thread {
 
 	private Session session;
 
-	private Channel channel;
+	/**
+	 * The shell channels opened on the session
+	 */
+	private final List<ShellChannel> channels;
+
+	/**
+	 * The jump host through which the session is tunnelled, if any
+	 */
+	private Host jumpHost;
 
-	private Expect expect;
+	/**
+	 * The channel in which each command was executed. Commands are sent to
+	 * the same channel as their dependencies, so that they share the shell
+	 * state (e.g., the working directory).
+	 */
+	private final Map<CommandDescriptor, ShellChannel> assignedChannels;
+
+	/**
+	 * The offset of the channel's output log when each command started
+	 */
+	private final Map<CommandDescriptor, Long> outputOffsets;
+
+	/**
+	 * The channel used by the current task queue thread
+	 */
+	private final ThreadLocal<ShellChannel> currentChannel;
+
+	/**
+	 * The limit of output kept in memory by the channels of this session
+	 */
+	private final OutputLog.Retention retention;
 
 	private final int connectionTimeout;
 
 	private final int executionTimeout;
 
-	private File output;
-
 	private final List<CommandDescriptor> executions;
-
-	private final SingleThreadTaskQueue taskQueue;
 	
 	private final SimpleDateFormat dateFormat;
 
 	/**
-	 * A runtime representation of the shell channel.
+	 * Identifies the Amelia prompt of this session's shells
+	 */
+	private final String nonce;
+
+	/**
+	 * Identifies the lines reporting the shell state after an exec command
+	 */
+	private static final String EXEC_STATE_MARKER = "--amelia-exec-state--";
+
+	/**
+	 * Disconnects the exec channels whose command times out
 	 */
-	private final OutputLog outputLog;
+	private static final Timer watchdogTimer = new Timer("amelia-exec-watchdog", true);
+
+	/**
+	 * The number of reconnections in all hosts
+	 */
+	private static final AtomicInteger reconnections = new AtomicInteger();
+
+	/**
+	 * The time spent reconnecting in all hosts, in milliseconds
+	 */
+	private static final AtomicLong reconnectionTime = new AtomicLong();
 
 	/**
 	 * The logger
@@ -181,15 +775,21 @@ public class SSHHandler extends Thread {
 				.getProperty("amelia.execution_timeout");
 		this.connectionTimeout = Integer.parseInt(_connectionTimeout);
 		this.executionTimeout = Integer.parseInt(_executionTimeout);
-		this.executions = new ArrayList<CommandDescriptor>();
-		this.taskQueue = new SingleThreadTaskQueue();
+		this.executions = Collections
+				.synchronizedList(new ArrayList<CommandDescriptor>());
 		this.dateFormat = new SimpleDateFormat("yyyy-MM-dd@HH:mm:ss.SSS");
-		// prepare the output log and file
-		this.output = createOutputFile();
-		this.outputLog = new OutputLog();
-		this.outputLog.echoTo(new PrintStream(this.output, "UTF-8"));
-		// Handle uncaught exceptions
-		this.taskQueue.setUncaughtExceptionHandler(Threads.exceptionHandler());
+		this.assignedChannels = new ConcurrentHashMap<CommandDescriptor, ShellChannel>();
+		this.outputOffsets = new ConcurrentHashMap<CommandDescriptor, Long>();
+		this.currentChannel = new ThreadLocal<ShellChannel>();
+		this.nonce = UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+		this.retention = new OutputLog.Retention(Long.parseLong(
+				System.getProperty("amelia.output_log_retention")));
+		// prepare the shell channels, along with their output logs and files
+		int nChannels = Math.max(1,
+				Integer.parseInt(System.getProperty("amelia.channels_per_host")));
+		this.channels = new ArrayList<ShellChannel>(nChannels);
+		for (int i = 0; i < nChannels; i++)
+			this.channels.add(new ShellChannel(i));
 	}
 	
 	public void setup() throws Exception {
@@ -201,10 +801,15 @@ public class SSHHandler extends Thread {
 	@Override
 	public void run() {
 		// Once it's configured, it's ready to execute commands
-		this.taskQueue.start();
+		for (ShellChannel channel : this.channels)
+			channel.taskQueue.start();
 	}
 
-	private void connect() throws JSchException, IOException {
+	/**
+	 * @return a new JSch instance configured with the identity and known
+	 *         hosts files
+	 */
+	static JSch newJSch() throws JSchException {
 		JSch jsch = new JSch();
 		String identity = System.getProperty("amelia.identity");
 		String knownHosts = System.getProperty("amelia.known_hosts");
@@ -220,88 +825,706 @@ public class SSHHandler extends Thread {
 		else
 			logger.warn("Known hosts file '" + knownHosts
 					+ "' not found. Execution will continue without it");
+		return jsch;
+	}
+
+	static UserInfo newUserInfo() {
+		return new AuthenticationUserInfo();
+	}
 
-		this.session = jsch.getSession(this.host.username(),
+	/**
+	 * Configures the keepalive messages of the given session, according to
+	 * properties {@code amelia.server_alive_interval} (in milliseconds, 0 to
+	 * disable them) and {@code amelia.server_alive_count_max}.
+	 */
+	static void configureKeepAlive(Session session) throws JSchException {
+		int interval = Integer.parseInt(
+				System.getProperty("amelia.server_alive_interval"));
+		if (interval > 0) {
+			session.setServerAliveInterval(interval);
+			session.setServerAliveCountMax(Integer.parseInt(
+					System.getProperty("amelia.server_alive_count_max")));
+		}
+	}
+
+	private void connect() throws Exception {
+		// A previous setup may have failed halfway
+		closeSession();
+		openSession();
+		for (ShellChannel channel : this.channels)
+			channel.connect();
+	}
+
+	private void openSession() throws Exception {
+		this.session = newJSch().getSession(this.host.username(),
 				this.host.hostname(), this.host.sshPort());
 
 		if (this.host.password() != null)
 			this.session.setPassword(this.host.password());
 
-		UserInfo ui = new AuthenticationUserInfo();
-		this.session.setUserInfo(ui);
-		this.session.connect(this.connectionTimeout);
-		this.channel = session.openChannel("shell");
-		this.channel.connect(this.connectionTimeout);
+		this.session.setUserInfo(newUserInfo());
+		configureKeepAlive(this.session);
+		JumpHosts jumpHosts = SubsystemGraph.getInstance().jumpHosts();
+		Host jumpHost = jumpHosts.jumpHostOf(this.host);
+		if (jumpHost != null) {
+			this.session.setProxy(jumpHosts.acquire(jumpHost, this.connectionTimeout));
+			this.jumpHost = jumpHost;
+		}
+		try {
+			this.session.connect(this.connectionTimeout);
+		} catch (JSchException e) {
+			if (this.jumpHost != null) {
+				jumpHosts.release(this.jumpHost);
+				this.jumpHost = null;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Reconnects the session if it was lost (e.g., dropped by a firewall),
+	 * and reopens and configures the given channel if it was closed, before
+	 * it executes a task.
+	 * 
+	 * @param channel
+	 *            The channel about to execute a task
+	 */
+	private void ensureConnected(final ShellChannel channel) throws Exception {
+		if (this.session != null && this.session.isConnected()
+				&& channel.isConnected())
+			return;
+		reconnect(Collections.singletonList(channel), Integer.parseInt(
+				System.getProperty("amelia.reconnect_attempts")));
+	}
+
+	/**
+	 * Reconnects a handler that was already started, e.g., one kept by the
+	 * {@link SessionCache} whose session dropped while idle: the session is
+	 * opened again if it was lost, and so are the channels closed while no
+	 * task was running on them. A started handler cannot be set up again,
+	 * as its thread cannot be restarted. The session is opened at least once,
+	 * even if reconnection is disabled, as the caller needs it anyway.
+	 * 
+	 * @throws Exception
+	 *             If the session or a channel cannot be opened
+	 */
+	public void reconnect() throws Exception {
+		synchronized (this.channels) {
+			List<ShellChannel> idle = new ArrayList<ShellChannel>();
+			for (ShellChannel channel : this.channels)
+				if (!channel.running)
+					idle.add(channel);
+			reconnect(idle, Math.max(1, Integer.parseInt(
+					System.getProperty("amelia.reconnect_attempts"))));
+		}
+	}
+
+	/**
+	 * Reconnects the session if it was lost, and reopens the given channels
+	 * if they were closed. The shell state left by exec commands is restored
+	 * on the next {@link #expect()}. Only the re-establishment of the
+	 * session counts as a reconnection.
+	 * 
+	 * @param channels
+	 *            The channels to reopen, if necessary
+	 * @param attempts
+	 *            The number of times the connection is attempted, waiting
+	 *            {@code amelia.reconnect_delay} milliseconds in between
+	 */
+	private void reconnect(final List<ShellChannel> channels,
+			final int attempts) throws Exception {
+		long delay = Long.parseLong(System.getProperty("amelia.reconnect_delay"));
+		synchronized (this.channels) {
+			boolean sessionLost = this.session == null || !this.session.isConnected();
+			if (sessionLost && attempts <= 0)
+				throw new JSchException("The session with " + this.host + " was lost");
+			boolean reconnecting = sessionLost;
+			long start = System.currentTimeMillis();
+			for (int i = 1; sessionLost; i++) {
+				logger.warn("The session with " + this.host
+						+ " was lost. Reconnecting (attempt " + i + ")");
+				// Release the lost session and its jump host first
+				closeSession();
+				try {
+					openSession();
+					sessionLost = false;
+				} catch (JSchException e) {
+					if (i >= attempts)
+						throw e;
+					Thread.sleep(delay);
+				}
+			}
+			try {
+				for (ShellChannel channel : channels)
+					if (!channel.isConnected())
+						reopen(channel);
+			} catch (JSchException e) {
+				// The session may be dropping while its channels close
+				if (reconnecting || this.session.isConnected())
+					throw e;
+				reconnect(channels, attempts);
+				return;
+			}
+			// Reopening a channel (e.g., one closed by cancel()) is routine
+			if (reconnecting) {
+				long time = System.currentTimeMillis() - start;
+				reconnections.incrementAndGet();
+				reconnectionTime.addAndGet(time);
+				Log.info(this.host, "Reconnected (" + time + " ms)");
+			}
+		}
+	}
+
+	/**
+	 * Opens and configures the given channel again. The shell state left by
+	 * exec commands is restored on the next {@link #expect()}.
+	 */
+	private void reopen(final ShellChannel channel) throws Exception {
+		channel.close();
+		channel.connect();
+		channel.initialize();
+		channel.configure();
+		// The new shell starts over, bring it to the exec state
+		channel.pendingDirectory = channel.workingDirectory;
+		channel.pendingEnvironment.putAll(channel.environment);
+	}
+
+	/**
+	 * @return whether this handler was started, that is, whether its
+	 *         channels accept tasks
+	 */
+	public boolean isStarted() {
+		return getState() != Thread.State.NEW;
+	}
+
+	private void closeSession() {
+		if (this.session != null && this.session.isConnected())
+			this.session.disconnect();
+		if (this.jumpHost != null) {
+			SubsystemGraph.getInstance().jumpHosts().release(this.jumpHost);
+			this.jumpHost = null;
+		}
+	}
+
+	/**
+	 * @return the number of reconnections in all hosts
+	 */
+	public static int reconnections() {
+		return reconnections.get();
+	}
+
+	/**
+	 * @return the time spent reconnecting in all hosts, in milliseconds
+	 */
+	public static long reconnectionTime() {
+		return reconnectionTime.get();
+	}
+
+	/**
+	 * Resets the reconnection statistics, e.g., before a new execution
+	 */
+	public static void resetReconnections() {
+		reconnections.set(0);
+		reconnectionTime.set(0);
 	}
 
 	private void initialize() throws Exception {
-		this.expect = new ExpectBuilder()
-			.withOutput(this.channel.getOutputStream())
-			.withInputs(this.channel.getInputStream(),
-				this.channel.getExtInputStream())
-			.withEchoInput(this.outputLog)
-			.withEchoOutput(this.outputLog)
-			.withInputFilters(removeColors(), removeNonPrintable())
-			.withExceptionOnFailure()
-			.withTimeout(this.executionTimeout, TimeUnit.MILLISECONDS)
-			.build();
+		for (ShellChannel channel : this.channels)
+			channel.initialize();
 	}
 
 	private void configure() throws IOException {
-		String prompt = ShellUtils.ameliaPromptRegexp();
-		String initialPrompt = "\\$|#";
-
-		this.expect.expect(regexp(initialPrompt));
+		for (ShellChannel channel : this.channels)
+			channel.configure();
+	}
 
-		// Switch off echo
-		this.expect.sendLine("stty -echo");
-		this.expect.expect(regexp(initialPrompt));
+	public void executeCommand(final CommandDescriptor descriptor,
+		final ScheduledTask<?> command) throws Exception {
+		executeCommand(descriptor, command, 0);
+	}
 
-		// Query the current shell
-		this.expect.sendLine(ShellUtils.currentShellCommand());
-		Result result = this.expect.expect(regexp(initialPrompt));
+	/**
+	 * Executes the given command in this host. Pending commands with higher
+	 * priority are executed first.
+	 */
+	public void executeCommand(final CommandDescriptor descriptor,
+		final ScheduledTask<?> command, final long priority)
+			throws Exception {
+		final ShellChannel channel = selectChannel(descriptor);
+		execute(descriptor, channel, command, priority);
+		if (descriptor.isExecution()) {
+			this.executions.add(descriptor);
+		}
+	}
 
-		String shell = result.getBefore().split("\n")[0].trim();
+	/**
+	 * Executes the given task in the same channel as the given command, e.g.,
+	 * to check the state of a service started by the command. The task is
+	 * executed before other pending commands.
+	 * 
+	 * @param descriptor
+	 *            A command already executed in this host
+	 * @param task
+	 *            The task to execute
+	 * @return the result of the task, or {@code null} if it is canceled
+	 */
+	public <V> V executeTask(final CommandDescriptor descriptor,
+			final CallableTask<V> task) throws Exception {
+		return execute(null, channel(descriptor), task, Long.MAX_VALUE);
+	}
 
-		if (!shell.matches("bash|zsh")) {
-			RuntimeException e = new RuntimeException(
-					"Shell not supported: " + shell);
-			logger.error("Shell not supported: " + shell, e);
+	/**
+	 * Executes the given task in the given channel. If the task executes a
+	 * command, the offset of the channel's output log is recorded when it
+	 * starts.
+	 */
+	private <V> V execute(final CommandDescriptor descriptor,
+			final ShellChannel channel, final CallableTask<V> task,
+			final long priority) throws Exception {
+		final String context = Log.context();
+		channel.load.incrementAndGet();
+		try {
+			return channel.taskQueue.execute(new Callable<V>() {
+				@Override public V call() throws Exception {
+					currentChannel.set(channel);
+					Log.setContext(context);
+					channel.running = true;
+					try {
+						ensureConnected(channel);
+						if (descriptor != null)
+							outputOffsets.put(descriptor, channel.outputLog.offset());
+						return task.call(
+							host,
+							ShellUtils.ameliaPromptRegexp(),
+							false
+						);
+					} catch (Exception e) {
+						logger.error(e);
+						throw e;
+					} finally {
+						channel.running = false;
+						currentChannel.remove();
+						Log.clearContext();
+					}
+				}
+			}, priority);
+		} catch (ExecutionException e) {
+			// Report the failure of the task rather than the queue's
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
 			throw e;
+		} finally {
+			channel.load.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Executes the given command on an exec channel, in the working directory
+	 * and with the variables left by the previous exec commands of the current
+	 * channel. The exit status, the standard output and the standard error
+	 * are obtained in a single round trip, without parsing the prompt.
+	 * <p>
+	 * The working directory and the variables exported (form
+	 * {@code export NAME=value}) by the command are carried to the next
+	 * commands, and applied to the shell before it is used again. Changes
+	 * made in the shell are not seen by exec commands.
+	 * 
+	 * @param command
+	 *            The command to execute
+	 * @param timeout
+	 *            The timeout in milliseconds: 0 for the default execution
+	 *            timeout, -1 for no timeout. Even without timeout, the exit
+	 *            status is awaited at most
+	 *            {@code amelia.execution_grace_period} milliseconds after
+	 *            the end of the output
+	 * @return the result of the command
+	 * @throws Exception
+	 *             If the channel cannot be opened, the timeout expires, or
+	 *             the exit status is not received
+	 */
+	public ExecResult exec(final String command, final long timeout)
+			throws Exception {
+		ShellChannel shell = channel();
+		String wrapped = ShellUtils.statefulCommand(command,
+				shell.workingDirectory, shell.environment,
+				ShellUtils.exportedVariables(command), EXEC_STATE_MARKER);
+		ExecResult result = run(wrapped, command, timeout);
+		String stdout = updateState(shell, result.output());
+		String stderr = result.error();
+		shell.outputLog.append(command + "\n" + stdout + stderr);
+		return new ExecResult(result.exitStatus(), stdout, stderr);
+	}
+
+	/**
+	 * Executes the given command on an exec channel, for internal use (e.g.,
+	 * to inspect the remote files). Unlike {@link #exec(String, long)}, the
+	 * command starts in the login directory, does not change the state seen
+	 * by the next commands, and is not appended to the output log.
+	 * 
+	 * @param command
+	 *            The command to execute
+	 * @param timeout
+	 *            The timeout in milliseconds, as in
+	 *            {@link #exec(String, long)}
+	 * @return the result of the command
+	 * @throws Exception
+	 *             If the channel cannot be opened, the timeout expires, or
+	 *             the exit status is not received
+	 */
+	public ExecResult probe(final String command, final long timeout)
+			throws Exception {
+		return run(command, command, timeout);
+	}
+
+	/**
+	 * Executes the given command on an exec channel
+	 * 
+	 * @param command
+	 *            The command to execute
+	 * @param description
+	 *            The command reported if the timeout expires
+	 * @param timeout
+	 *            The timeout in milliseconds: 0 for the default execution
+	 *            timeout, -1 for no timeout
+	 */
+	private ExecResult run(final String command, final String description,
+			final long timeout) throws Exception {
+		final ChannelExec channel = (ChannelExec) this.session.openChannel("exec");
+		channel.setCommand(command);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ExecErrorStream error = new ExecErrorStream();
+		channel.setErrStream(error);
+		InputStream input = channel.getInputStream();
+		final AtomicBoolean timedOut = new AtomicBoolean(false);
+		channel.connect(this.connectionTimeout);
+		TimerTask watchdog = watchdog(channel, timedOut,
+				timeout == 0 ? this.executionTimeout : timeout);
+		try {
+			byte[] buffer = new byte[8192];
+			for (int n; (n = input.read(buffer)) != -1;)
+				output.write(buffer, 0, n);
+			// The exit status arrives right after the end of the output; the
+			// watchdog closes the channel if it does not. Without a watchdog,
+			// the wait is bounded by the grace period
+			if (!error.awaitClose(watchdog == null ? Long.parseLong(System
+					.getProperty("amelia.execution_grace_period")) : -1))
+				throw new RuntimeException(String.format(
+					"The exit status of '%s' was not received from host %s",
+					description, this.host));
+		} catch (IOException e) {
+			if (!timedOut.get())
+				throw e;
+		} finally {
+			if (watchdog != null)
+				watchdog.cancel();
+			channel.disconnect();
 		}
+		if (timedOut.get()) {
+			throw new RuntimeException(String.format(
+				"Operation timeout executing '%s' in host %s", description, this.host));
+		}
+		return new ExecResult(channel.getExitStatus(),
+				output.toString("UTF-8"), error.toString());
+	}
 
-		// Change shell prompt to the Amelia prompt
-		this.expect.sendLine(ShellUtils.ameliaPromptFormat(shell));
-		this.expect.expect(regexp(prompt));
+	/**
+	 * Schedules the disconnection of the given channel once the given
+	 * timeout expires.
+	 * 
+	 * @param channel
+	 *            The channel
+	 * @param timedOut
+	 *            Set if the timeout expires
+	 * @param timeout
+	 *            The timeout in milliseconds, or a non-positive number for no
+	 *            timeout
+	 * @return the scheduled task, to cancel it when the channel is no longer
+	 *         used, or {@code null} if there is no timeout
+	 */
+	private static TimerTask watchdog(final Channel channel,
+			final AtomicBoolean timedOut, final long timeout) {
+		if (timeout <= 0)
+			return null;
+		TimerTask watchdog = new TimerTask() {
+			@Override public void run() {
+				timedOut.set(true);
+				channel.disconnect();
+			}
+		};
+		watchdogTimer.schedule(watchdog, timeout);
+		return watchdog;
 	}
 
-	public void executeCommand(final CommandDescriptor descriptor,
-		final ScheduledTask<?> command) throws InterruptedException {
-		this.taskQueue.execute(new Callable<Object>() {
-			@Override public Object call() throws Exception {
-				try {
-					return command.call(
-						host,
-						ShellUtils.ameliaPromptRegexp(),
-						false
-					);
-				} catch (Exception e) {
-					logger.error(e);
-					throw e;
+	/**
+	 * Uploads the files of the given bundle through an SFTP channel of this
+	 * session.
+	 * 
+	 * @param bundle
+	 *            The bundle to upload
+	 * @return the number of bytes uploaded
+	 * @throws Exception
+	 *             If the channel cannot be opened or a file cannot be
+	 *             uploaded
+	 */
+	public long upload(final AssetBundle bundle) throws Exception {
+		SFTPClient client = new SFTPClient(this.session, this.connectionTimeout);
+		try {
+			long bytes = 0;
+			for (Map.Entry<String, List<String>> pair : bundle.transfers()
+					.entrySet()) {
+				for (String remote : pair.getValue()) {
+					TransferManifest manifest = TransferManifest.compare(
+							this.host, pair.getKey(), remote);
+					if (usesArchiveTransfers()
+							&& new File(pair.getKey()).isDirectory())
+						bytes += uploadArchive(pair.getKey(), remote,
+								bundle.overwrite(), manifest);
+					else
+						bytes += client.upload(pair.getKey(), remote,
+								bundle.overwrite(), manifest);
 				}
 			}
-		});
+			return bytes;
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * @return whether property {@code amelia.archive_transfers} is enabled,
+	 *         that is, whether directories are transferred as a tar stream
+	 *         extracted through the SSH session
+	 */
+	public static boolean usesArchiveTransfers() {
+		return Boolean.valueOf(System.getProperty("amelia.archive_transfers"));
+	}
+
+	/**
+	 * Uploads a local directory as a tar stream, extracted by the host as it
+	 * arrives, through a single exec channel. The archive is built on the
+	 * fly; it is gzip-compressed if property
+	 * {@code amelia.archive_compression} is enabled.
+	 * 
+	 * @param localPath
+	 *            The pathname of the local directory
+	 * @param remotePath
+	 *            The destination pathname of the remote directory
+	 * @param overwrite
+	 *            Whether the remote directory is replaced or, given a
+	 *            manifest, whether the stale remote files are removed
+	 * @param manifest
+	 *            The differences between the local and remote files, or
+	 *            {@code null} to upload all of the files
+	 * @return the number of bytes of the files uploaded
+	 * @throws Exception
+	 *             If the channel cannot be opened, the remote extraction
+	 *             fails, or it does not finish within the execution timeout
+	 *             after the archive was sent
+	 */
+	public long uploadArchive(final String localPath, final String remotePath,
+			final boolean overwrite, final TransferManifest manifest)
+					throws Exception {
+		boolean compress = Boolean.valueOf(
+				System.getProperty("amelia.archive_compression"));
+		String directory = ShellUtils.quote(remotePath);
+		StringBuilder command = new StringBuilder();
+		if (overwrite && manifest == null) {
+			command.append("rm -rf " + directory + " && ");
+		} else if (overwrite && !manifest.stale().isEmpty()) {
+			command.append("(cd " + directory + " && rm -f --");
+			for (String path : manifest.stale())
+				command.append(" " + ShellUtils.quote(path));
+			command.append(") && ");
+		}
+		command.append("mkdir -p " + directory + " && tar -x"
+				+ (compress ? "z" : "") + "f - -C " + directory);
+
+		final ChannelExec channel = (ChannelExec) this.session.openChannel("exec");
+		channel.setCommand(command.toString());
+		ExecErrorStream error = new ExecErrorStream();
+		channel.setErrStream(error);
+		OutputStream stream = channel.getOutputStream();
+		channel.connect(this.connectionTimeout);
+		boolean timedOut = false;
+		long bytes = 0;
+		try {
+			OutputStream output = new BufferedOutputStream(stream, 65536);
+			if (compress)
+				output = new GZIPOutputStream(output, 65536);
+			TarWriter archive = new TarWriter(output);
+			File directoryFile = new File(localPath);
+			if (manifest == null) {
+				bytes = archive(archive, directoryFile, "");
+			} else {
+				for (String path : manifest.changed())
+					bytes += archive.addFile(path, new File(directoryFile, path));
+			}
+			archive.finish();
+			// Closing the stream signals the end of the input to tar, which
+			// has the execution timeout to finish the extraction
+			output.close();
+			timedOut = !error.awaitClose(this.executionTimeout);
+		} catch (IOException e) {
+			// Otherwise a local file could not be read
+			if (!channel.isEOF())
+				throw e;
+			// The remote command exited early (e.g., no space left)
+			error.awaitClose(this.connectionTimeout);
+			throw new IOException(extractionFailure(localPath, remotePath,
+					false, error), e);
+		} finally {
+			channel.disconnect();
+		}
+		if (timedOut || channel.getExitStatus() != 0)
+			throw new IOException(extractionFailure(localPath, remotePath,
+					timedOut, error));
+		return bytes;
+	}
+
+	private String extractionFailure(final String localPath,
+			final String remotePath, final boolean timedOut,
+			final ExecErrorStream error) {
+		return (timedOut ? "Operation timeout extracting " : "Unable to extract ")
+				+ localPath + " in " + this.host + ":" + remotePath
+				+ ". Error is: " + error.toString().trim();
+	}
+
+	private long archive(final TarWriter archive, final File directory,
+			final String prefix) throws IOException {
+		long bytes = 0;
+		File[] files = directory.listFiles();
+		if (files == null)
+			return bytes;
+		for (File file : files) {
+			String name = prefix + file.getName();
+			if (file.isDirectory()) {
+				archive.addDirectory(name, file);
+				bytes += archive(archive, file, name + "/");
+			} else {
+				bytes += archive.addFile(name, file);
+			}
+		}
+		return bytes;
+	}
 
-		if (descriptor.isExecution()) {
-			this.executions.add(descriptor);
+	/**
+	 * Reads the shell state reported by an exec command. Only the changes
+	 * made by the command are restored in the shell, so that the state left
+	 * by previous shell commands is kept.
+	 * 
+	 * @param shell
+	 *            The channel on behalf of which the command was executed
+	 * @param output
+	 *            The output of the command
+	 * @return the output of the command without the state lines
+	 */
+	private String updateState(final ShellChannel shell, final String output) {
+		ShellUtils.ExecState state = ShellUtils.execState(output,
+				EXEC_STATE_MARKER);
+		if (state.workingDirectory() != null) {
+			shell.workingDirectory = state.workingDirectory();
+			shell.pendingDirectory = state.workingDirectory();
+		}
+		shell.environment.putAll(state.variables());
+		shell.pendingEnvironment.putAll(state.variables());
+		return state.output();
+	}
+
+	/**
+	 * Selects the channel to execute the given command. A command runs in the
+	 * same channel as its first dependency executed in this host; otherwise,
+	 * it runs in the least loaded channel.
+	 * 
+	 * @param descriptor
+	 *            The command to execute
+	 * @return the selected channel
+	 */
+	private ShellChannel selectChannel(final CommandDescriptor descriptor) {
+		ShellChannel selected = null;
+		for (CommandDescriptor dependency : descriptor.dependencies()) {
+			selected = this.assignedChannels.get(dependency);
+			if (selected != null)
+				break;
+		}
+		if (selected == null) {
+			selected = this.channels.get(0);
+			for (ShellChannel channel : this.channels) {
+				if (channel.load.get() < selected.load.get())
+					selected = channel;
+			}
+		}
+		this.assignedChannels.put(descriptor, selected);
+		return selected;
+	}
+
+	/**
+	 * @return the channel used by the current thread, or the first channel if
+	 *         the current thread does not belong to any channel
+	 */
+	private ShellChannel channel() {
+		ShellChannel channel = this.currentChannel.get();
+		return channel == null ? this.channels.get(0) : channel;
+	}
+
+	/**
+	 * @return the channel in which the given command was executed, or the
+	 *         first channel if it was not executed in this host
+	 */
+	private ShellChannel channel(final CommandDescriptor descriptor) {
+		ShellChannel channel = this.assignedChannels.get(descriptor);
+		return channel == null ? this.channels.get(0) : channel;
+	}
+
+	/**
+	 * @return a connected channel to send control commands, such as stopping
+	 *         executions. A channel closed while cancelling its command is
+	 *         opened again if there is no other channel available.
+	 * @throws IOException
+	 *             If the channel cannot be opened again
+	 */
+	private ShellChannel controlChannel() throws IOException {
+		for (ShellChannel channel : this.channels)
+			if (channel.isConnected() && !channel.running)
+				return channel;
+		ShellChannel channel = this.channels.get(0);
+		if (!channel.isConnected() && this.session != null
+				&& this.session.isConnected()) {
+			try {
+				channel.close();
+				channel.connect();
+				channel.initialize();
+				channel.configure();
+			} catch (Exception e) {
+				throw new IOException("Could not reopen the shell channel in "
+						+ this.host, e);
+			}
+		}
+		return channel;
+	}
+
+	/**
+	 * Cancels the pending commands and interrupts the running ones. Running
+	 * commands are interrupted by closing their channels, which makes their
+	 * expect operations fail right away instead of waiting for a timeout.
+	 * 
+	 * @throws IOException
+	 *             If there is an error closing a channel
+	 */
+	public void cancel() throws IOException {
+		for (ShellChannel channel : this.channels) {
+			channel.taskQueue.shutdown();
+			if (channel.running)
+				channel.close();
 		}
 	}
 
 	public int stopExecutions(List<CommandDescriptor> executions) throws IOException {
 		// FIXME: Improve the search string to identify deployed composites when
 		// the classpath is different (libraries are in different order)
-		String prompt = ShellUtils.ameliaPromptRegexp();
+		if (executions.isEmpty())
+			return 0;
 		List<String> components = new ArrayList<String>();
+		Expect expect = controlChannel().expect;
 
 		// Stop executions in reverse order (to avoid abruptly stopping
 		// components)
@@ -309,11 +1532,11 @@ public class SSHHandler extends Thread {
 			CommandDescriptor descriptor = executions.remove(i);
 			String command = prepareRunCommand(descriptor.toCommandString());
 			String[] data = command.split(" "); // data[0]: compositeName
-			this.expect.sendLine(ShellUtils.runningCompositeName(command));
-			Result r = this.expect.expect(regexp(prompt));
+			expect.sendLine(ShellUtils.runningCompositeName(command));
+			Result r = expect.expect(promptMatcher());
 			if (r.getBefore().contains(data[0])) {
-				this.expect.sendLine(ShellUtils.killCommand(command));
-				this.expect.expect(regexp(prompt));
+				expect.sendLine(ShellUtils.killCommand(command));
+				expect.expect(promptMatcher());
 				components.add(data[0]);
 				logger.info("Execution of composite " + data[0]
 						+ " was successfully stopped in " + this.host);
@@ -349,7 +1572,8 @@ public class SSHHandler extends Thread {
 	 * Stops current executions on the task queue
 	 */
 	public void shutdownTaskQueue() {
-		this.taskQueue.shutdown();
+		for (ShellChannel channel : this.channels)
+			channel.taskQueue.shutdown();
 	}
 
 	public void stopExecutions() throws IOException {
@@ -360,40 +1584,64 @@ public class SSHHandler extends Thread {
 		return this.executions;
 	}
 
+	/**
+	 * @return a new matcher recognizing the Amelia prompt of this session's
+	 *         shells, to be used in a single expect operation
+	 */
+	public net.sf.expectit.matcher.Matcher<Result> promptMatcher() {
+		return ShellUtils.promptMatcher(this.nonce);
+	}
+
+	/**
+	 * @return the expect instance of the channel used by the current thread
+	 */
 	public Expect expect() {
-		return this.expect;
+		ShellChannel channel = channel();
+		if (channel.pendingDirectory != null
+				|| !channel.pendingEnvironment.isEmpty()) {
+			// Apply the changes made by the exec commands to the shell
+			String command = ShellUtils.restoreStateCommand(
+					channel.pendingDirectory, channel.pendingEnvironment);
+			channel.pendingDirectory = null;
+			channel.pendingEnvironment.clear();
+			try {
+				channel.expect.sendLine(command);
+				channel.expect.expect(promptMatcher());
+			} catch (IOException e) {
+				throw new RuntimeException(e.getMessage(), e);
+			}
+		}
+		return channel.expect;
 	}
 
 	public boolean close() throws IOException {
-		if (this.expect != null)
-			this.expect.close();
-		if (this.channel != null && this.channel.isConnected())
-			this.channel.disconnect();
-		if (this.session != null && this.session.isConnected())
-			this.session.disconnect();
+		for (ShellChannel channel : this.channels) {
+			channel.taskQueue.shutdown();
+			channel.close();
+			channel.transcript.close();
+		}
+		closeSession();
 		return !this.isConnected();
 	}
 
 	public boolean isConnected() {
-		if (this.session == null || this.channel == null)
+		if (this.session == null || !this.session.isConnected())
 			return false;
-		return this.session.isConnected() && this.channel.isConnected();
+		for (ShellChannel channel : this.channels)
+			if (!channel.isConnected())
+				return false;
+		return true;
 	}
 
-	private File createOutputFile() throws Exception {
+	private File createOutputFile(int channel) throws Exception {
 		String date = this.dateFormat.format(new Date());
-		String fileName = this.host + "-" + date + ".txt";
+		String suffix = channel == 0 ? "" : "-" + channel;
+		String fileName = this.host + "-" + date + suffix + ".txt";
 		File parent = new File("sessions" + File.separator + this.subsystem);
-		File file = new File(parent, fileName);
-		try {
-			if (!parent.exists())
-				parent.mkdirs();
-			file.createNewFile();
-		} catch (IOException e) {
+		if (!(parent.exists() || parent.mkdirs()) || !parent.canWrite())
 			throw new Exception(
-					"The application does not have permission to create files", e);
-		}
-		return file;
+					"The application does not have permission to create files");
+		return new File(parent, fileName);
 	}
 
 	public Host host() {
@@ -401,10 +1649,42 @@ public class SSHHandler extends Thread {
 	}
 
 	/**
-	 * @return a runtime representation of the shell channel
+	 * @return a runtime representation of the shell channel used by the
+	 *         current thread
 	 */
 	public OutputLog outputLog() {
-		return this.outputLog;
+		return channel().outputLog;
+	}
+
+	/**
+	 * @return a runtime representation of the shell channel in which the
+	 *         given command was executed
+	 */
+	public OutputLog outputLog(final CommandDescriptor descriptor) {
+		return channel(descriptor).outputLog;
+	}
+
+	/**
+	 * @return a view of the output produced since the given command started
+	 *         in its channel, including the output of later commands in the
+	 *         same channel
+	 */
+	public CharSequence outputSince(final CommandDescriptor descriptor) {
+		Long offset = this.outputOffsets.get(descriptor);
+		OutputLog log = outputLog(descriptor);
+		return log.since(offset == null ? log.firstOffset() : offset);
+	}
+
+	/**
+	 * @return the output produced since the given command started in its
+	 *         channel, including the output evicted from memory
+	 * @see #outputSince(CommandDescriptor)
+	 */
+	public String fetchOutput(final CommandDescriptor descriptor)
+			throws IOException {
+		Long offset = this.outputOffsets.get(descriptor);
+		OutputLog log = outputLog(descriptor);
+		return log.fetch(offset == null ? 0 : offset, log.offset());
 	}
 
 }
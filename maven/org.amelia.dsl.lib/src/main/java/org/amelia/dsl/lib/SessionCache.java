@@ -0,0 +1,246 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.amelia.dsl.lib.descriptors.Host;
+import org.amelia.dsl.lib.util.Log;
+import org.amelia.dsl.lib.util.Threads;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Shares the SSH sessions among the subsystems of a deployment. Subsystems
+ * acquire the hosts they use and release them when they shut down; a session
+ * is closed once it has not been acquired for
+ * {@code amelia.session_idle_timeout} milliseconds, or when the deployment
+ * finishes.
+ * <p>
+ * A shared session keeps the output files of the subsystem that opened it.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class SessionCache {
+
+	private static class Entry {
+
+		/**
+		 * The number of subsystems using the session
+		 */
+		private int references;
+
+		/**
+		 * The scheduled closing of the session, if it is idle
+		 */
+		private ScheduledFuture<?> eviction;
+	}
+
+	/**
+	 * The sessions per host. Entries are never removed, so that each host is
+	 * always guarded by the same lock.
+	 */
+	private final Map<Host, Entry> entries;
+
+	private final ScheduledExecutorService evictor;
+
+	private final long idleTimeout;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(SessionCache.class);
+
+	public SessionCache() {
+		this.entries = new HashMap<Host, Entry>();
+		this.idleTimeout = Long.parseLong(
+				System.getProperty("amelia.session_idle_timeout"));
+		final ThreadFactory factory = Threads.threadFactory("amelia-session-evictor");
+		this.evictor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				// Idle sessions must not keep the JVM alive
+				Thread thread = factory.newThread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Acquires the SSH session of the given host, opening it if necessary.
+	 * 
+	 * @param host
+	 *            The host
+	 * @param subsystem
+	 *            The subsystem acquiring the session
+	 * @return whether a new session was opened
+	 * @throws Exception
+	 *             If the session cannot be opened
+	 */
+	public boolean acquire(final Host host, final String subsystem)
+			throws Exception {
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(host);
+			if (entry == null) {
+				entry = new Entry();
+				this.entries.put(host, entry);
+			}
+			entry.references++;
+			if (entry.eviction != null) {
+				entry.eviction.cancel(false);
+				entry.eviction = null;
+			}
+		}
+		synchronized (entry) {
+			try {
+				return host.openSSHConnection(subsystem);
+			} catch (Exception e) {
+				synchronized (this) {
+					entry.references--;
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Releases the SSH session of the given host. The session is closed once
+	 * it is idle.
+	 * 
+	 * @param host
+	 *            The host
+	 * @throws IOException
+	 *             If the session is closed right away and there is an error
+	 */
+	public void release(final Host host) throws IOException {
+		final Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(host);
+			if (entry == null || entry.references == 0)
+				return;
+			if (--entry.references > 0)
+				return;
+			if (this.idleTimeout > 0) {
+				entry.eviction = this.evictor.schedule(new Runnable() {
+					public void run() {
+						try {
+							evict(host, entry);
+						} catch (IOException e) {
+							logger.error(e);
+						}
+					}
+				}, this.idleTimeout, TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+		evict(host, entry);
+	}
+
+	/**
+	 * @return whether the session of the given host is being used by more
+	 *         than one subsystem
+	 */
+	public synchronized boolean isShared(final Host host) {
+		Entry entry = this.entries.get(host);
+		return entry != null && entry.references > 1;
+	}
+
+	private void evict(final Host host, final Entry entry) throws IOException {
+		synchronized (entry) {
+			synchronized (this) {
+				// The session was acquired again in the meantime
+				if (entry.references > 0)
+					return;
+				entry.eviction = null;
+			}
+			close(host);
+		}
+	}
+
+	private void close(final Host host) throws IOException {
+		boolean connected = host.ssh() != null && host.ssh().isConnected();
+		if (host.closeSSHConnection() && connected) {
+			logger.info("SSH connection for " + host
+					+ " was successfully closed");
+		}
+	}
+
+	/**
+	 * Closes all of the sessions, regardless of whether they are being used
+	 */
+	public void closeAll() {
+		List<Host> hosts;
+		synchronized (this) {
+			hosts = new ArrayList<Host>(this.entries.keySet());
+		}
+		boolean connected = false;
+		for (Host host : hosts)
+			connected |= host.ssh() != null;
+		if (connected)
+			Log.info("Closing SSH connections");
+		// Close the sessions in parallel
+		ThreadFactory factory = Threads.threadFactory("amelia-session-close");
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final Host host : hosts) {
+			final Entry entry;
+			synchronized (this) {
+				entry = this.entries.get(host);
+				entry.references = 0;
+				if (entry.eviction != null) {
+					entry.eviction.cancel(false);
+					entry.eviction = null;
+				}
+			}
+			Thread thread = factory.newThread(new Runnable() {
+				public void run() {
+					synchronized (entry) {
+						try {
+							close(host);
+						} catch (IOException e) {
+							logger.error(e);
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		this.evictor.shutdownNow();
+	}
+
+}
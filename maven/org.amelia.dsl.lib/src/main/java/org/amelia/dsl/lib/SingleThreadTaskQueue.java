@@ -22,18 +22,26 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.amelia.dsl.lib.util.Threads;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
+ * Runs the tasks submitted to it one at a time, in a single thread, by
+ * priority. Each task is handed directly to the dispatching thread, which
+ * blocks while the queue is empty.
+ * <p>
+ * Tasks are not batched: {@link DescriptorGraph} releases each command's
+ * dependants, readiness checks and failure handling as soon as that command
+ * finishes, so every command is submitted on its own.
+ * 
  * @author Miguel Jiménez - Initial contribution and API
  */
-public class SingleThreadTaskQueue extends Thread {
+public class SingleThreadTaskQueue implements Runnable {
 	
 	/**
 	 * The logger
@@ -45,16 +53,34 @@ public class SingleThreadTaskQueue extends Thread {
 		public void onComplete(V result);
 
 		public void onCancel();
+
+		public void onFailure(Exception e);
 	}
 
-	private class CallbackTask<V> implements Runnable {
+	private class CallbackTask<V>
+			implements Runnable, Comparable<CallbackTask<?>> {
 
 		private final Callable<V> task;
 		private final Callback<V> callback;
+		private final long priority;
+		private final long sequence;
 
-		public CallbackTask(Callable<V> task, Callback<V> callback) {
+		public CallbackTask(Callable<V> task, Callback<V> callback,
+				long priority) {
 			this.task = task;
 			this.callback = callback;
+			this.priority = priority;
+			this.sequence = sequencer.getAndIncrement();
+		}
+
+		/**
+		 * Higher priority first; same priority in arrival order
+		 */
+		public int compareTo(CallbackTask<?> o) {
+			if (this.priority != o.priority)
+				return this.priority > o.priority ? -1 : 1;
+			return this.sequence < o.sequence ? -1
+					: (this.sequence == o.sequence ? 0 : 1);
 		}
 
 		public void run() {
@@ -62,53 +88,97 @@ public class SingleThreadTaskQueue extends Thread {
 				V result = this.task.call();
 				this.callback.onComplete(result);
 			} catch (Exception e) {
+				// The failure is reported to the caller, the queue goes on
 				logger.error(e);
-				this.callback.onCancel();
-				throw new RuntimeException(e.getMessage(), e.getCause());
+				this.callback.onFailure(e);
 			}
 		}
 	}
 
-	private final ExecutorService executor;
-	private final LinkedBlockingDeque<CallbackTask<?>> dispatchQueue;
+	private final PriorityBlockingQueue<CallbackTask<?>> dispatchQueue;
+	private final AtomicLong sequencer;
+	private final Thread thread;
 	private volatile boolean shutdown;
 
+	/**
+	 * Wakes the dispatching thread up when the queue is shut down
+	 */
+	private final CallbackTask<Void> stopTask;
+
 	public SingleThreadTaskQueue() {
-		this.executor = Executors.newSingleThreadExecutor();
-		this.dispatchQueue = new LinkedBlockingDeque<CallbackTask<?>>();
+		this.dispatchQueue = new PriorityBlockingQueue<CallbackTask<?>>();
+		this.sequencer = new AtomicLong();
+		this.stopTask = new CallbackTask<Void>(null, null, Long.MAX_VALUE);
+		this.thread = Threads.threadFactory("amelia-task-queue").newThread(this);
+	}
+
+	/**
+	 * Starts dispatching the queued tasks
+	 */
+	public void start() {
+		this.thread.start();
 	}
 
+	/**
+	 * Runs the queued tasks one at a time in this queue's thread. The thread
+	 * blocks while there are no pending tasks.
+	 */
 	public void run() {
 		while (!this.shutdown) {
 			CallbackTask<?> task = null;
 			try {
-				task = this.dispatchQueue.pollFirst(10, TimeUnit.MILLISECONDS);
-				if (task != null)
-					this.executor.submit(task).get();
-			} catch (Exception e) {
-				logger.error(e);
-				throw new RuntimeException(e.getMessage(), e.getCause());
+				task = this.dispatchQueue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
 			}
+			if (task != stopTask)
+				task.run();
 		}
 	}
 
 	public synchronized void shutdown() {
 		if (!this.shutdown) {
 			this.shutdown = true;
-			this.executor.shutdown();
 			// release locks of canceled tasks
-			for (CallbackTask<?> task : dispatchQueue) {
-				task.callback.onCancel();
+			List<CallbackTask<?>> canceled = new ArrayList<CallbackTask<?>>();
+			this.dispatchQueue.drainTo(canceled);
+			for (CallbackTask<?> task : canceled) {
+				if (task != stopTask)
+					task.callback.onCancel();
 			}
+			// wake the dispatching thread up
+			this.dispatchQueue.add(stopTask);
 		}
 	}
 
-	public <V> V execute(final Callable<V> task) throws InterruptedException {
+	public <V> V execute(final Callable<V> task)
+			throws InterruptedException, ExecutionException {
+		return execute(task, 0);
+	}
+
+	/**
+	 * Executes the given task and waits for it to finish. Pending tasks with
+	 * higher priority are executed first.
+	 * 
+	 * @param task
+	 *            The task to execute
+	 * @param priority
+	 *            The priority of the task
+	 * @return the result of the task, or {@code null} if it is canceled
+	 * @throws InterruptedException
+	 *             If the current thread is interrupted while waiting
+	 * @throws ExecutionException
+	 *             If the task throws an exception
+	 */
+	public <V> V execute(final Callable<V> task, final long priority)
+			throws InterruptedException, ExecutionException {
 		final CountDownLatch signal = new CountDownLatch(1);
 		final List<V> _return = new ArrayList<V>();
+		final List<Exception> failure = new ArrayList<Exception>();
 		_return.add(0, null);
 
-		this.dispatchQueue.add(new CallbackTask<V>(task, new Callback<V>() {
+		CallbackTask<V> callbackTask = new CallbackTask<V>(task, new Callback<V>() {
 			public void onComplete(V result) {
 				_return.add(0, result);
 				signal.countDown();
@@ -116,9 +186,20 @@ public class SingleThreadTaskQueue extends Thread {
 			public void onCancel() {
 				signal.countDown();
 			}
-		}));
+			public void onFailure(Exception e) {
+				failure.add(e);
+				signal.countDown();
+			}
+		}, priority);
+		this.dispatchQueue.add(callbackTask);
+		// The task may have arrived after the queue was drained
+		if (this.shutdown && this.dispatchQueue.remove(callbackTask))
+			return null;
 
 		signal.await();
+		if (!failure.isEmpty())
+			throw new ExecutionException(failure.get(0).getMessage(),
+					failure.get(0));
 		return _return.get(0);
 	}
 
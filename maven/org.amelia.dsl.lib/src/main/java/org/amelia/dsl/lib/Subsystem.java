@@ -23,6 +23,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
 import org.amelia.dsl.lib.util.Log;
 
 /**
@@ -30,7 +31,7 @@ import org.amelia.dsl.lib.util.Log;
  */
 public class Subsystem {
 
-	public abstract static class Deployment extends OpenObservable {
+	public abstract static class Deployment {
 
 		protected DescriptorGraph graph;
 		
@@ -62,6 +63,15 @@ public class Subsystem {
 		 * <b>Note</b>: DSL-only intended use
 		 */
 		public void setup() {}
+
+		/**
+		 * <b>Note</b>: DSL-only intended use
+		 * 
+		 * @return the rules of this deployment, once it is set up
+		 */
+		public CommandDescriptor[] getAllRules() {
+			return new CommandDescriptor[0];
+		}
 	}
 	
 	private final UUID uuid;
@@ -80,9 +90,9 @@ public class Subsystem {
 	}
 
 	public void start() {
-		Log.print(Log.SEPARATOR_LONG);
-		Log.print("Deploying subsystem '" + alias + "'");
-		Log.print(Log.SEPARATOR_LONG);
+		// A single message, so concurrent deployments do not interleave it
+		Log.print(Log.SEPARATOR_LONG + "\nDeploying subsystem '" + alias
+				+ "'\n" + Log.SEPARATOR_LONG);
 	}
 
 	public void error() {
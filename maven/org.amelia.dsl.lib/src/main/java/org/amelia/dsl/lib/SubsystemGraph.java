@@ -23,18 +23,25 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import org.amelia.dsl.lib.util.ANSI;
 import org.amelia.dsl.lib.util.Configuration;
 import org.amelia.dsl.lib.util.Log;
+import org.amelia.dsl.lib.util.SharedFiles;
 import org.amelia.dsl.lib.util.Threads;
+import org.amelia.dsl.lib.util.TranscriptWriter;
+import org.amelia.dsl.lib.util.TransferManifest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -48,65 +55,87 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 	 */
 	private static Logger logger = LogManager.getLogger(SubsystemGraph.class);
 
-	public class DependencyThread extends Thread
-			implements Observer, Comparable<DependencyThread> {
+	public class DependencyTask
+			implements Runnable, Comparable<DependencyTask> {
 
 		private final UUID internalId;
 		private final Subsystem subsystem;
 		private final List<Subsystem> dependencies;
-		private final CountDownLatch doneSignal;
-		private final CountDownLatch mainDoneSignal;
+		private final CompletableFuture<Void> future;
+		private volatile Throwable failedDependency;
 		private volatile boolean shutdown;
-		private final SingleThreadTaskQueue taskQueue;
 
-		public DependencyThread(final Subsystem subsystem,
-				final List<Subsystem> dependencies,
-				final CountDownLatch doneSignal,
-				final SingleThreadTaskQueue taskQueue) {
+		public DependencyTask(final Subsystem subsystem,
+				final List<Subsystem> dependencies) {
 			this.internalId = UUID.randomUUID();
 			this.subsystem = subsystem;
 			this.dependencies = dependencies;
-			this.doneSignal = new CountDownLatch(dependencies.size());
-			this.mainDoneSignal = doneSignal;
+			this.future = new CompletableFuture<Void>();
 			this.shutdown = false;
-			this.taskQueue = taskQueue;
+		}
 
-			// Make this thread observe the corresponding dependencies
-			for (Subsystem dependency : this.dependencies)
-				dependency.deployment().addObserver(this);
+		/**
+		 * Schedules this task in the worker pool once the given futures, those
+		 * of the subsystems on which this task depends, are completed.
+		 */
+		public void schedule(final CompletableFuture<?>[] dependencies) {
+			CompletableFuture.allOf(dependencies).whenComplete(
+					new BiConsumer<Void, Throwable>() {
+				@Override public void accept(Void result, Throwable cause) {
+					failedDependency = cause;
+					try {
+						executor.execute(DependencyTask.this);
+					} catch (RejectedExecutionException e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
 		}
 
 		public void run() {
+			boolean deployed = false;
 			try {
-				this.doneSignal.await();
-				if (!this.shutdown) {
-					taskQueue.execute(new Callable<Void>() {
-						public Void call() throws Exception {
-							subsystem.start();
-							subsystem.deployment().deploy(subsystem.alias(),
-									dependencies);
-							if (!shutdown)
-								subsystem.done();
-							else
-								subsystem.error();
-							return null;
-						}
-					});
-					this.subsystem.deployment().setChanged();
-					this.subsystem.deployment().notifyObservers();
+				if (!this.shutdown && this.failedDependency == null) {
+					preConnections.await(this.subsystem);
+					deployed = true;
+					deploy();
+					this.future.complete(null);
+				} else {
+					this.future.completeExceptionally(
+							new CancellationException(this.subsystem.alias()
+									+ " was not deployed"));
 				}
 			} catch (Exception e) {
 				logger.error(e);
 				this.subsystem.error();
+				this.future.completeExceptionally(e);
 				throw new RuntimeException(e.getMessage(), e.getCause());
 			} finally {
-				// Notify to main thread
-				this.mainDoneSignal.countDown();
+				try {
+					preConnections.release(this.subsystem, deployed);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private void deploy() throws Exception {
+			Log.setContext(this.subsystem.alias());
+			try {
+				this.subsystem.start();
+				this.subsystem.deployment().deploy(this.subsystem.alias(),
+						this.dependencies);
+				if (!this.shutdown)
+					this.subsystem.done();
+				else
+					this.subsystem.error();
+			} finally {
+				Log.clearContext();
 			}
 		}
 
-		public synchronized void update(Observable o, Object arg) {
-			this.doneSignal.countDown();
+		public CompletableFuture<Void> future() {
+			return this.future;
 		}
 
 		public boolean equals(Object obj) {
@@ -114,18 +143,15 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 				return true;
 			else if ((null == obj) || (obj.getClass() != this.getClass()))
 				return false;
-			return this.compareTo((DependencyThread) obj) == 0;
+			return this.compareTo((DependencyTask) obj) == 0;
 		}
 
-		public int compareTo(DependencyThread o) {
+		public int compareTo(DependencyTask o) {
 			return this.internalId.compareTo(o.internalId);
 		}
 
 		public void shutdown() {
 			this.shutdown = true;
-			this.subsystem.deployment().deleteObserver(this);
-			while (this.doneSignal.getCount() > 0)
-				this.doneSignal.countDown();
 		}
 	}
 
@@ -136,9 +162,28 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 
 	private final List<Subsystem> subsystems;
 
-	private final TreeSet<DependencyThread> threads;
+	private final TreeSet<DependencyTask> tasks;
+
+	/**
+	 * Bounds the number of subsystems being deployed at the same time
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The SSH sessions shared among the subsystems
+	 */
+	private final SessionCache sessions;
+
+	/**
+	 * The sessions to the jump hosts, shared by the sessions tunnelled
+	 * through them
+	 */
+	private final JumpHosts jumpHosts;
 
-	private final SingleThreadTaskQueue taskQueue;
+	/**
+	 * The connections established ahead of the subsystems' deployment
+	 */
+	private final PreConnections preConnections;
 
 	private volatile boolean shutdown;
 
@@ -147,9 +192,14 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 	private SubsystemGraph() {
 		new Configuration().setProperties();
 		this.subsystems = new ArrayList<Subsystem>();
-		this.threads = new TreeSet<DependencyThread>();
-		this.taskQueue = new SingleThreadTaskQueue();
-		this.taskQueue.start();
+		this.tasks = new TreeSet<DependencyTask>();
+		this.sessions = new SessionCache();
+		this.jumpHosts = new JumpHosts();
+		this.preConnections = new PreConnections(this.sessions);
+		this.executor = Executors.newFixedThreadPool(
+				Math.max(1, Integer.parseInt(
+						System.getProperty("amelia.subsystem_parallelism"))),
+				Threads.threadFactory("amelia-subsystem"));
 	}
 
 	public static SubsystemGraph getInstance() {
@@ -209,20 +259,54 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 		boolean successful = false;
 		Log.printBanner();
 		if (validate()) {
-			CountDownLatch doneSignal = new CountDownLatch(this.subsystems.size());
+			Map<Subsystem, DependencyTask> tasksPerSubsystem = 
+					new HashMap<Subsystem, DependencyTask>();
 			for (Subsystem subsystem : this.subsystems) {
-				List<Subsystem> dependencies = get(subsystem);
-				DependencyThread thread = new DependencyThread(subsystem,
-						dependencies, doneSignal, this.taskQueue);
-				threads.add(thread);
+				DependencyTask task = new DependencyTask(subsystem,
+						get(subsystem));
+				tasksPerSubsystem.put(subsystem, task);
+				tasks.add(task);
 			}
+			// The summary reports this execution only
+			SSHHandler.resetReconnections();
+			SSHHandler.OutputLog.resetMemoryStatistics();
+			SharedFiles.resetStatistics();
 			Log.info("Resolving subsystems (" + this.subsystems.size() + ")");
 			long start = System.nanoTime();
-			for (DependencyThread thread : this.threads) {
-				thread.start();
+			// Connect the hosts of the subsystems waiting for others
+			if (PreConnections.isEnabled())
+				for (Subsystem subsystem : this.subsystems)
+					if (!get(subsystem).isEmpty())
+						this.preConnections.start(subsystem);
+			CompletableFuture<?>[] futures = 
+					new CompletableFuture<?>[this.subsystems.size()];
+			for (int i = 0; i < futures.length; i++) {
+				Subsystem subsystem = this.subsystems.get(i);
+				List<Subsystem> dependencies = get(subsystem);
+				CompletableFuture<?>[] dependencyFutures = 
+						new CompletableFuture<?>[dependencies.size()];
+				for (int j = 0; j < dependencyFutures.length; j++)
+					dependencyFutures[j] = tasksPerSubsystem
+							.get(dependencies.get(j)).future();
+				tasksPerSubsystem.get(subsystem).schedule(dependencyFutures);
+				futures[i] = tasksPerSubsystem.get(subsystem).future();
+			}
+			// Wait for all subsystems to finish
+			try {
+				CompletableFuture.allOf(futures).get();
+			} catch (ExecutionException | CancellationException e) {
+				// Failed subsystems are reported by the worker deploying them
+			}
+			this.executor.shutdown();
+			this.preConnections.shutdown();
+			SharedFiles.clear();
+			TransferManifest.clear();
+			// The transcripts are complete before reporting the execution
+			try {
+				TranscriptWriter.drain();
+			} catch (IOException e) {
+				logger.error("Cannot write the session transcripts", e);
 			}
-			// Wait for all threads to finish
-			doneSignal.await();
 			successful = !Threads.isAnySubsystemAborting();
 			if (shutdownAfterDeployment || !successful) {
 				shutdown(stopExecutedComponents);
@@ -259,9 +343,6 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 	
 	private void printExecutionSummary(final long start, final long end,
 			final boolean waitAfterDeployment) throws InterruptedException {
-		// FIXME: find out why this line is reached without closing all SSH
-		// connections
-		Thread.sleep(500);
 		StringBuilder sb = new StringBuilder();
 		sb.append(Log.SEPARATOR_LONG + "\n");
 		if (!Threads.isAnySubsystemAborting()) {
@@ -272,6 +353,22 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 		sb.append(Log.SEPARATOR_LONG + "\n");
 		sb.append("Total time: "
 				+ TimeUnit.SECONDS.convert(end - start, TimeUnit.NANOSECONDS) + "s\n");
+		Runtime runtime = Runtime.getRuntime();
+		long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+		sb.append("Session output in memory (peak): "
+				+ toMegabytes(SSHHandler.OutputLog.peakMemory()) + "MB ("
+				+ toMegabytes(SSHHandler.OutputLog.evictedMemory())
+				+ "MB evicted to the transcripts)\n");
+		sb.append("Heap usage: " + toMegabytes(usedHeap) + "MB/"
+				+ toMegabytes(runtime.maxMemory()) + "MB\n");
+		if (SharedFiles.readBytes() > 0)
+			sb.append("Shared file buffers: "
+					+ toMegabytes(SharedFiles.readBytes()) + "MB read, "
+					+ toMegabytes(SharedFiles.servedBytes()) + "MB uploaded\n");
+		int reconnections = SSHHandler.reconnections();
+		if (reconnections > 0)
+			sb.append("SSH reconnections: " + reconnections + " (average "
+					+ SSHHandler.reconnectionTime() / reconnections + " ms)\n");
 		sb.append("Finished at: " + new Date());
 		Log.print(sb.toString());
 		if (waitAfterDeployment)
@@ -280,12 +377,16 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 			Log.print(Log.SEPARATOR_LONG);
 	}
 
+	private static long toMegabytes(final long bytes) {
+		return bytes / (1024 * 1024);
+	}
+
 	public void shutdown(final boolean stopExecutedComponents) {
 		if(!this.shutdown) {
 			this.shutdown = true;
-			this.taskQueue.shutdown();
-			for (DependencyThread thread : this.threads)
-				thread.shutdown();
+			for (DependencyTask task : this.tasks)
+				task.shutdown();
+			this.preConnections.shutdown();
 			
 			// There is at least one subsystem to shutdown
 			for (int i = 0, n = 0; n == 0 && i < this.subsystems.size(); i++)
@@ -298,7 +399,17 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 			for (Subsystem subsystem : this.subsystems)
 				if(!subsystem.deployment().isShutdown())
 					subsystem.deployment().shutdown(stopExecutedComponents);
+			this.sessions.closeAll();
+			this.jumpHosts.closeAll();
 		}
 	}
 
+	public SessionCache sessions() {
+		return this.sessions;
+	}
+
+	public JumpHosts jumpHosts() {
+		return this.jumpHosts;
+	}
+
 }
@@ -29,6 +29,18 @@ import org.amelia.dsl.lib.util.Log;
 import org.amelia.dsl.lib.util.Pair;
 
 /**
+ * A set of local files and directories to upload to each host, along with
+ * their remote destinations.
+ * <p>
+ * With {@code overwrite}, an existing remote directory is removed before
+ * uploading the local one. Without it, all of the files are uploaded over
+ * the existing directory. If incremental transfers are enabled (see
+ * {@link org.amelia.dsl.lib.util.TransferManifest}), an existing remote
+ * directory is never removed: only the new and changed files are uploaded,
+ * over the remote ones, whether {@code overwrite} is set or not. The only
+ * difference is that {@code overwrite} removes the remote files that no
+ * longer exist locally.
+ * 
  * @author Miguel Jiménez - Initial contribution and API
  */
 public class AssetBundle extends CommandDescriptor {
@@ -48,8 +60,12 @@ public class AssetBundle extends CommandDescriptor {
 			public Object call(Host host, String prompt, boolean quiet)
 				throws Exception {
 				try {
-					host.ftp().upload(that);
-					if (!quiet) Log.success(host, that.doneMessage());
+					long start = System.nanoTime();
+					long bytes = usesSftp()
+							? host.ssh().upload(that)
+							: host.ftp().upload(that);
+					long time = System.nanoTime() - start;
+					if (!quiet) Log.success(host, that.describe(throughput(bytes, time)));
 				} catch (Exception e) {
 					if (!quiet) Log.error(host, that.failMessage());
 					throw e;
@@ -62,6 +78,16 @@ public class AssetBundle extends CommandDescriptor {
 	public AssetBundle() {
 		this(new HashMap<String, List<String>>(), true);
 	}
+
+	/**
+	 * @return whether bundles are uploaded through the SSH session (SFTP)
+	 *         rather than an FTP connection, according to property
+	 *         {@code amelia.transfer_protocol}
+	 */
+	public static boolean usesSftp() {
+		return "sftp".equalsIgnoreCase(
+				System.getProperty("amelia.transfer_protocol"));
+	}
 	
 	@Override public String doneMessage() {
 		return toString();
@@ -148,14 +174,40 @@ public class AssetBundle extends CommandDescriptor {
 		return this.transfers;
 	}
 
+	/**
+	 * @param bytes
+	 *            The number of bytes transferred
+	 * @param nanos
+	 *            The duration of the transfer, in nanoseconds
+	 * @return a description of the amount and speed of the transfer
+	 */
+	private static String throughput(long bytes, long nanos) {
+		double seconds = nanos / 1e9;
+		double megabytes = bytes / (1024.0 * 1024.0);
+		return String.format("%.1f MB in %.1f s, %.1f MB/s", megabytes,
+				seconds, seconds > 0 ? megabytes / seconds : 0);
+	}
+
 	@Override
 	public String toString() {
+		return describe(null);
+	}
+
+	/**
+	 * @param details
+	 *            Additional details to show after the title, or {@code null}
+	 * @return a description of the transfers of this bundle
+	 */
+	private String describe(String details) {
 		if (this.transfers.isEmpty())
 			return "No files to transfer";
 
 		StringBuilder sb = new StringBuilder();
 		String s = (this.transfers.size() > 1 ? "s" : "");
-		sb.append("Successful transfer" + s + "\n");
+		sb.append("Successful transfer" + s);
+		if (details != null)
+			sb.append(" (" + details + ")");
+		sb.append("\n");
 		int t = 0;
 		
 		for (String local : transfers.keySet()) {
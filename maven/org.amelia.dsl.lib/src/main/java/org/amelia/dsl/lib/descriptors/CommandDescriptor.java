@@ -22,14 +22,16 @@ import static net.sf.expectit.matcher.Matchers.regexp;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Observable;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.amelia.dsl.lib.CallableTask;
+import org.amelia.dsl.lib.ReadinessProbe;
+import org.amelia.dsl.lib.SSHHandler;
 import org.amelia.dsl.lib.util.Arrays;
 import org.amelia.dsl.lib.util.Log;
+import org.amelia.dsl.lib.util.MarkerMatcher;
 import org.amelia.dsl.lib.util.ShellUtils;
 import org.amelia.dsl.lib.util.Strings;
 
@@ -38,11 +40,29 @@ import com.google.common.collect.Iterables;
 
 import net.sf.expectit.Expect;
 import net.sf.expectit.ExpectIOException;
+import net.sf.expectit.Result;
 
 /**
  * @author Miguel Jiménez - Initial contribution and API
  */
-public class CommandDescriptor extends Observable {
+public class CommandDescriptor {
+
+	/**
+	 * The way commands are sent to the hosts
+	 */
+	public static enum Transport {
+		/**
+		 * An interactive shell, recognizing the end of the command through
+		 * the Amelia prompt or the release regular expression
+		 */
+		SHELL,
+		/**
+		 * A non-interactive exec channel per command. It only applies to
+		 * commands released by the Amelia prompt and executed by the default
+		 * callable task; other commands use the shell.
+		 */
+		EXEC
+	}
 	
 	public static class Builder {
 
@@ -55,6 +75,9 @@ public class CommandDescriptor extends Observable {
 		public String successMessage;
 		public CallableTask<Object> callable;
 		public boolean execution;
+		public ReadinessProbe readinessProbe;
+		public long readinessTimeout;
+		public Transport transport;
 
 		public Builder() {
 			this.command = "";
@@ -65,6 +88,7 @@ public class CommandDescriptor extends Observable {
 			this.errorMessage = "";
 			this.successMessage = "";
 			this.execution = false;
+			this.readinessTimeout = 0;
 		}
 		
 		public Builder withCommand(final String command) {
@@ -115,7 +139,27 @@ public class CommandDescriptor extends Observable {
 		public Builder isExecution() {
 			this.execution = true;
 			return this;
-		}	
+		}
+
+		public Builder withReadinessProbe(final ReadinessProbe probe) {
+			this.readinessProbe = probe;
+			return this;
+		}
+
+		public Builder withReadinessTimeout(final long timeout) {
+			this.readinessTimeout = timeout;
+			return this;
+		}
+
+		/**
+		 * @param transport
+		 *            The transport of this command. By default, property
+		 *            {@code amelia.transport} decides
+		 */
+		public Builder withTransport(final Transport transport) {
+			this.transport = transport;
+			return this;
+		}
 
 		public CommandDescriptor build() {
 			if (this.errorMessage == null || this.errorMessage.isEmpty())
@@ -129,37 +173,53 @@ public class CommandDescriptor extends Observable {
 			return new CallableTask<Object>() {
 				@Override public String call(Host host, String prompt, boolean quiet)
 					throws Exception {
-					String output = new String();
+					// Execute the command and expect for a successful execution
+					String _command = command + " " + Arrays.join(arguments, " ");
+					if (usesExecTransport())
+						return exec(host, _command, quiet);
+					String output;
 					Expect expect = host.ssh().expect();
 					if (timeout == -1)
 						expect = expect.withInfiniteTimeout();
 					else if (timeout > 0)
 						expect = expect.withTimeout(timeout, TimeUnit.MILLISECONDS);
-					// Execute the command and expect for a successful execution
-					String _command = command + " " + Arrays.join(arguments, " ");
+					// The exit code is printed after the command, between
+					// markers that cannot be confused with its output
+					String nonce = UUID.randomUUID().toString().replace("-", "");
 					try {
 						// There is only one command being executed in this connection
-						expect.sendLine(_command);
-						int from = host.ssh().outputLog().logs().size();
-						String response = expect.expect(regexp(releaseRegexp)).getBefore();
-
-						// Make sure to receive the output: send an empty line to wait while
-						// expect finishes feeding the appendable
-						expect.sendLine();
-						expect.expect(regexp(prompt));
-						
-						int to = host.ssh().outputLog().logs().size() - 1;
-						if (from <= to) {
-							for (CharSequence csq: host.ssh().outputLog().logs().subList(from, to))
-								output += csq;
+						expect.sendLine(ShellUtils.sentinelCommand(_command, nonce));
+						String response = "";
+						String release = "";
+						if (!releaseRegexp.equals(prompt)) {
+							Result result = expect.expect(regexp(releaseRegexp));
+							response = result.getBefore();
+							release = result.group();
 						}
+						// Long outputs are consumed as they arrive
+						Result sentinel = MarkerMatcher.expect(expect,
+								ShellUtils.sentinelMatcher(nonce),
+								timeout != 0 ? timeout : Long.parseLong(System
+										.getProperty("amelia.execution_timeout")));
+						// Drop the line break printed before the sentinel
+						String before = sentinel.getBefore();
+						if (before.endsWith("\n"))
+							before = before.substring(0, before.length() - 1);
+						// With a retention limit, only the end of the output
+						// is kept; SSHHandler#fetchOutput reads all of it
+						output = Strings.tail(outputRetention(), response,
+								release, before);
+						if (releaseRegexp.equals(prompt))
+							response = before;
+						String returnCode = sentinel.group(1);
+						// Consume the prompt following the command
+						expect.expect(host.ssh().promptMatcher());
+
 						if (Strings.containsAnyOf(response, errorTexts)) {
 							if(!quiet) Log.error(host, errorMessage);
 							throw new RuntimeException(errorMessage);
 						} else {
 							// Check non-zero error code
-							expect.sendLine("echo --$?--");
-							String returnCode = expect.expect(regexp("\\-\\-([0-9]+)\\-\\-")).group(1);
 							if (!returnCode.equals("0"))
 								throw new RuntimeException(
 									String.format(
@@ -195,6 +255,49 @@ public class CommandDescriptor extends Observable {
 				}
 			};
 		}
+
+		private boolean usesExecTransport() {
+			Transport _transport = transport != null ? transport
+					: Transport.valueOf(System.getProperty("amelia.transport")
+							.toUpperCase());
+			// Other release expressions wait for a specific output
+			return _transport == Transport.EXEC
+					&& releaseRegexp.equals(ShellUtils.ameliaPromptRegexp());
+		}
+
+		private String exec(Host host, String _command, boolean quiet)
+				throws Exception {
+			SSHHandler.ExecResult result = host.ssh().exec(_command, timeout);
+			if (Strings.containsAnyOf(result.output() + result.error(),
+					errorTexts)) {
+				if(!quiet) Log.error(host, errorMessage);
+				throw new RuntimeException(errorMessage);
+			} else if (result.exitStatus() != 0) {
+				throw new RuntimeException(
+					String.format(
+						"The command '%s...' returned a non-zero error code (%s)",
+						_command.substring(0, Math.min(_command.length(), 10)).trim(),
+						result.exitStatus()
+					)
+				);
+			}
+			if(!quiet)
+				Log.success(
+					host,
+					successMessage == null || successMessage.isEmpty()
+						? _command : successMessage
+				);
+			return Strings.tail(outputRetention(), result.output());
+		}
+
+		/**
+		 * @return the maximum number of characters of output returned by a
+		 *         command, or 0 for no limit
+		 */
+		private long outputRetention() {
+			return Long.parseLong(
+					System.getProperty("amelia.output_log_retention"));
+		}
 	}
 
 	protected final UUID internalId;
@@ -206,6 +309,9 @@ public class CommandDescriptor extends Observable {
 	protected final long timeout;
 	protected CallableTask<Object> callable;
 	protected final boolean execution;
+	protected final ReadinessProbe readinessProbe;
+	protected final long readinessTimeout;
+	protected final Transport transport;
 	private final List<CommandDescriptor> dependencies;
 	private final List<Host> hosts;
 
@@ -227,6 +333,9 @@ public class CommandDescriptor extends Observable {
 		this.successMessage = builder.successMessage;
 		this.callable = builder.callable;
 		this.execution = builder.execution;
+		this.readinessProbe = builder.readinessProbe;
+		this.readinessTimeout = builder.readinessTimeout;
+		this.transport = builder.transport;
 		this.dependencies = new ArrayList<CommandDescriptor>();
 		this.hosts = new ArrayList<Host>();
 		this.executionConditions = new ArrayList<Supplier<Boolean>>();
@@ -250,7 +359,10 @@ public class CommandDescriptor extends Observable {
 				.withErrorText(errorTexts())
 				.withReleaseRegexp(releaseRegexp())
 				.withSuccessMessage(successMessage())
-				.withTimeout(timeout());
+				.withTimeout(timeout())
+				.withReadinessProbe(readinessProbe())
+				.withReadinessTimeout(readinessTimeout())
+				.withTransport(transport());
 		if (isExecution())
 			builder.isExecution();
 		CommandDescriptor result = builder.build();
@@ -264,8 +376,56 @@ public class CommandDescriptor extends Observable {
 				|| Strings.containsAnyOf(response, this.errorTexts);
 	}
 
+	/**
+	 * Invoked once this command has been executed on the given host. It does
+	 * nothing by default; dependent commands are released by the
+	 * {@link org.amelia.dsl.lib.DescriptorGraph}.
+	 * 
+	 * @param host
+	 *            The host in which the command was executed
+	 */
 	public void done(Host host) {
-		setChanged();
+	}
+
+	/**
+	 * Waits until the service started by this command is ready in the given
+	 * host. The readiness probe is polled every
+	 * {@code amelia.readiness_interval} milliseconds, until the readiness
+	 * timeout expires. Executions without a probe wait for
+	 * {@code amelia.execution_grace_period} milliseconds instead.
+	 * 
+	 * @param host
+	 *            The host in which the command was executed
+	 * @throws Exception
+	 *             If the service is not ready before the timeout, or the probe
+	 *             fails
+	 */
+	public void awaitReadiness(Host host) throws Exception {
+		if (this.readinessProbe == null) {
+			if (this.execution) {
+				// Avoids service-not-bound errors (RMI) in FraSCAti executions
+				Thread.sleep(Long.parseLong(
+						System.getProperty("amelia.execution_grace_period")));
+			}
+			return;
+		}
+		long interval = Long.parseLong(
+				System.getProperty("amelia.readiness_interval"));
+		long timeout = this.readinessTimeout > 0 ? this.readinessTimeout
+				: Long.parseLong(System.getProperty("amelia.readiness_timeout"));
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!this.readinessProbe.isReady(host, this)) {
+			if (timeout > 0 && System.currentTimeMillis() >= deadline) {
+				String message = String.format(
+					"Operation timeout waiting for %s to be ready in host %s",
+					toCommandString(),
+					host
+				);
+				Log.error(host, failMessage() + " is not ready");
+				throw new RuntimeException(message);
+			}
+			Thread.sleep(interval);
+		}
 	}
 
 	public String doneMessage() {
@@ -439,4 +599,16 @@ public class CommandDescriptor extends Observable {
 	public boolean isExecution() {
 		return this.execution;
 	}
+
+	public ReadinessProbe readinessProbe() {
+		return this.readinessProbe;
+	}
+
+	public long readinessTimeout() {
+		return this.readinessTimeout;
+	}
+
+	public Transport transport() {
+		return this.transport;
+	}
 }
@@ -51,6 +51,11 @@ public class Host implements Comparable<Host> {
 
 	private FTPHandler ftp;
 
+	/**
+	 * The host through which the SSH session is tunnelled, if any
+	 */
+	private Host jumpHost;
+
 	private int fixedWith;
 
 	public Host(final String hostname, final int ftpPort, final int sshPort,
@@ -85,12 +90,19 @@ public class Host implements Comparable<Host> {
 			this.ssh = new SSHHandler(this, subsystem);
 
 		if (!this.ssh.isConnected()) {
-			this.ssh.setup();
-			this.ssh.start();
-			this.ssh.join();
+			long start = System.currentTimeMillis();
+			if (this.ssh.isStarted()) {
+				// A shared session dropped (e.g., while idle)
+				this.ssh.reconnect();
+			} else {
+				this.ssh.setup();
+				this.ssh.start();
+				this.ssh.join();
+			}
 
 			if (this.ssh.isConnected()) {
-				Log.success(this, "Connection established");
+				Log.success(this, "Connection established ("
+						+ (System.currentTimeMillis() - start) + " ms)");
 				opened = true;
 			}
 		} else {
@@ -115,12 +127,14 @@ public class Host implements Comparable<Host> {
 			this.ftp = new FTPHandler(this);
 
 		if (!this.ftp.isConnected()) {
+			long start = System.currentTimeMillis();
 			this.ftp.setup();
 			this.ftp.start();
 			this.ftp.join();
 
 			if (this.ftp.client().isConnected()) {
-				Log.success(this, "Connection established");
+				Log.success(this, "Connection established ("
+						+ (System.currentTimeMillis() - start) + " ms)");
 				opened = true;
 			}
 		} else {
@@ -194,6 +208,22 @@ public class Host implements Comparable<Host> {
 		return this.ftp;
 	}
 
+	/**
+	 * Tunnels the SSH session to this host through the given jump host. The
+	 * session to the jump host is shared by all hosts behind it.
+	 * 
+	 * @param jumpHost
+	 *            The jump host, or {@code null} to use the one configured in
+	 *            property {@code amelia.jump_host}
+	 */
+	public void setJumpHost(Host jumpHost) {
+		this.jumpHost = jumpHost;
+	}
+
+	public Host jumpHost() {
+		return this.jumpHost;
+	}
+
 	public void setFixedWidth(int width) {
 		this.fixedWith = width;
 	}
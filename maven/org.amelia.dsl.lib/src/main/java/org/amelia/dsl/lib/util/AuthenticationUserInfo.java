@@ -37,6 +37,11 @@ import com.jcraft.jsch.UserInfo;
  */
 public class AuthenticationUserInfo implements UserInfo, UIKeyboardInteractive {
 
+	/**
+	 * Connections are established concurrently; show one dialog at a time
+	 */
+	private static final Object dialogLock = new Object();
+
 	private String password;
 	private JTextField passwordField;
 	private Container panel;
@@ -57,10 +62,12 @@ public class AuthenticationUserInfo implements UserInfo, UIKeyboardInteractive {
 
 	public boolean promptYesNo(String str) {
 		Object[] options = { "yes", "no" };
-		int answer = JOptionPane.showOptionDialog(null, str, "Warning",
-				JOptionPane.DEFAULT_OPTION, JOptionPane.WARNING_MESSAGE, null,
-				options, options[0]);
-		return answer == 0;
+		synchronized (dialogLock) {
+			int answer = JOptionPane.showOptionDialog(null, str, "Warning",
+					JOptionPane.DEFAULT_OPTION, JOptionPane.WARNING_MESSAGE, null,
+					options, options[0]);
+			return answer == 0;
+		}
 	}
 
 	public String getPassphrase() {
@@ -73,8 +80,11 @@ public class AuthenticationUserInfo implements UserInfo, UIKeyboardInteractive {
 
 	public boolean promptPassword(String message) {
 		Object[] ob = { passwordField };
-		int result = JOptionPane.showConfirmDialog(null, ob, message,
-				JOptionPane.OK_CANCEL_OPTION);
+		int result;
+		synchronized (dialogLock) {
+			result = JOptionPane.showConfirmDialog(null, ob, message,
+					JOptionPane.OK_CANCEL_OPTION);
+		}
 		if (result == JOptionPane.OK_OPTION) {
 			password = passwordField.getText();
 			return true;
@@ -84,7 +94,9 @@ public class AuthenticationUserInfo implements UserInfo, UIKeyboardInteractive {
 	}
 
 	public void showMessage(String message) {
-		JOptionPane.showMessageDialog(null, message);
+		synchronized (dialogLock) {
+			JOptionPane.showMessageDialog(null, message);
+		}
 	}
 
 	public String[] promptKeyboardInteractive(String destination, String name,
@@ -120,9 +132,13 @@ public class AuthenticationUserInfo implements UserInfo, UIKeyboardInteractive {
 			this.gbc.gridy++;
 		}
 
-		if (JOptionPane.showConfirmDialog(null, panel, destination + ": "
-				+ name, JOptionPane.OK_CANCEL_OPTION,
-				JOptionPane.QUESTION_MESSAGE) == JOptionPane.OK_OPTION) {
+		int result;
+		synchronized (dialogLock) {
+			result = JOptionPane.showConfirmDialog(null, panel, destination
+					+ ": " + name, JOptionPane.OK_CANCEL_OPTION,
+					JOptionPane.QUESTION_MESSAGE);
+		}
+		if (result == JOptionPane.OK_OPTION) {
 			
 			String[] response = new String[prompt.length];
 			for (int i = 0; i < prompt.length; i++) {
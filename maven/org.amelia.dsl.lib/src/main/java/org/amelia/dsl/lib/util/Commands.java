@@ -37,6 +37,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.amelia.dsl.lib.CallableTask;
+import org.amelia.dsl.lib.ReadinessProbe;
 import org.amelia.dsl.lib.descriptors.AssetBundle;
 import org.amelia.dsl.lib.descriptors.CommandDescriptor;
 import org.amelia.dsl.lib.descriptors.Host;
@@ -52,7 +53,6 @@ import com.google.common.collect.Lists;
 import net.sf.expectit.Expect;
 import net.sf.expectit.ExpectIOException;
 import net.sf.expectit.Result;
-import net.sf.expectit.matcher.Matchers;
 
 /**
  * @author Miguel Jiménez - Initial contribution and API
@@ -81,6 +81,8 @@ public class Commands {
 		public String releaseRegexp;
 		public String successMessage;
 		public String[] errorTexts;
+		public ReadinessProbe readinessProbe;
+		public long readinessTimeout;
 
 		public RunBuilder() {
 			this.port = -1;
@@ -156,6 +158,20 @@ public class Commands {
 			return this;
 		}
 
+		/**
+		 * Releases the commands depending on the composite as soon as the
+		 * given probe succeeds, instead of waiting for a fixed grace period.
+		 */
+		public RunBuilder withReadinessProbe(final ReadinessProbe probe) {
+			this.readinessProbe = probe;
+			return this;
+		}
+
+		public RunBuilder withReadinessTimeout(final long timeout) {
+			this.readinessTimeout = timeout;
+			return this;
+		}
+
 		/**
 		 * @return a {@link CommandDescriptor} with the necessary configuration
 		 *         to run the given composite
@@ -188,6 +204,8 @@ public class Commands {
 					.withSuccessMessage(this.successMessage)
 					.withErrorText(this.errorTexts)
 					.withTimeout(this.timeout)
+					.withReadinessProbe(this.readinessProbe)
+					.withReadinessTimeout(this.readinessTimeout)
 					.isExecution()
 					.build();
 			return run;
@@ -431,7 +449,7 @@ public class Commands {
 					throws Exception {
 				Expect expect = host.ssh().expect();
 				expect.sendLine(versionCommand);
-				Result actualVersion = expect.expect(Matchers.regexp(prompt));
+				Result actualVersion = expect.expect(host.ssh().promptMatcher());
 				Pattern pattern = Pattern.compile(regexp);
 				Matcher matcher = pattern.matcher(actualVersion.getBefore());
 				if (matcher.find()) {
@@ -73,6 +73,68 @@ public class Configuration {
 				config.put("color_output", "true");
 			if (!config.containsKey("debug_mode"))
 				config.put("debug_mode", "false");
+			if (!config.containsKey("parallelism"))
+				config.put("parallelism", "0"); // 0 for one worker per channel
+			if (!config.containsKey("virtual_threads"))
+				config.put("virtual_threads", "false"); // requires Java 21+
+			if (!config.containsKey("scheduling_policy"))
+				config.put("scheduling_policy", "fifo"); // or critical_path
+			if (!config.containsKey("task_weights"))
+				config.put("task_weights", "commands"); // or durations
+			if (!config.containsKey("channels_per_host"))
+				config.put("channels_per_host", "1");
+			if (!config.containsKey("subsystem_parallelism"))
+				config.put("subsystem_parallelism", "1");
+			if (!config.containsKey("execution_grace_period"))
+				config.put("execution_grace_period", "2000"); // without readiness probe, and for exec exit statuses
+			if (!config.containsKey("readiness_interval"))
+				config.put("readiness_interval", "250");
+			if (!config.containsKey("readiness_timeout"))
+				config.put("readiness_timeout", "60000"); // 0 for no timeout
+			if (!config.containsKey("failure_policy"))
+				config.put("failure_policy", "graph"); // or subtree
+			if (!config.containsKey("max_concurrent_handshakes"))
+				config.put("max_concurrent_handshakes", "10");
+			if (!config.containsKey("session_idle_timeout"))
+				config.put("session_idle_timeout", "30000"); // 0 to close when released
+			if (!config.containsKey("transport"))
+				config.put("transport", "shell"); // or exec
+			if (!config.containsKey("output_log_retention"))
+				config.put("output_log_retention", "0"); // characters in memory per session, 0 for no limit
+			if (!config.containsKey("server_alive_interval"))
+				config.put("server_alive_interval", "30000"); // 0 to disable keepalive messages
+			if (!config.containsKey("server_alive_count_max"))
+				config.put("server_alive_count_max", "3");
+			if (!config.containsKey("reconnect_attempts"))
+				config.put("reconnect_attempts", "3"); // 0 to disable reconnection
+			if (!config.containsKey("reconnect_delay"))
+				config.put("reconnect_delay", "1000");
+			if (!config.containsKey("transfer_protocol"))
+				config.put("transfer_protocol", "ftp"); // or sftp
+			if (!config.containsKey("sftp_bulk_requests"))
+				config.put("sftp_bulk_requests", "64");
+			if (!config.containsKey("incremental_transfers"))
+				config.put("incremental_transfers", "false");
+			if (!config.containsKey("archive_transfers"))
+				config.put("archive_transfers", "false");
+			if (!config.containsKey("archive_compression"))
+				config.put("archive_compression", "false");
+			if (!config.containsKey("shared_file_buffers"))
+				config.put("shared_file_buffers", "false");
+			if (!config.containsKey("shared_file_cache"))
+				config.put("shared_file_cache", "67108864"); // bytes
+			if (!config.containsKey("ftp_connections"))
+				config.put("ftp_connections", "1"); // per host
+			if (!config.containsKey("preconnect"))
+				config.put("preconnect", "false");
+			if (!config.containsKey("jump_host"))
+				config.put("jump_host", ""); // user@hostname[:port], empty to connect directly
+			if (!config.containsKey("transcript_rotation_size"))
+				config.put("transcript_rotation_size", "0"); // bytes, 0 for no rotation
+			if (!config.containsKey("transcript_rotation_interval"))
+				config.put("transcript_rotation_interval", "0"); // milliseconds, 0 for no rotation
+			if (!config.containsKey("transcript_compression"))
+				config.put("transcript_compression", "false");
 
 			if (input != null) {
 				try {
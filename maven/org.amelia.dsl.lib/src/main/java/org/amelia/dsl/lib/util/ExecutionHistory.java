@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps track of how long commands take to execute, across deployments. The
+ * recorded durations are used to weight the commands when prioritizing the
+ * critical path of a deployment.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ExecutionHistory {
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(ExecutionHistory.class);
+
+	/**
+	 * The file where durations are persisted
+	 */
+	private final File file;
+
+	/**
+	 * The duration (in milliseconds) of each command, indexed by command
+	 */
+	private final Map<String, Long> durations;
+
+	/**
+	 * Whether commands are weighted by their recorded duration, or simply
+	 * counted
+	 */
+	private final boolean weightByDuration;
+
+	public ExecutionHistory(final File file) {
+		this.file = file;
+		this.durations = new ConcurrentHashMap<String, Long>();
+		this.weightByDuration = "durations"
+				.equals(System.getProperty("amelia.task_weights"));
+		if (this.weightByDuration)
+			load();
+	}
+
+	/**
+	 * Records the duration of the given command. Durations are smoothed
+	 * across executions and hosts.
+	 * 
+	 * @param descriptor
+	 *            The executed command
+	 * @param millis
+	 *            The execution time in milliseconds
+	 */
+	public void record(final CommandDescriptor descriptor, final long millis) {
+		if (!this.weightByDuration)
+			return;
+		String key = descriptor.toCommandString();
+		Long previous = this.durations.get(key);
+		this.durations.put(key,
+				previous == null ? millis : (previous + millis) / 2);
+	}
+
+	/**
+	 * @param descriptor
+	 *            The command
+	 * @return the weight of the given command. When weighting by duration,
+	 *         commands without history weigh as much as the average command.
+	 */
+	public long weight(final CommandDescriptor descriptor) {
+		if (!this.weightByDuration)
+			return 1;
+		Long duration = this.durations.get(descriptor.toCommandString());
+		if (duration == null)
+			duration = averageDuration();
+		return Math.max(1, duration);
+	}
+
+	private long averageDuration() {
+		if (this.durations.isEmpty())
+			return 1;
+		long total = 0;
+		for (Long duration : this.durations.values())
+			total += duration;
+		return total / this.durations.size();
+	}
+
+	private void load() {
+		if (!this.file.exists())
+			return;
+		Properties properties = new Properties();
+		InputStream input = null;
+		try {
+			input = new FileInputStream(this.file);
+			properties.load(input);
+			for (String key : properties.stringPropertyNames())
+				this.durations.put(key, Long.parseLong(properties.getProperty(key)));
+		} catch (Exception e) {
+			logger.warn("Execution history '" + this.file
+					+ "' could not be loaded", e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					logger.error("Error closing execution history", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Persists the recorded durations
+	 */
+	public void save() {
+		if (!this.weightByDuration)
+			return;
+		Properties properties = new Properties();
+		for (Map.Entry<String, Long> entry : this.durations.entrySet())
+			properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+		OutputStream output = null;
+		try {
+			File parent = this.file.getParentFile();
+			if (parent != null && !parent.exists())
+				parent.mkdirs();
+			output = new FileOutputStream(this.file);
+			properties.store(output, "Amelia execution history (milliseconds)");
+		} catch (IOException e) {
+			logger.warn("Execution history '" + this.file
+					+ "' could not be saved", e);
+		} finally {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					logger.error("Error closing execution history", e);
+				}
+			}
+		}
+	}
+
+}
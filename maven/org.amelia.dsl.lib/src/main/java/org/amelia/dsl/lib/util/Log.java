@@ -48,6 +48,36 @@ public class Log {
 	private static final String WARN = ANSI.YELLOW.format("   WARN");
 	private static final String ERROR = ANSI.RED.format("  ERROR");
 	private static final String DEBUG = "  DEBUG";
+
+	/**
+	 * The subsystem being deployed by the current thread. Threads created
+	 * while deploying a subsystem inherit it.
+	 */
+	private static final InheritableThreadLocal<String> context = 
+			new InheritableThreadLocal<String>();
+
+	/**
+	 * Sets the subsystem being deployed by the current thread. When several
+	 * subsystems are deployed at the same time, messages are labeled with it.
+	 * 
+	 * @param subsystem
+	 *            The subsystem alias
+	 */
+	public static void setContext(String subsystem) {
+		context.set(subsystem);
+	}
+
+	/**
+	 * @return the subsystem being deployed by the current thread, or
+	 *         {@code null}
+	 */
+	public static String context() {
+		return context.get();
+	}
+
+	public static void clearContext() {
+		context.remove();
+	}
 	
 	public static void print(String message) {
 		print(message, false);
@@ -66,31 +96,39 @@ public class Log {
 	}
 
 	public static void info(String message) {
-		print(INFO + " " + message, true);
+		print(INFO + formatContext() + " " + message, true);
 	}
 
 	public static void info(Host host, String message) {
-		print(INFO + formatHost(host) + message, true);
+		print(INFO + formatContext() + formatHost(host) + message, true);
 	}
 
 	public static void error(Host host, String message) {
-		print(ERROR + formatHost(host) + message, true);
+		print(ERROR + formatContext() + formatHost(host) + message, true);
 	}
 	
 	public static void debug(Host host, String message) {
-		print(DEBUG + formatHost(host) + "--- " + message, true);
+		print(DEBUG + formatContext() + formatHost(host) + "--- " + message, true);
 	}
 
 	public static void warning(Host host, String message) {
-		print(WARN + formatHost(host) + message, true);
+		print(WARN + formatContext() + formatHost(host) + message, true);
 	}
 
 	public static void success(Host host, String message) {
-		print(SUCCESS + formatHost(host) + message, true);
+		print(SUCCESS + formatContext() + formatHost(host) + message, true);
 	}
 
 	public static void error(String message) {
-		print(ERROR + " " + message, true);
+		print(ERROR + formatContext() + " " + message, true);
+	}
+	
+	private static String formatContext() {
+		String subsystem = context.get();
+		if (subsystem == null || Integer.parseInt(System
+				.getProperty("amelia.subsystem_parallelism", "1")) <= 1)
+			return "";
+		return " {" + subsystem + "}";
 	}
 	
 	private static String formatHost(Host host) {
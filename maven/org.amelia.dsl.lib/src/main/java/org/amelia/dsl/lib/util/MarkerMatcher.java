@@ -0,0 +1,432 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import net.sf.expectit.Expect;
+import net.sf.expectit.ExpectIOException;
+import net.sf.expectit.Result;
+import net.sf.expectit.matcher.Matcher;
+
+/**
+ * A matcher recognizing a fixed marker followed by a terminator, e.g., the
+ * Amelia prompt of a session or the sentinel printed after a command. Expect
+ * re-evaluates its matchers against the whole input buffer every time new
+ * output arrives; this matcher remembers how far it has searched, so each
+ * call only scans the new characters. Therefore, a new instance must be used
+ * for each expect operation.
+ * <p>
+ * The matched text starts at the last occurrence of the line start before
+ * the marker, if any in the same line, and ends with the terminator. Group 1
+ * is the text between the marker and the terminator; if a value pattern is
+ * given, occurrences of the marker whose value does not match it are
+ * skipped (e.g., the echo of the command printing the marker).
+ * <p>
+ * Scanning only the new characters is not enough for long outputs: expect
+ * copies its whole buffer into a new string before each call, and it keeps
+ * the output until a match consumes it. Therefore, {@link #expect(Expect,
+ * MarkerMatcher, long)} lets the matcher consume the complete lines in
+ * which the marker was not found once the buffer exceeds
+ * {@link #DRAIN_THRESHOLD} characters, so that each copy is bounded.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class MarkerMatcher implements Matcher<Result> {
+
+	/**
+	 * The number of buffered characters from which a draining matcher
+	 * consumes the lines without the marker
+	 */
+	public static final int DRAIN_THRESHOLD = 65536;
+
+	private final String lineStart;
+
+	private final String marker;
+
+	private final String terminator;
+
+	private final Pattern value;
+
+	/**
+	 * The index from which the marker has not been searched yet
+	 */
+	private int searchFrom;
+
+	/**
+	 * The index of the marker found, waiting for the terminator
+	 */
+	private int markerIndex;
+
+	/**
+	 * The index from which the terminator has not been searched yet
+	 */
+	private int terminatorFrom;
+
+	/**
+	 * Whether the lines without the marker are consumed
+	 */
+	private boolean drain;
+
+	/**
+	 * Whether the next call is the first of an expect operation. Expect
+	 * reports the end of the input on that call as soon as the input stream
+	 * is consumed, even if the output is still in its pipe, which is likely
+	 * after consuming part of the output
+	 */
+	private boolean initial;
+
+	/**
+	 * @param lineStart
+	 *            The beginning of the matched text, or {@code null} to start
+	 *            at the marker
+	 * @param marker
+	 *            The fixed marker
+	 * @param terminator
+	 *            The end of the matched text
+	 */
+	public MarkerMatcher(final String lineStart, final String marker,
+			final String terminator) {
+		this(lineStart, marker, terminator, null);
+	}
+
+	/**
+	 * @param lineStart
+	 *            The beginning of the matched text, or {@code null} to start
+	 *            at the marker
+	 * @param marker
+	 *            The fixed marker
+	 * @param terminator
+	 *            The end of the matched text
+	 * @param value
+	 *            The pattern the text between the marker and the terminator
+	 *            must match, or {@code null} to accept any text
+	 */
+	public MarkerMatcher(final String lineStart, final String marker,
+			final String terminator, final Pattern value) {
+		this.lineStart = lineStart;
+		this.marker = marker;
+		this.terminator = terminator;
+		this.value = value;
+		this.searchFrom = 0;
+		this.markerIndex = -1;
+	}
+
+	@Override
+	public Result matches(String input, boolean isEof) {
+		if (this.initial) {
+			// The end of the input is reported again after reading the pipe
+			this.initial = false;
+			isEof = false;
+		}
+		if (input.length() < this.searchFrom
+				|| input.length() < this.terminatorFrom) {
+			// The buffer was consumed by someone else; start over
+			this.searchFrom = 0;
+			this.markerIndex = -1;
+			this.terminatorFrom = 0;
+		}
+		int valueStart;
+		int terminatorIndex;
+		while (true) {
+			if (this.markerIndex == -1) {
+				this.markerIndex = input.indexOf(this.marker, this.searchFrom);
+				if (this.markerIndex == -1) {
+					// The marker may be split between this and the next output
+					this.searchFrom = Math.max(0,
+							input.length() - this.marker.length() + 1);
+					if (this.drain && input.length() >= DRAIN_THRESHOLD) {
+						// The matched text cannot start before this line
+						int drained = input.lastIndexOf('\n',
+								this.searchFrom - 1) + 1;
+						if (drained > 0) {
+							this.searchFrom -= drained;
+							return new MarkerResult(input, drained);
+						}
+					}
+					return new MarkerResult(input, isEof);
+				}
+				this.terminatorFrom = this.markerIndex + this.marker.length();
+			}
+			valueStart = this.markerIndex + this.marker.length();
+			terminatorIndex = input.indexOf(this.terminator, this.terminatorFrom);
+			if (terminatorIndex == -1) {
+				// The terminator may be split as well
+				this.terminatorFrom = Math.max(valueStart,
+						input.length() - this.terminator.length() + 1);
+				return new MarkerResult(input, isEof);
+			}
+			if (this.value == null || this.value.matcher(
+					input.substring(valueStart, terminatorIndex)).matches())
+				break;
+			// Not the marker expected, look for the next one
+			this.searchFrom = this.markerIndex + 1;
+			this.markerIndex = -1;
+			this.terminatorFrom = 0;
+		}
+		int start = this.markerIndex;
+		if (this.lineStart != null) {
+			int lineBreak = input.lastIndexOf('\n', this.markerIndex);
+			int candidate = input.lastIndexOf(this.lineStart, this.markerIndex);
+			if (candidate > lineBreak)
+				start = candidate;
+		}
+		int end = terminatorIndex + this.terminator.length();
+		return new MarkerResult(input, start, end, valueStart, terminatorIndex);
+	}
+
+	/**
+	 * Expects the given matcher, letting it consume the lines without the
+	 * marker while the output is long. The result is the same as that of
+	 * {@code expect.expect(matcher)}, including the whole output before the
+	 * matched text.
+	 * 
+	 * @param expect
+	 *            The expect instance
+	 * @param matcher
+	 *            A new matcher
+	 * @param timeout
+	 *            The time to wait for the whole operation, in milliseconds,
+	 *            or a negative number to wait indefinitely
+	 * @return the successful result
+	 * @throws IOException
+	 *             If the matcher does not succeed in time, or the input
+	 *             closes. An {@link ExpectIOException} contains the whole
+	 *             output received
+	 */
+	public static Result expect(final Expect expect,
+			final MarkerMatcher matcher, final long timeout)
+					throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		StringBuilder drained = new StringBuilder();
+		matcher.drain = true;
+		while (true) {
+			long remaining = deadline - System.currentTimeMillis();
+			Expect _expect = timeout < 0 ? expect.withInfiniteTimeout()
+					: expect.withTimeout(Math.max(1, remaining),
+							TimeUnit.MILLISECONDS);
+			Result result;
+			matcher.initial = true;
+			try {
+				result = _expect.expect(matcher);
+			} catch (ExpectIOException e) {
+				throw new ExpectIOException(e.getMessage(),
+						drained + e.getInputBuffer());
+			}
+			if (!(result instanceof MarkerResult)
+					|| !((MarkerResult) result).partial)
+				return drained.length() == 0 ? result
+						: new PrefixedResult(drained.toString(), result);
+			drained.append(result.getBefore());
+		}
+	}
+
+	/**
+	 * A result preceded by output consumed before
+	 */
+	private static class PrefixedResult implements Result {
+
+		private final String prefix;
+		private final Result result;
+
+		private PrefixedResult(String prefix, Result result) {
+			this.prefix = prefix;
+			this.result = result;
+		}
+
+		public int start() {
+			return this.prefix.length() + this.result.start();
+		}
+
+		public int start(int group) {
+			return this.prefix.length() + this.result.start(group);
+		}
+
+		public int end() {
+			return this.prefix.length() + this.result.end();
+		}
+
+		public int end(int group) {
+			return this.prefix.length() + this.result.end(group);
+		}
+
+		public String group() {
+			return this.result.group();
+		}
+
+		public String group(int group) {
+			return this.result.group(group);
+		}
+
+		public int groupCount() {
+			return this.result.groupCount();
+		}
+
+		public String getInput() {
+			return this.prefix + this.result.getInput();
+		}
+
+		public String getBefore() {
+			return this.prefix + this.result.getBefore();
+		}
+
+		public boolean isSuccessful() {
+			return this.result.isSuccessful();
+		}
+
+		public boolean canStopMatching() {
+			return this.result.canStopMatching();
+		}
+
+		@Override
+		public String toString() {
+			return this.result.toString();
+		}
+	}
+
+	/**
+	 * The result of a {@link MarkerMatcher}
+	 */
+	private static class MarkerResult implements Result {
+
+		private final String input;
+		private final boolean successful;
+		private final boolean canStopMatching;
+		private final int start;
+		private final int end;
+		private final int valueStart;
+		private final int valueEnd;
+
+		/**
+		 * Whether the result only consumes the lines without the marker
+		 */
+		private final boolean partial;
+
+		private MarkerResult(String input, boolean isEof) {
+			this.input = input;
+			this.successful = false;
+			this.canStopMatching = isEof;
+			this.start = -1;
+			this.end = -1;
+			this.valueStart = -1;
+			this.valueEnd = -1;
+			this.partial = false;
+		}
+
+		private MarkerResult(String input, int start, int end, int valueStart,
+				int valueEnd) {
+			this.input = input;
+			this.successful = true;
+			this.canStopMatching = true;
+			this.start = start;
+			this.end = end;
+			this.valueStart = valueStart;
+			this.valueEnd = valueEnd;
+			this.partial = false;
+		}
+
+		/**
+		 * A partial result consuming the input up to the given index
+		 */
+		private MarkerResult(String input, int drained) {
+			this.input = input;
+			this.successful = true;
+			this.canStopMatching = true;
+			this.start = drained;
+			this.end = drained;
+			this.valueStart = drained;
+			this.valueEnd = drained;
+			this.partial = true;
+		}
+
+		private void checkSuccessful() {
+			if (!this.successful)
+				throw new IllegalStateException("No match found");
+		}
+
+		private void checkGroup(int group) {
+			if (group < 0 || group > 1)
+				throw new IndexOutOfBoundsException("No group " + group);
+		}
+
+		public int start() {
+			checkSuccessful();
+			return this.start;
+		}
+
+		public int start(int group) {
+			checkSuccessful();
+			checkGroup(group);
+			return group == 0 ? this.start : this.valueStart;
+		}
+
+		public int end() {
+			checkSuccessful();
+			return this.end;
+		}
+
+		public int end(int group) {
+			checkSuccessful();
+			checkGroup(group);
+			return group == 0 ? this.end : this.valueEnd;
+		}
+
+		public String group() {
+			checkSuccessful();
+			return this.input.substring(this.start, this.end);
+		}
+
+		public String group(int group) {
+			checkSuccessful();
+			checkGroup(group);
+			return group == 0 ? group()
+					: this.input.substring(this.valueStart, this.valueEnd);
+		}
+
+		public int groupCount() {
+			return 1;
+		}
+
+		public String getInput() {
+			return this.input;
+		}
+
+		public String getBefore() {
+			checkSuccessful();
+			return this.input.substring(0, this.start);
+		}
+
+		public boolean isSuccessful() {
+			return this.successful;
+		}
+
+		public boolean canStopMatching() {
+			return this.canStopMatching;
+		}
+
+		@Override
+		public String toString() {
+			return "MarkerResult [successful=" + this.successful
+					+ (this.successful ? ", group=" + group() : "") + "]";
+		}
+	}
+
+}
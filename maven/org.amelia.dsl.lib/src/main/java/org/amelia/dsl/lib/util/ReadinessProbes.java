@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.regex.Pattern;
+
+import org.amelia.dsl.lib.CallableTask;
+import org.amelia.dsl.lib.ReadinessProbe;
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.descriptors.Host;
+
+/**
+ * Common {@link ReadinessProbe}s
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ReadinessProbes {
+
+	/**
+	 * The time to wait for a connection in a single check, in milliseconds
+	 */
+	private static final int CONNECTION_TIMEOUT = 1000;
+
+	/**
+	 * @param port
+	 *            The port to check
+	 * @return a probe that succeeds once the given TCP port accepts
+	 *         connections in the host
+	 */
+	public static ReadinessProbe tcpPort(final int port) {
+		return new ReadinessProbe() {
+			@Override public boolean isReady(Host host,
+					CommandDescriptor descriptor) {
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(host.hostname(), port),
+							CONNECTION_TIMEOUT);
+					return true;
+				} catch (IOException e) {
+					return false;
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param port
+	 *            The port of the RMI registry
+	 * @param name
+	 *            The name of the remote object
+	 * @return a probe that succeeds once the given name is bound in the RMI
+	 *         registry of the host
+	 */
+	public static ReadinessProbe rmiLookup(final int port, final String name) {
+		return new ReadinessProbe() {
+			@Override public boolean isReady(Host host,
+					CommandDescriptor descriptor) {
+				try {
+					Registry registry = LocateRegistry
+							.getRegistry(host.hostname(), port);
+					registry.lookup(name);
+					return true;
+				} catch (NotBoundException e) {
+					return false;
+				} catch (RemoteException e) {
+					return false;
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param regexp
+	 *            The regular expression to find
+	 * @return a probe that succeeds once the output of the command matches
+	 *         the given regular expression
+	 */
+	public static ReadinessProbe logRegexp(final String regexp) {
+		final Pattern pattern = Pattern.compile(regexp);
+		return new ReadinessProbe() {
+			@Override public boolean isReady(Host host,
+					CommandDescriptor descriptor) {
+				return pattern.matcher(host.ssh().outputSince(descriptor)).find();
+			}
+		};
+	}
+
+	/**
+	 * @param task
+	 *            The task checking the service. It is executed in the same
+	 *            shell as the command
+	 * @return a probe that succeeds once the given task returns {@code true}
+	 */
+	public static ReadinessProbe task(final CallableTask<Boolean> task) {
+		return new ReadinessProbe() {
+			@Override public boolean isReady(Host host,
+					CommandDescriptor descriptor) throws Exception {
+				Boolean ready = host.ssh().executeTask(descriptor, task);
+				return ready != null && ready;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Buffers shared by the uploads of the same local file to different hosts.
+ * The file is read from disk in chunks, and each chunk is kept in memory so
+ * that the other uploads find it there when they reach it, each at the pace
+ * of its own connection. Thus, uploads progressing together read the file
+ * from disk once regardless of the number of hosts. The chunks are kept
+ * within a budget of {@code amelia.shared_file_cache} bytes (read when the
+ * buffers are cleared), evicting the least recently used ones; an upload
+ * lagging behind the others reads the evicted chunks from disk again.
+ * Finding a chunk in memory takes no lock; eviction approximates the LRU
+ * order with a second chance for the chunks used since they were read.
+ * <p>
+ * An upload checks the size and modification time of the file before it
+ * starts, and whenever it reads a chunk from disk. If the file changed, the
+ * upload starts over with the new contents or, if it was already sending
+ * the previous ones, fails with an {@link IOException}. A change that keeps
+ * both the size and the modification time cannot be detected.
+ * <p>
+ * Shared buffers are enabled by property {@code amelia.shared_file_buffers},
+ * and they are kept until {@link #clear()} is invoked, that is, until the
+ * deployment finishes.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class SharedFiles {
+
+	/**
+	 * The size of the chunks in which files are read
+	 */
+	private static final int CHUNK_SIZE = 262144;
+
+	/**
+	 * The budget used if property {@code amelia.shared_file_cache} is not
+	 * set
+	 */
+	private static final long DEFAULT_BUDGET = 67108864;
+
+	/**
+	 * A version of a file, valid while it keeps the same size and
+	 * modification time
+	 */
+	private static class SharedFile {
+
+		private final File file;
+
+		private final long length;
+
+		private final long lastModified;
+
+		/**
+		 * The chunks of this version in memory, by index
+		 */
+		private final ConcurrentMap<Long, Chunk> chunks;
+
+		public SharedFile(File file, long length, long lastModified) {
+			this.file = file;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.chunks = new ConcurrentHashMap<Long, Chunk>();
+		}
+
+		public boolean isValid() {
+			return this.length == this.file.length()
+					&& this.lastModified == this.file.lastModified();
+		}
+
+	}
+
+	/**
+	 * A chunk of a shared file. Its data is read by the first upload that
+	 * needs it, while the others wait.
+	 */
+	private static class Chunk {
+
+		private final SharedFile file;
+
+		private final long index;
+
+		/**
+		 * The contents, or {@code null} while they are read from disk
+		 */
+		private volatile byte[] data;
+
+		/**
+		 * The time (see {@link SharedFiles#clock}) of the last use
+		 */
+		private volatile long used;
+
+		/**
+		 * The time in which the chunk entered the eviction queue. It is set
+		 * before queuing the chunk, and then only accessed while evicting
+		 */
+		private long queued;
+
+		public Chunk(SharedFile file, long index) {
+			this.file = file;
+			this.index = index;
+		}
+
+	}
+
+	/**
+	 * A stream reading a shared file chunk by chunk
+	 */
+	private static class ChunkInputStream extends InputStream {
+
+		private final SharedFile file;
+
+		/**
+		 * The channel to read the chunks not found in memory; it is opened
+		 * the first time it is needed
+		 */
+		private FileChannel channel;
+
+		private long position;
+
+		private Chunk chunk;
+
+		public ChunkInputStream(SharedFile file) {
+			this.file = file;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (this.position >= this.file.length)
+				return -1;
+			long index = this.position / CHUNK_SIZE;
+			if (this.chunk == null || this.chunk.index != index)
+				this.chunk = chunk(this, index);
+			int offset = (int) (this.position % CHUNK_SIZE);
+			int n = Math.min(len, this.chunk.data.length - offset);
+			System.arraycopy(this.chunk.data, offset, b, off, n);
+			this.position += n;
+			servedBytes.addAndGet(n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = Math.max(0,
+					Math.min(n, this.file.length - this.position));
+			this.position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE,
+					this.file.length - this.position);
+		}
+
+		/**
+		 * Reads the given chunk from disk
+		 */
+		private byte[] load(final long index) throws IOException {
+			if (!this.file.isValid())
+				throw changed(this.file);
+			if (this.channel == null)
+				this.channel = FileChannel.open(this.file.file.toPath(),
+						StandardOpenOption.READ);
+			long start = index * CHUNK_SIZE;
+			ByteBuffer buffer = ByteBuffer.allocate(
+					(int) Math.min(CHUNK_SIZE, this.file.length - start));
+			while (buffer.hasRemaining())
+				if (this.channel.read(buffer, start + buffer.position()) == -1)
+					throw changed(this.file);
+			readBytes.addAndGet(buffer.capacity());
+			return buffer.array();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.chunk = null;
+			if (this.channel != null)
+				this.channel.close();
+		}
+
+	}
+
+	/**
+	 * The current version of each file, by canonical pathname
+	 */
+	private static final ConcurrentMap<String, SharedFile> files =
+			new ConcurrentHashMap<String, SharedFile>();
+
+	/**
+	 * The chunks in memory, in the order in which they are considered for
+	 * eviction
+	 */
+	private static final ConcurrentLinkedQueue<Chunk> loaded =
+			new ConcurrentLinkedQueue<Chunk>();
+
+	/**
+	 * Orders the uses of the chunks
+	 */
+	private static final AtomicLong clock = new AtomicLong();
+
+	/**
+	 * The number of bytes of the chunks in memory
+	 */
+	private static final AtomicLong cachedBytes = new AtomicLong();
+
+	/**
+	 * The maximum number of bytes of the chunks in memory
+	 */
+	private static volatile long budget = budget();
+
+	/**
+	 * Serializes the evictions
+	 */
+	private static final Object evictionLock = new Object();
+
+	/**
+	 * The number of bytes read from disk
+	 */
+	private static final AtomicLong readBytes = new AtomicLong();
+
+	/**
+	 * The number of bytes read from the shared buffers by uploads
+	 */
+	private static final AtomicLong servedBytes = new AtomicLong();
+
+	/**
+	 * The logger
+	 */
+	private static final Logger logger = LogManager.getLogger(SharedFiles.class);
+
+	/**
+	 * @return whether property {@code amelia.shared_file_buffers} is enabled
+	 */
+	public static boolean isEnabled() {
+		return Boolean.valueOf(System.getProperty("amelia.shared_file_buffers"));
+	}
+
+	/**
+	 * Opens a stream to read the given file. If shared buffers are enabled,
+	 * the stream reads the shared chunks of the file, reading from disk those
+	 * not in memory; otherwise, or if the file is empty, the stream reads the
+	 * file directly.
+	 * 
+	 * @param file
+	 *            The local file
+	 * @return a stream reading the contents of the file
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	public static InputStream open(final File file) throws IOException {
+		if (!isEnabled() || file.length() == 0)
+			return new FileInputStream(file);
+		String key = file.getCanonicalPath();
+		SharedFile shared = files.get(key);
+		if (shared == null || !shared.isValid()) {
+			synchronized (files) {
+				shared = files.get(key);
+				if (shared == null || !shared.isValid()) {
+					// The size is read first: a modification in between is
+					// detected as a change of modification time
+					long length = file.length();
+					shared = new SharedFile(file, length, file.lastModified());
+					files.put(key, shared);
+				}
+			}
+		}
+		return new ChunkInputStream(shared);
+	}
+
+	/**
+	 * @return the given chunk of the file read by the given stream, reading
+	 *         it from disk if it is not in memory
+	 */
+	private static Chunk chunk(final ChunkInputStream stream,
+			final long index) throws IOException {
+		ConcurrentMap<Long, Chunk> chunks = stream.file.chunks;
+		Chunk chunk = chunks.get(index);
+		if (chunk == null) {
+			Chunk created = new Chunk(stream.file, index);
+			chunk = chunks.putIfAbsent(index, created);
+			if (chunk == null)
+				chunk = created;
+		}
+		chunk.used = clock.incrementAndGet();
+		if (chunk.data == null) {
+			synchronized (chunk) {
+				if (chunk.data == null) {
+					byte[] data;
+					try {
+						data = stream.load(index);
+					} catch (IOException e) {
+						chunks.remove(index, chunk);
+						throw e;
+					}
+					chunk.data = data;
+					cachedBytes.addAndGet(data.length);
+					chunk.queued = clock.get();
+					loaded.add(chunk);
+					evict(chunk);
+				}
+			}
+		}
+		return chunk;
+	}
+
+	/**
+	 * Evicts chunks until the cache is within its budget, except the given
+	 * one. The chunks are taken in the order in which they were read; a
+	 * chunk used since then goes back to the end of the queue once.
+	 */
+	private static void evict(final Chunk except) {
+		if (cachedBytes.get() <= budget)
+			return;
+		synchronized (evictionLock) {
+			// Every chunk is requeued at most once per eviction
+			int attempts = 2 * loaded.size();
+			Chunk chunk;
+			while (cachedBytes.get() > budget && attempts-- > 0
+					&& (chunk = loaded.poll()) != null) {
+				if (chunk == except || chunk.used > chunk.queued) {
+					chunk.queued = clock.get();
+					loaded.add(chunk);
+				} else if (chunk.file.chunks.remove(chunk.index, chunk)) {
+					cachedBytes.addAndGet(-chunk.data.length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the value of property {@code amelia.shared_file_cache}, or the
+	 *         default budget if it is not a number
+	 */
+	private static long budget() {
+		String budget = System.getProperty("amelia.shared_file_cache");
+		if (budget == null)
+			return DEFAULT_BUDGET;
+		try {
+			return Long.parseLong(budget);
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid shared file cache size '" + budget
+					+ "'. Using " + DEFAULT_BUDGET + " bytes instead");
+			return DEFAULT_BUDGET;
+		}
+	}
+
+	private static IOException changed(final SharedFile file) {
+		return new IOException("File " + file.file
+				+ " changed while being uploaded");
+	}
+
+	/**
+	 * Discards the shared buffers, and reads the budget again. Ongoing
+	 * uploads read the rest of their files from disk.
+	 */
+	public static void clear() {
+		files.clear();
+		synchronized (evictionLock) {
+			Chunk chunk;
+			while ((chunk = loaded.poll()) != null)
+				if (chunk.file.chunks.remove(chunk.index, chunk))
+					cachedBytes.addAndGet(-chunk.data.length);
+			budget = budget();
+		}
+	}
+
+	/**
+	 * @return the number of bytes read from disk into shared buffers
+	 */
+	public static long readBytes() {
+		return readBytes.get();
+	}
+
+	/**
+	 * @return the number of bytes read from the shared buffers by uploads
+	 */
+	public static long servedBytes() {
+		return servedBytes.get();
+	}
+
+	/**
+	 * Resets the read and served byte counts, e.g., before a new execution
+	 */
+	public static void resetStatistics() {
+		readBytes.set(0);
+		servedBytes.set(0);
+	}
+
+}
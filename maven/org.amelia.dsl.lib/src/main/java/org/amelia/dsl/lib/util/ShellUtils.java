@@ -18,6 +18,13 @@
  */
 package org.amelia.dsl.lib.util;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * This class encapsulates utility methods to work with shell interfaces
  * 
@@ -25,6 +32,54 @@ package org.amelia.dsl.lib.util;
  */
 public class ShellUtils {
 
+	/**
+	 * The exit status printed by the sentinel command
+	 */
+	private static final Pattern EXIT_STATUS = Pattern.compile("\\d{1,3}");
+
+	/**
+	 * The shell state reported by a command created with
+	 * {@link ShellUtils#statefulCommand(String, String, Map, List, String)}
+	 */
+	public static class ExecState {
+
+		private final String output;
+
+		private final String workingDirectory;
+
+		private final Map<String, String> variables;
+
+		public ExecState(final String output, final String workingDirectory,
+				final Map<String, String> variables) {
+			this.output = output;
+			this.workingDirectory = workingDirectory;
+			this.variables = variables;
+		}
+
+		/**
+		 * @return the output of the command, without the state lines
+		 */
+		public String output() {
+			return this.output;
+		}
+
+		/**
+		 * @return the working directory left by the command, or {@code null}
+		 *         if the command did not change it
+		 */
+		public String workingDirectory() {
+			return this.workingDirectory;
+		}
+
+		/**
+		 * @return the variables exported by the command
+		 */
+		public Map<String, String> variables() {
+			return this.variables;
+		}
+
+	}
+
 	/**
 	 * TODO: Only bash, zsh and dash are supported (not csh)
 	 * 
@@ -49,9 +104,28 @@ public class ShellUtils {
 	 *         prompt
 	 */
 	public static String ameliaPromptFormat(String shell) {
-		// e.g., [Amelia 2015-09-28 18:54:34 user@grid0:~/Desktop]$
-		String bash = "[Amelia \\D{%F %T} \\u@\\h:\\w]$ ";
-		String zsh = "[Amelia %D{%Y-%m-%d %H:%M:%S} %n% @%m% :%~]$ ";
+		return ameliaPromptFormat(shell, null);
+	}
+
+	/**
+	 * Creates a string to set the prompt to the Amelia prompt, ending with
+	 * the given nonce. The nonce makes the prompt recognizable by a fixed
+	 * marker (see {@link #promptMatcher(String)}).
+	 * 
+	 * TODO: Only bash and zsh are supported
+	 * 
+	 * @param shell
+	 *            The current shell being used in the remote machine
+	 * @param nonce
+	 *            A string unique to the session, or {@code null}
+	 * @return a command setting the PS1 environment variable to the Amelia
+	 *         prompt
+	 */
+	public static String ameliaPromptFormat(String shell, String nonce) {
+		// e.g., [Amelia 2015-09-28 18:54:34 user@grid0:~/Desktop #3fa9c2d1]$
+		String suffix = nonce == null ? "" : " #" + nonce;
+		String bash = "[Amelia \\D{%F %T} \\u@\\h:\\w" + suffix + "]$ ";
+		String zsh = "[Amelia %D{%Y-%m-%d %H:%M:%S} %n% @%m% :%~" + suffix + "]$ ";
 		String command = "PS1=\"";
 		
 		if (shell.contains("bash"))
@@ -59,18 +133,24 @@ public class ShellUtils {
 		else
 			command += zsh + "\"";
 
-		return command;
+		// Multi-line commands do not print continuation prompts
+		return command + " PS2=\"\"";
 	}
 
 	/**
+	 * The expression has no nested quantifiers, so it is matched in linear
+	 * time. Prefer {@link #promptMatcher(String)} when the session nonce is
+	 * known.
+	 * 
 	 * @return the regular expression to recognize the Amelia prompt
 	 */
 	public static String ameliaPromptRegexp() {
-		String date = "(\\d+){4}-(\\d+){2}-(\\d+){2}";
-		String time = "(\\d+){2}:(\\d+){2}:(\\d+){2}";
+		String date = "\\d{4}-\\d{2}-\\d{2}";
+		String time = "\\d{2}:\\d{2}:\\d{2}";
 		String user = "([a-z_][a-z0-9_]{0,30})";
 		String host = "([a-zA-Z0-9-\\.]{0,24})";
-		String directory = "((\\/)?([^\\/ ]+(\\/)?)+|\\/)";
+		String directory = "([^ \\]]+)";
+		String nonce = "( #[0-9a-f]+)?";
 		StringBuilder regexp = new StringBuilder();
 		regexp.append("\\[Amelia ");
 		regexp.append(date + " ");
@@ -79,10 +159,21 @@ public class ShellUtils {
 		regexp.append("@");
 		regexp.append(host + ":");
 		regexp.append(directory);
+		regexp.append(nonce);
 		regexp.append("\\]\\$ ");
 		return regexp.toString();
 	}
 
+	/**
+	 * @param nonce
+	 *            The nonce of the session's prompt
+	 * @return a new matcher recognizing the Amelia prompt of the session
+	 *         incrementally
+	 */
+	public static MarkerMatcher promptMatcher(String nonce) {
+		return new MarkerMatcher("[Amelia ", " #" + nonce, "]$ ");
+	}
+
 	/**
 	 * @param criteria
 	 *            A string to search the programs in execution
@@ -121,6 +212,173 @@ public class ShellUtils {
 		return sb.toString();
 	}
 
+	/**
+	 * @param command
+	 *            The command to execute
+	 * @param nonce
+	 *            A string unique to this execution
+	 * @return the given command followed by a sentinel line with its exit
+	 *         code, so that the output and the exit code are obtained from a
+	 *         single response
+	 * @see #sentinelMatcher(String)
+	 */
+	public static String sentinelCommand(String command, String nonce) {
+		return group(command) + "; printf '\\n__AMELIA_" + nonce
+				+ "_%d__\\n' $?";
+	}
+
+	/**
+	 * Groups the given command so that other commands can follow it in the
+	 * same input. The group is closed in its own line, after an empty one,
+	 * so that a trailing comment, line continuation or "&" does not affect
+	 * the following commands.
+	 * 
+	 * @param command
+	 *            A shell command
+	 * @return the grouped command
+	 */
+	private static String group(String command) {
+		String _command = command.trim().isEmpty() ? ":" : command;
+		return "{ " + _command + "\n\n}";
+	}
+
+	/**
+	 * @param nonce
+	 *            The string used to create the sentinel command
+	 * @return a new matcher recognizing the sentinel line incrementally. The
+	 *         output before it ends with the line break printed by the
+	 *         sentinel command, and group 1 is the exit code. Markers not
+	 *         followed by digits, such as the echo of the sentinel command,
+	 *         are skipped
+	 */
+	public static MarkerMatcher sentinelMatcher(String nonce) {
+		return new MarkerMatcher(null, "__AMELIA_" + nonce + "_", "__",
+				EXIT_STATUS);
+	}
+
+	/**
+	 * @param value
+	 *            A string
+	 * @return the given string, single-quoted for a POSIX shell
+	 */
+	public static String quote(String value) {
+		return "'" + value.replace("'", "'\\''") + "'";
+	}
+
+	/**
+	 * @param command
+	 *            A shell command
+	 * @return the names of the variables exported by the given command, when
+	 *         it uses the form {@code export NAME=value}
+	 */
+	public static List<String> exportedVariables(String command) {
+		List<String> variables = new ArrayList<String>();
+		Matcher matcher = Pattern
+				.compile("(^|[;&|\\s])export\\s+([A-Za-z_][A-Za-z0-9_]*)=")
+				.matcher(command);
+		while (matcher.find())
+			variables.add(matcher.group(2));
+		return variables;
+	}
+
+	/**
+	 * @param workingDirectory
+	 *            The working directory, or {@code null} to keep the current
+	 *            one
+	 * @param environment
+	 *            The variables to export
+	 * @return a command restoring the given shell state
+	 */
+	public static String restoreStateCommand(String workingDirectory,
+			Map<String, String> environment) {
+		StringBuilder sb = new StringBuilder();
+		if (workingDirectory != null)
+			sb.append("cd " + quote(workingDirectory));
+		for (Map.Entry<String, String> variable : environment.entrySet()) {
+			if (sb.length() > 0)
+				sb.append(" && ");
+			sb.append("export " + variable.getKey() + "="
+					+ quote(variable.getValue()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Creates a command to run in a non-interactive (exec) channel. The
+	 * command is executed in the given shell state, and then reports the
+	 * changes to that state after a line containing only the given marker:
+	 * the working directory (only if the command changed it), and then the
+	 * given variables. The exit status of the command is preserved.
+	 * 
+	 * @param command
+	 *            The command to execute
+	 * @param workingDirectory
+	 *            The working directory, or {@code null} to use the login one
+	 * @param environment
+	 *            The variables to export before executing the command
+	 * @param variables
+	 *            The variables to report after executing the command
+	 * @param marker
+	 *            The string identifying the state lines
+	 * @return the wrapped command
+	 */
+	public static String statefulCommand(String command,
+			String workingDirectory, Map<String, String> environment,
+			List<String> variables, String marker) {
+		StringBuilder sb = new StringBuilder();
+		String state = restoreStateCommand(workingDirectory, environment);
+		if (!state.isEmpty())
+			sb.append(state + " && ");
+		sb.append("__amelia_pwd=\"$PWD\"; ");
+		sb.append(group(command) + "; ");
+		sb.append("__amelia_status=$?; ");
+		sb.append("printf '\\n%s\\n' " + quote(marker) + "; ");
+		sb.append("[ \"$PWD\" = \"$__amelia_pwd\" ] || printf '%s%s\\n' "
+				+ quote(marker + "cwd:") + " \"$PWD\"; ");
+		for (String variable : variables) {
+			sb.append("printf '%s%s=%s\\n' " + quote(marker + "env:") + " "
+					+ variable + " \"$" + variable + "\"; ");
+		}
+		sb.append("exit $__amelia_status");
+		return sb.toString();
+	}
+
+	/**
+	 * Reads the state reported by a command created with
+	 * {@link #statefulCommand(String, String, Map, List, String)}.
+	 * 
+	 * @param output
+	 *            The standard output of the command
+	 * @param marker
+	 *            The string identifying the state lines
+	 * @return the output of the command and the changes to the shell state.
+	 *         If the state was not reported (e.g., the command exited the
+	 *         shell), the output is returned as is and there are no changes
+	 */
+	public static ExecState execState(String output, String marker) {
+		Map<String, String> variables = new LinkedHashMap<String, String>();
+		// The state is reported after everything the command printed
+		int index = output.lastIndexOf("\n" + marker + "\n");
+		if (index == -1)
+			return new ExecState(output, null, variables);
+		String workingDirectory = null;
+		String cwd = marker + "cwd:";
+		String env = marker + "env:";
+		String[] lines = output.substring(index + marker.length() + 2)
+				.split("\n");
+		for (String line : lines) {
+			if (line.startsWith(cwd)) {
+				workingDirectory = line.substring(cwd.length());
+			} else if (line.startsWith(env) && line.indexOf('=') > env.length()) {
+				String variable = line.substring(env.length());
+				String name = variable.substring(0, variable.indexOf('='));
+				variables.put(name, variable.substring(name.length() + 1));
+			}
+		}
+		return new ExecState(output.substring(0, index), workingDirectory,
+				variables);
+	}
+
 	/**
 	 * TODO: Only bash, zsh, and ksh93 are supported
 	 * 
@@ -41,6 +41,33 @@ public class Strings {
 		return null;
 	}
 
+	/**
+	 * @param limit
+	 *            The maximum number of characters, or 0 for no limit
+	 * @param parts
+	 *            The strings to concatenate
+	 * @return the last characters of the concatenation of the given strings,
+	 *         without copying the characters left out
+	 */
+	public static String tail(long limit, String... parts) {
+		long length = 0;
+		for (String part : parts)
+			length += part.length();
+		long skip = limit > 0 ? Math.max(0, length - limit) : 0;
+		if (parts.length == 1 && skip == 0)
+			return parts[0];
+		StringBuilder tail = new StringBuilder((int) (length - skip));
+		for (String part : parts) {
+			if (skip >= part.length()) {
+				skip -= part.length();
+				continue;
+			}
+			tail.append(part, (int) skip, part.length());
+			skip = 0;
+		}
+		return tail.toString();
+	}
+
 	public static String ascii(int codePoint) {
 		return String.valueOf(Character.toChars(codePoint));
 	}
@@ -0,0 +1,191 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a tar archive (POSIX ustar format) to a stream, entry by entry, so
+ * that the archive is never stored as a whole. Names longer than the ustar
+ * fields allow are written as GNU long name entries.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class TarWriter {
+
+	private static final int BLOCK = 512;
+
+	/**
+	 * The largest size representable in the size field (11 octal digits)
+	 */
+	private static final long MAX_SIZE = 077777777777L;
+
+	private final OutputStream stream;
+
+	private final byte[] buffer;
+
+	/**
+	 * @param stream
+	 *            The stream to which the archive is written
+	 */
+	public TarWriter(final OutputStream stream) {
+		this.stream = stream;
+		this.buffer = new byte[65536];
+	}
+
+	/**
+	 * Adds a directory entry.
+	 * 
+	 * @param name
+	 *            The relative path of the directory, using '/' as separator
+	 * @param directory
+	 *            The local directory
+	 */
+	public void addDirectory(final String name, final File directory)
+			throws IOException {
+		String _name = name.endsWith("/") ? name : name + "/";
+		writeHeader(_name, 0755, 0, directory.lastModified(), '5');
+	}
+
+	/**
+	 * Adds a file entry with the contents of the given file.
+	 * 
+	 * @param name
+	 *            The relative path of the file, using '/' as separator
+	 * @param file
+	 *            The local file
+	 * @return the number of bytes of the file
+	 */
+	public long addFile(final String name, final File file) throws IOException {
+		long size = file.length();
+		if (size > MAX_SIZE)
+			throw new IOException("File " + file + " is too large to be archived");
+		int mode = file.canExecute() ? 0755 : 0644;
+		writeHeader(name, mode, size, file.lastModified(), '0');
+		long written = 0;
+		InputStream input = SharedFiles.open(file);
+		try {
+			int read;
+			while (written < size && (read = input.read(this.buffer, 0,
+					(int) Math.min(this.buffer.length, size - written))) != -1) {
+				this.stream.write(this.buffer, 0, read);
+				written += read;
+			}
+		} finally {
+			input.close();
+		}
+		if (written != size)
+			throw new IOException("File " + file + " changed while being archived");
+		pad(size);
+		return size;
+	}
+
+	/**
+	 * Writes the end of the archive. The underlying stream is not closed.
+	 */
+	public void finish() throws IOException {
+		this.stream.write(new byte[BLOCK * 2]);
+		this.stream.flush();
+	}
+
+	private void writeHeader(final String name, final int mode,
+			final long size, final long lastModified, final char type)
+					throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		byte[] _name = bytes;
+		byte[] prefix = new byte[0];
+		if (bytes.length > 100) {
+			int split = prefixSplit(bytes);
+			if (split == -1) {
+				// GNU long name: the name is stored as the data of an entry
+				writeHeader("././@LongLink".getBytes(StandardCharsets.UTF_8),
+						new byte[0], 0644, bytes.length + 1, 0, 'L');
+				this.stream.write(bytes);
+				this.stream.write(0);
+				pad(bytes.length + 1);
+				_name = java.util.Arrays.copyOf(bytes, 100);
+			} else {
+				prefix = java.util.Arrays.copyOfRange(bytes, 0, split);
+				_name = java.util.Arrays.copyOfRange(bytes, split + 1, bytes.length);
+			}
+		}
+		writeHeader(_name, prefix, mode, size, lastModified / 1000, type);
+	}
+
+	/**
+	 * @return the index of the '/' splitting the given name into a prefix of
+	 *         up to 155 bytes and a name of up to 100 bytes, or -1 if there
+	 *         is none
+	 */
+	private static int prefixSplit(final byte[] name) {
+		for (int i = Math.min(155, name.length - 1); i > 0; i--)
+			if (name[i] == '/' && name.length - i - 1 <= 100 && name.length - i - 1 > 0)
+				return i;
+		return -1;
+	}
+
+	private void writeHeader(final byte[] name, final byte[] prefix,
+			final int mode, final long size, final long mtime, final char type)
+					throws IOException {
+		byte[] header = new byte[BLOCK];
+		System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+		octal(header, 100, 8, mode);
+		octal(header, 108, 8, 0); // uid
+		octal(header, 116, 8, 0); // gid
+		octal(header, 124, 12, size);
+		octal(header, 136, 12, mtime);
+		header[156] = (byte) type;
+		System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII),
+				0, header, 257, 8);
+		System.arraycopy(prefix, 0, header, 345, Math.min(prefix.length, 155));
+		// The checksum is computed with the checksum field filled with spaces
+		for (int i = 148; i < 156; i++)
+			header[i] = ' ';
+		long checksum = 0;
+		for (byte b : header)
+			checksum += b & 0xff;
+		octal(header, 148, 7, checksum);
+		this.stream.write(header);
+	}
+
+	/**
+	 * Writes the given value as a zero-padded octal number, followed by NUL.
+	 */
+	private static void octal(final byte[] header, final int offset,
+			final int length, final long value) {
+		String digits = Long.toOctalString(value);
+		int width = length - 1;
+		for (int i = 0; i < width; i++) {
+			int index = digits.length() - width + i;
+			header[offset + i] = (byte) (index < 0 ? '0' : digits.charAt(index));
+		}
+		header[offset + width] = 0;
+	}
+
+	private void pad(final long size) throws IOException {
+		int remainder = (int) (size % BLOCK);
+		if (remainder > 0)
+			this.stream.write(new byte[BLOCK - remainder]);
+	}
+
+}
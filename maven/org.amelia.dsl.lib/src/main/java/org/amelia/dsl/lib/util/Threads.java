@@ -20,6 +20,8 @@ package org.amelia.dsl.lib.util;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.amelia.dsl.lib.SubsystemGraph;
 import org.apache.logging.log4j.LogManager;
@@ -41,6 +43,11 @@ public class Threads {
 	 * current deployment
 	 */
 	private final static List<String> hostNames = new ArrayList<String>();
+
+	/**
+	 * Whether the lack of support for virtual threads was already reported
+	 */
+	private static volatile boolean virtualThreadsWarned = false;
 	
 	/**
 	 * The logger
@@ -90,4 +97,72 @@ public class Threads {
 		return exceptionHandler;
 	}
 
+	/**
+	 * @return whether property {@code amelia.virtual_threads} is enabled
+	 */
+	public static boolean isVirtualThreadsEnabled() {
+		return Boolean.valueOf(System.getProperty("amelia.virtual_threads"));
+	}
+
+	/**
+	 * Creates a thread factory for Amelia's worker threads. Threads are named
+	 * after the given prefix and use the global
+	 * {@link #exceptionHandler() exception handler}. If property
+	 * {@code amelia.virtual_threads} is enabled and the running JVM supports
+	 * it, the factory creates virtual threads; otherwise, it creates platform
+	 * threads.
+	 * 
+	 * @param prefix
+	 *            The prefix of the thread names
+	 * @return a new thread factory
+	 */
+	public static ThreadFactory threadFactory(final String prefix) {
+		if (isVirtualThreadsEnabled()) {
+			ThreadFactory factory = virtualThreadFactory(prefix);
+			if (factory != null)
+				return factory;
+		}
+		return new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger(1);
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable,
+						prefix + "-" + this.counter.getAndIncrement());
+				thread.setUncaughtExceptionHandler(exceptionHandler);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Amelia targets Java 8, thus the virtual thread builder (Java 21+) is
+	 * looked up reflectively.
+	 * 
+	 * @param prefix
+	 *            The prefix of the thread names
+	 * @return a virtual thread factory, or {@code null} if the running JVM
+	 *         does not support virtual threads
+	 */
+	private static ThreadFactory virtualThreadFactory(final String prefix) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, prefix + "-", 1L);
+			builder = builderClass
+					.getMethod("uncaughtExceptionHandler",
+							Thread.UncaughtExceptionHandler.class)
+					.invoke(builder, exceptionHandler);
+			return (ThreadFactory) builderClass.getMethod("factory")
+					.invoke(builder);
+		} catch (Exception e) {
+			if (!virtualThreadsWarned) {
+				virtualThreadsWarned = true;
+				logger.warn("Virtual threads are not supported by this JVM ("
+						+ System.getProperty("java.version")
+						+ "). Execution will continue using platform threads");
+			}
+			return null;
+		}
+	}
+
 }
@@ -0,0 +1,553 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persists a session transcript in the background. Appending a chunk only
+ * queues it; a shared writer thread drains the queue and writes each batch
+ * of chunks to the file with a single write. Therefore, the thread reading
+ * the session output never waits for the disk.
+ * <p>
+ * The transcript is split into several files when it exceeds the size
+ * ({@code amelia.transcript_rotation_size}, in bytes) or the age
+ * ({@code amelia.transcript_rotation_interval}, in milliseconds) configured;
+ * 0 disables each criterion. The files are gzip-compressed if property
+ * {@code amelia.transcript_compression} is {@code true}.
+ * <p>
+ * Uncompressed transcripts can be read back by character offset (see
+ * {@link #read(long, long)}); the offset of the first character appended is
+ * 0. For that purpose, the writer records the file and byte position of a
+ * character every {@link #CHECKPOINT_INTERVAL} characters.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class TranscriptWriter implements Appendable, Closeable {
+
+	/**
+	 * The thread writing all transcripts. It terminates when idle, so it
+	 * does not keep the JVM alive; the pending chunks are drained by a
+	 * shutdown hook instead (the thread may be a daemon, e.g., a virtual
+	 * thread, or the JVM may be exited explicitly).
+	 */
+	private static final ExecutorService writer;
+
+	/**
+	 * The time to wait for the pending chunks when the JVM exits, in
+	 * milliseconds
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 10000;
+
+	/**
+	 * The transcripts with an open file. It is only accessed by the writer
+	 * thread.
+	 */
+	private static final Set<TranscriptWriter> open =
+			new HashSet<TranscriptWriter>();
+
+	static {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				Threads.threadFactory("amelia-transcript-writer"));
+		executor.allowCoreThreadTimeOut(true);
+		writer = executor;
+		Runtime.getRuntime().addShutdownHook(
+				new Thread("amelia-transcript-shutdown") {
+			@Override public void run() {
+				try {
+					drain(true).get(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+				} catch (Exception e) {
+					logger.error("Cannot complete the session transcripts", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The number of characters between two consecutive checkpoints
+	 */
+	static final int CHECKPOINT_INTERVAL = 65536;
+
+	/**
+	 * The location of a character in the transcript files.
+	 */
+	private static final class Checkpoint {
+
+		/**
+		 * The offset of the character in the whole transcript
+		 */
+		private final long offset;
+
+		private final File file;
+
+		/**
+		 * The position of the character's first byte in the file
+		 */
+		private final long position;
+
+		private Checkpoint(final long offset, final File file,
+				final long position) {
+			this.offset = offset;
+			this.file = file;
+			this.position = position;
+		}
+
+	}
+
+	/**
+	 * The first file of the transcript. Subsequent files are named after it
+	 */
+	private final File file;
+
+	private final long rotationSize;
+
+	private final long rotationInterval;
+
+	private final boolean compress;
+
+	/**
+	 * The chunks appended and not written yet
+	 */
+	private final ConcurrentLinkedQueue<String> pending;
+
+	/**
+	 * Whether a write of the pending chunks is scheduled
+	 */
+	private final AtomicBoolean scheduled;
+
+	/**
+	 * The number of files created so far
+	 */
+	private int files;
+
+	/**
+	 * The current file, or {@code null} if there is no open file
+	 */
+	private FileChannel fileChannel;
+
+	/**
+	 * The path of the current file
+	 */
+	private File currentFile;
+
+	/**
+	 * The number of characters written so far, in all files
+	 */
+	private volatile long chars;
+
+	/**
+	 * Locates the characters written, in ascending order of offset. It is
+	 * empty if the transcript is compressed.
+	 */
+	private final List<Checkpoint> checkpoints;
+
+	/**
+	 * The channel in which the chunks are written (it may compress them)
+	 */
+	private WritableByteChannel sink;
+
+	private OutputStream compressor;
+
+	/**
+	 * The number of bytes written to the current file (before compression)
+	 */
+	private long written;
+
+	/**
+	 * The time in which the current file was opened
+	 */
+	private long openedAt;
+
+	private volatile boolean failed;
+
+	/**
+	 * The logger
+	 */
+	private static final Logger logger = LogManager.getLogger(TranscriptWriter.class);
+
+	/**
+	 * @param file
+	 *            The first file of the transcript
+	 */
+	public TranscriptWriter(final File file) {
+		this.file = file;
+		this.rotationSize = Long.parseLong(
+				System.getProperty("amelia.transcript_rotation_size"));
+		this.rotationInterval = Long.parseLong(
+				System.getProperty("amelia.transcript_rotation_interval"));
+		this.compress = Boolean.valueOf(
+				System.getProperty("amelia.transcript_compression"));
+		this.pending = new ConcurrentLinkedQueue<String>();
+		this.scheduled = new AtomicBoolean();
+		this.files = 0;
+		this.checkpoints = new ArrayList<Checkpoint>();
+	}
+
+	/**
+	 * Writes the pending chunks of all transcripts, waiting for the writer
+	 * thread to do it.
+	 */
+	public static void drain() throws IOException {
+		try {
+			drain(false).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Schedules the writing of the pending chunks of all transcripts. The
+	 * chunks appended so far are either scheduled already, or belong to a
+	 * transcript with an open file.
+	 * 
+	 * @param close
+	 *            Whether to close the open files as well, e.g., to complete
+	 *            compressed files before the JVM exits
+	 */
+	static Future<?> drain(final boolean close) {
+		return writer.submit(new Runnable() {
+			@Override public void run() {
+				for (TranscriptWriter transcript : new ArrayList<TranscriptWriter>(
+						open)) {
+					transcript.write();
+					if (close)
+						transcript.closeFile();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Executes the given task in the thread writing the transcripts.
+	 */
+	static void submit(final Runnable task) {
+		writer.execute(task);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Appendable#append(java.lang.CharSequence)
+	 */
+	@Override
+	public Appendable append(CharSequence csq) {
+		this.pending.add(String.valueOf(csq));
+		if (this.scheduled.compareAndSet(false, true)) {
+			writer.execute(new Runnable() {
+				@Override public void run() {
+					scheduled.set(false);
+					write();
+				}
+			});
+		}
+		return this;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Appendable#append(char)
+	 */
+	@Override
+	public Appendable append(char c) {
+		return append(String.valueOf(c));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Appendable#append(java.lang.CharSequence, int, int)
+	 */
+	@Override
+	public Appendable append(CharSequence csq, int start, int end) {
+		return append(csq.subSequence(start, end));
+	}
+
+	/**
+	 * Writes the pending chunks and closes the current file. Chunks appended
+	 * afterwards are written to a new file.
+	 */
+	@Override
+	public void close() throws IOException {
+		await(new Runnable() {
+			@Override public void run() {
+				write();
+				closeFile();
+			}
+		});
+	}
+
+	/**
+	 * Writes the pending chunks, waiting for the writer thread to do it.
+	 */
+	public void flush() throws IOException {
+		await(new Runnable() {
+			@Override public void run() {
+				write();
+			}
+		});
+	}
+
+	private void await(final Runnable task) throws IOException {
+		try {
+			writer.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return whether the text appended can be read back, i.e., the
+	 *         transcript is not compressed and no write has failed
+	 */
+	public boolean isReadable() {
+		return !this.compress && !this.failed;
+	}
+
+	/**
+	 * Reads the transcript between the given offsets. The pending chunks are
+	 * written first.
+	 * 
+	 * @param start
+	 *            The offset of the first character (inclusive)
+	 * @param end
+	 *            The offset of the last character (exclusive)
+	 * @return the text between the given offsets, or a shorter text if the
+	 *         transcript does not reach the end offset
+	 * @throws IOException
+	 *             If the transcript is not readable (see
+	 *             {@link #isReadable()}), or its files cannot be read
+	 */
+	public String read(final long start, final long end) throws IOException {
+		if (this.compress)
+			throw new IOException("Compressed transcripts cannot be read back: "
+					+ this.file);
+		flush();
+		if (this.failed)
+			throw new IOException("The session transcript " + this.file
+					+ " is incomplete");
+		List<Checkpoint> from;
+		synchronized (this.checkpoints) {
+			int low = 0;
+			int high = this.checkpoints.size() - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (this.checkpoints.get(middle).offset <= start)
+					low = middle;
+				else
+					high = middle - 1;
+			}
+			from = new ArrayList<Checkpoint>(
+					this.checkpoints.subList(low, this.checkpoints.size()));
+		}
+		long last = Math.min(end, this.chars);
+		StringBuilder text = new StringBuilder((int) Math.max(0, last - start));
+		char[] buffer = new char[8192];
+		long offset = start;
+		File previous = null;
+		for (Checkpoint checkpoint : from) {
+			if (offset >= last)
+				break;
+			// Each file is read up to its end, so only its first checkpoint
+			// matters
+			if (checkpoint.file.equals(previous))
+				continue;
+			previous = checkpoint.file;
+			FileChannel channel = FileChannel.open(checkpoint.file.toPath(),
+					StandardOpenOption.READ);
+			try {
+				channel.position(checkpoint.position);
+				Reader reader = Channels.newReader(channel,
+						StandardCharsets.UTF_8.newDecoder()
+							.onMalformedInput(CodingErrorAction.REPLACE)
+							.onUnmappableCharacter(CodingErrorAction.REPLACE),
+						-1);
+				long skip = offset - checkpoint.offset;
+				while (skip > 0) {
+					long skipped = reader.skip(skip);
+					if (skipped <= 0)
+						break;
+					skip -= skipped;
+				}
+				int read;
+				while (offset < last && (read = reader.read(buffer, 0,
+						(int) Math.min(buffer.length, last - offset))) != -1) {
+					text.append(buffer, 0, read);
+					offset += read;
+				}
+			} finally {
+				channel.close();
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Writes all pending chunks in a single batch. It is only executed by the
+	 * writer thread.
+	 */
+	private void write() {
+		List<String> chunks = new ArrayList<String>();
+		int length = 0;
+		String chunk;
+		while ((chunk = this.pending.poll()) != null) {
+			chunks.add(chunk);
+			length += chunk.length();
+		}
+		if (chunks.isEmpty() || this.failed)
+			return;
+		StringBuilder batch = new StringBuilder(length);
+		for (String c : chunks)
+			batch.append(c);
+		try {
+			// Large batches are written in parts, each one with a checkpoint
+			for (int from = 0; from < length;) {
+				int to = Math.min(length, from + CHECKPOINT_INTERVAL);
+				// Do not split a surrogate pair
+				if (to < length && Character.isHighSurrogate(batch.charAt(to - 1)))
+					to--;
+				if (this.fileChannel != null && mustRotate())
+					closeFile();
+				if (this.fileChannel == null)
+					openFile();
+				checkpoint();
+				ByteBuffer buffer = StandardCharsets.UTF_8
+						.encode(CharBuffer.wrap(batch, from, to));
+				this.written += buffer.remaining();
+				while (buffer.hasRemaining())
+					this.sink.write(buffer);
+				this.chars += to - from;
+				from = to;
+			}
+			if (this.compressor != null)
+				this.compressor.flush();
+		} catch (IOException e) {
+			// The transcript is not essential to the deployment
+			this.failed = true;
+			logger.error("Cannot write the session transcript " + this.file, e);
+			closeFile();
+		}
+	}
+
+	/**
+	 * Records the location of the next character, if it starts a file or
+	 * it is far enough from the last checkpoint.
+	 */
+	private void checkpoint() {
+		if (this.compress)
+			return;
+		synchronized (this.checkpoints) {
+			Checkpoint last = this.checkpoints.isEmpty() ? null
+					: this.checkpoints.get(this.checkpoints.size() - 1);
+			if (last == null || !last.file.equals(this.currentFile)
+					|| this.chars - last.offset >= CHECKPOINT_INTERVAL)
+				this.checkpoints.add(new Checkpoint(this.chars,
+						this.currentFile, this.written));
+		}
+	}
+
+	private boolean mustRotate() {
+		return (this.rotationSize > 0 && this.written >= this.rotationSize)
+				|| (this.rotationInterval > 0 && System.currentTimeMillis()
+						- this.openedAt >= this.rotationInterval);
+	}
+
+	private void openFile() throws IOException {
+		this.currentFile = nextFile();
+		this.fileChannel = FileChannel.open(this.currentFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		if (this.compress) {
+			// Flushing at each batch keeps the file readable while it grows
+			this.compressor = new GZIPOutputStream(
+					Channels.newOutputStream(this.fileChannel), 65536, true);
+			this.sink = Channels.newChannel(this.compressor);
+		} else {
+			this.compressor = null;
+			this.sink = this.fileChannel;
+		}
+		this.written = 0;
+		this.openedAt = System.currentTimeMillis();
+		open.add(this);
+	}
+
+	/**
+	 * @return the file following the last one created, e.g., name.txt,
+	 *         name.1.txt, name.2.txt, and so on
+	 */
+	private File nextFile() {
+		String name = this.file.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot == -1 ? name : name.substring(0, dot);
+		String extension = dot == -1 ? "" : name.substring(dot);
+		if (this.files > 0)
+			base += "." + this.files;
+		if (this.compress)
+			extension += ".gz";
+		this.files++;
+		return new File(this.file.getParentFile(), base + extension);
+	}
+
+	private void closeFile() {
+		if (this.fileChannel == null)
+			return;
+		try {
+			if (this.compressor != null)
+				this.compressor.close();
+			this.fileChannel.close();
+		} catch (IOException e) {
+			logger.error("Cannot close the session transcript " + this.file, e);
+		} finally {
+			this.fileChannel = null;
+			this.sink = null;
+			this.compressor = null;
+			open.remove(this);
+		}
+	}
+
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.amelia.dsl.lib.SSHHandler.ExecResult;
+import org.amelia.dsl.lib.descriptors.Host;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The difference between a local file/directory and its remote copy. As in
+ * rsync's quick check, a file whose size and modification time (in seconds)
+ * are the same on both sides is considered unchanged; a file whose size
+ * differs is changed. Only the files with the same size and a different
+ * modification time are compared by their SHA-256 hash. The uploads keep
+ * the local modification time, so unchanged files are not hashed again in
+ * later transfers.
+ * <p>
+ * The remote sizes and modification times are listed by a single command,
+ * and the remote hashes, if needed, by a second one. The local hashes are
+ * cached during an execution, while the size and modification time of the
+ * files do not change. Paths are relative to the transferred directory and
+ * use '/' as separator; a transferred file is represented by path ".".
+ * <p>
+ * Incremental transfers are enabled by property
+ * {@code amelia.incremental_transfers}, and require an SSH session with the
+ * host.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class TransferManifest {
+
+	/**
+	 * The path representing a transferred file
+	 */
+	public static final String FILE = ".";
+
+	/**
+	 * The maximum number of paths passed to the remote hash command; beyond
+	 * it, all of the remote files are hashed
+	 */
+	static final int MAX_HASHED_PATHS = 256;
+
+	/**
+	 * The size and modification time of a remote file
+	 */
+	static class Stat {
+
+		private final long size;
+
+		/**
+		 * The modification time, in seconds
+		 */
+		private final long modified;
+
+		public Stat(final long size, final long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+
+		private boolean hasSize(final File file) {
+			return this.size == file.length();
+		}
+
+		private boolean wasModifiedWith(final File file) {
+			return this.modified == file.lastModified() / 1000;
+		}
+	}
+
+	/**
+	 * The cached hash of a local file
+	 */
+	private static class Entry {
+
+		private final long size;
+
+		private final long lastModified;
+
+		private final String hash;
+
+		public Entry(final long size, final long lastModified,
+				final String hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * The hashes of local files, per absolute path
+	 */
+	private static final Map<String, Entry> localHashes =
+			new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * The files that are new or changed
+	 */
+	private final Set<String> changed;
+
+	/**
+	 * The remote files that do not exist locally
+	 */
+	private final Set<String> stale;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(TransferManifest.class);
+
+	private TransferManifest(final Set<String> changed,
+			final Set<String> stale) {
+		this.changed = changed;
+		this.stale = stale;
+	}
+
+	/**
+	 * @return whether property {@code amelia.incremental_transfers} is
+	 *         enabled
+	 */
+	public static boolean isEnabled() {
+		return Boolean.valueOf(
+				System.getProperty("amelia.incremental_transfers"));
+	}
+
+	/**
+	 * Compares the given local file/directory with its remote copy. It must
+	 * be called from a task executed by the host's SSH handler.
+	 * 
+	 * @param host
+	 *            The destination host
+	 * @param localPath
+	 *            The pathname of the local file/directory
+	 * @param remotePath
+	 *            The pathname of the remote file/directory
+	 * @return the differences, or {@code null} if incremental transfers are
+	 *         disabled or the remote files cannot be compared, in which case
+	 *         everything must be transferred
+	 */
+	public static TransferManifest compare(final Host host,
+			final String localPath, final String remotePath) {
+		if (!isEnabled() || host.ssh() == null)
+			return null;
+		try {
+			Map<String, File> local = local(new File(localPath));
+			// Not user commands: keep them out of the shell state and log
+			ExecResult result = host.ssh().probe(listCommand(remotePath), 0);
+			if (result.exitStatus() != 0) {
+				logger.warn("Cannot list " + remotePath + " in " + host + ": "
+						+ result.error());
+				return null;
+			}
+			Map<String, Stat> remote = parseListing(result.output());
+			Set<String> unknown = unknown(local, remote);
+			Map<String, String> remoteHashes = Collections.emptyMap();
+			if (!unknown.isEmpty()) {
+				result = host.ssh().probe(hashCommand(remotePath, unknown), 0);
+				if (result.exitStatus() != 0) {
+					logger.warn("Cannot hash the files of " + remotePath
+							+ " in " + host + ": " + result.error());
+					return null;
+				}
+				remoteHashes = parse(result.output());
+			}
+			TransferManifest manifest = compare(local, remote, remoteHashes);
+			if (manifest == null)
+				return null;
+			logger.info("Transfer of " + localPath + " to " + host + ":"
+					+ remotePath + ": " + manifest + " (" + unknown.size()
+					+ " hashed)");
+			return manifest;
+		} catch (Exception e) {
+			logger.warn("Cannot compare " + localPath + " with " + remotePath
+					+ " in " + host + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @param local
+	 *            The local files, per relative path
+	 * @param remote
+	 *            The size and modification time of each remote file, per
+	 *            relative path
+	 * @return the files whose hash must be compared, that is, the files with
+	 *         the same size and a different modification time
+	 */
+	static Set<String> unknown(final Map<String, File> local,
+			final Map<String, Stat> remote) {
+		Set<String> unknown = new LinkedHashSet<String>();
+		for (Map.Entry<String, File> file : local.entrySet()) {
+			Stat stat = remote.get(file.getKey());
+			if (stat != null && stat.hasSize(file.getValue())
+					&& !stat.wasModifiedWith(file.getValue()))
+				unknown.add(file.getKey());
+		}
+		return unknown;
+	}
+
+	/**
+	 * @param local
+	 *            The local files, per relative path
+	 * @param remote
+	 *            The size and modification time of each remote file, per
+	 *            relative path
+	 * @param remoteHashes
+	 *            The hash of (at least) the {@link #unknown(Map, Map)} remote
+	 *            files, per relative path
+	 * @return the differences, or {@code null} if a file was replaced by a
+	 *         directory or vice versa
+	 */
+	static TransferManifest compare(final Map<String, File> local,
+			final Map<String, Stat> remote,
+			final Map<String, String> remoteHashes) throws IOException {
+		boolean isFile = local.containsKey(FILE);
+		if (!remote.isEmpty() && isFile != remote.containsKey(FILE))
+			return null;
+		Set<String> changed = new LinkedHashSet<String>();
+		for (Map.Entry<String, File> file : local.entrySet()) {
+			Stat stat = remote.get(file.getKey());
+			boolean unchanged = stat != null && stat.hasSize(file.getValue())
+					&& (stat.wasModifiedWith(file.getValue())
+							|| hash(file.getValue()).equals(
+									remoteHashes.get(file.getKey())));
+			if (!unchanged)
+				changed.add(file.getKey());
+		}
+		Set<String> stale = new LinkedHashSet<String>(remote.keySet());
+		stale.removeAll(local.keySet());
+		return new TransferManifest(changed, stale);
+	}
+
+	/**
+	 * @return the files in the given file/directory, per relative path
+	 */
+	static Map<String, File> local(final File file) {
+		Map<String, File> files = new HashMap<String, File>();
+		if (file.isDirectory())
+			local(file, "", files);
+		else
+			files.put(FILE, file);
+		return files;
+	}
+
+	private static void local(final File directory, final String prefix,
+			final Map<String, File> files) {
+		File[] children = directory.listFiles();
+		if (children == null)
+			return;
+		for (File file : children) {
+			String path = prefix + file.getName();
+			if (file.isDirectory())
+				local(file, path + "/", files);
+			else
+				files.put(path, file);
+		}
+	}
+
+	/**
+	 * @return the SHA-256 hash of the given file, in hexadecimal
+	 */
+	static String hash(final File file) throws IOException {
+		String key = file.getAbsolutePath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+		Entry entry = localHashes.get(key);
+		if (entry != null && entry.size == size
+				&& entry.lastModified == lastModified)
+			return entry.hash;
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		byte[] buffer = new byte[65536];
+		InputStream stream = new FileInputStream(file);
+		try {
+			int read;
+			while ((read = stream.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		} finally {
+			stream.close();
+		}
+		StringBuilder hash = new StringBuilder();
+		for (byte b : digest.digest())
+			hash.append(String.format("%02x", b));
+		localHashes.put(key, new Entry(size, lastModified, hash.toString()));
+		return hash.toString();
+	}
+
+	/**
+	 * @return a command printing the size, modification time and relative
+	 *         path of each file in the given remote file/directory, each
+	 *         one terminated by a NUL character. Nothing is printed if it
+	 *         does not exist
+	 */
+	static String listCommand(final String remotePath) {
+		String path = ShellUtils.quote(remotePath);
+		return "if [ -d " + path + " ]; then cd " + path
+				+ " && find . -type f -printf '%s %T@ %P\\0'; "
+				+ "elif [ -f " + path + " ]; then find " + path
+				+ " -maxdepth 0 -printf '%s %T@ .\\0'; fi";
+	}
+
+	/**
+	 * @param output
+	 *            The output of {@link #listCommand(String)}
+	 * @return the size and modification time of each remote file, per
+	 *         relative path
+	 */
+	static Map<String, Stat> parseListing(final String output) {
+		Map<String, Stat> files = new HashMap<String, Stat>();
+		for (String record : output.split("\0")) {
+			// <size> <seconds>[.<fraction>] <path>
+			int first = record.indexOf(' ');
+			int second = record.indexOf(' ', first + 1);
+			if (first == -1 || second == -1)
+				continue;
+			String modified = record.substring(first + 1, second);
+			int dot = modified.indexOf('.');
+			try {
+				files.put(record.substring(second + 1), new Stat(
+						Long.parseLong(record.substring(0, first)),
+						Long.parseLong(dot == -1 ? modified
+								: modified.substring(0, dot))));
+			} catch (NumberFormatException e) {
+				logger.warn("Unexpected remote file listing: " + record);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * @param remotePath
+	 *            The pathname of the remote file/directory
+	 * @param paths
+	 *            The relative paths of the files to hash
+	 * @return a command printing the hash and relative path of the given
+	 *         files (or of all of them, if there are too many), one per
+	 *         line, in the format of sha256sum
+	 */
+	static String hashCommand(final String remotePath,
+			final Collection<String> paths) {
+		String path = ShellUtils.quote(remotePath);
+		if (paths.contains(FILE))
+			return "sha256sum < " + path + " | sed 's/ .*$/  ./'";
+		StringBuilder command = new StringBuilder("cd " + path + " && ");
+		if (paths.size() > MAX_HASHED_PATHS) {
+			command.append("find . -type f -exec sha256sum {} +");
+		} else {
+			command.append("sha256sum --");
+			for (String file : paths)
+				command.append(" " + ShellUtils.quote(file));
+		}
+		return command.toString();
+	}
+
+	/**
+	 * @param output
+	 *            The output of {@link #hashCommand(String, Collection)}
+	 * @return the hash of each remote file, per relative path
+	 */
+	static Map<String, String> parse(final String output) {
+		Map<String, String> hashes = new HashMap<String, String>();
+		for (String line : output.split("\n")) {
+			// <hash>  <path>, or \<hash>  <escaped path>
+			boolean escaped = line.startsWith("\\");
+			if (escaped)
+				line = line.substring(1);
+			int space = line.indexOf("  ");
+			if (space == -1)
+				continue;
+			String path = line.substring(space + 2);
+			if (escaped)
+				path = unescape(path);
+			if (path.startsWith("./"))
+				path = path.substring(2);
+			hashes.put(path, line.substring(0, space));
+		}
+		return hashes;
+	}
+
+	/**
+	 * Reverts the escaping of sha256sum, which is applied to the names
+	 * containing a backslash or a line break.
+	 */
+	private static String unescape(final String path) {
+		StringBuilder unescaped = new StringBuilder(path.length());
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c == '\\' && i + 1 < path.length()) {
+				char next = path.charAt(++i);
+				if (next == 'n')
+					c = '\n';
+				else if (next == 'r')
+					c = '\r';
+				else
+					c = next;
+			}
+			unescaped.append(c);
+		}
+		return unescaped.toString();
+	}
+
+	/**
+	 * Discards the cached hashes of the local files
+	 */
+	public static void clear() {
+		localHashes.clear();
+	}
+
+	/**
+	 * @param path
+	 *            A relative path
+	 * @return whether the file must be transferred
+	 */
+	public boolean isChanged(final String path) {
+		return this.changed.contains(path);
+	}
+
+	/**
+	 * @return the files that must be transferred
+	 */
+	public Set<String> changed() {
+		return this.changed;
+	}
+
+	/**
+	 * @return the remote files that do not exist locally
+	 */
+	public Set<String> stale() {
+		return this.stale;
+	}
+
+	@Override
+	public String toString() {
+		return this.changed.size() + " changed, " + this.stale.size()
+				+ " stale";
+	}
+
+}
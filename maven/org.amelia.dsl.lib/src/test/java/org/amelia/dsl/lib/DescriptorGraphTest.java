@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.util.Map;
+
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class DescriptorGraphTest {
+
+	private static CommandDescriptor command(String command,
+			CommandDescriptor... dependencies) {
+		CommandDescriptor descriptor = new CommandDescriptor.Builder()
+				.withCommand(command).build();
+		descriptor.dependsOn(dependencies);
+		return descriptor;
+	}
+
+	@Test
+	public void criticalPathLengthsOfAChain() {
+		CommandDescriptor a = command("a");
+		CommandDescriptor b = command("b", a);
+		CommandDescriptor c = command("c", b);
+		DescriptorGraph graph = new DescriptorGraph("test");
+		graph.addDescriptors(a, b, c);
+		Map<CommandDescriptor, Long> lengths = graph.criticalPathLengths();
+		Assert.assertEquals(Long.valueOf(3), lengths.get(a));
+		Assert.assertEquals(Long.valueOf(2), lengths.get(b));
+		Assert.assertEquals(Long.valueOf(1), lengths.get(c));
+	}
+
+	@Test
+	public void criticalPathLengthsFollowTheLongestBranch() {
+		// a <- b <- c <- d, and a <- e
+		CommandDescriptor a = command("a");
+		CommandDescriptor b = command("b", a);
+		CommandDescriptor c = command("c", b);
+		CommandDescriptor d = command("d", c);
+		CommandDescriptor e = command("e", a);
+		DescriptorGraph graph = new DescriptorGraph("test");
+		graph.addDescriptors(a, b, c, d, e);
+		Map<CommandDescriptor, Long> lengths = graph.criticalPathLengths();
+		Assert.assertEquals(Long.valueOf(4), lengths.get(a));
+		Assert.assertEquals(Long.valueOf(1), lengths.get(e));
+		Assert.assertTrue(lengths.get(b) > lengths.get(e));
+	}
+
+	@Test
+	public void criticalPathLengthsOfADiamond() {
+		// a <- b <- d, a <- c <- d
+		CommandDescriptor a = command("a");
+		CommandDescriptor b = command("b", a);
+		CommandDescriptor c = command("c", a);
+		CommandDescriptor d = command("d", b, c);
+		DescriptorGraph graph = new DescriptorGraph("test");
+		graph.addDescriptors(a, b, c, d);
+		Map<CommandDescriptor, Long> lengths = graph.criticalPathLengths();
+		Assert.assertEquals(Long.valueOf(3), lengths.get(a));
+		Assert.assertEquals(Long.valueOf(2), lengths.get(b));
+		Assert.assertEquals(Long.valueOf(2), lengths.get(c));
+		Assert.assertEquals(Long.valueOf(1), lengths.get(d));
+	}
+
+	@Test
+	public void criticalPathLengthsOfIndependentCommands() {
+		CommandDescriptor a = command("a");
+		CommandDescriptor b = command("b");
+		DescriptorGraph graph = new DescriptorGraph("test");
+		graph.addDescriptors(a, b);
+		Map<CommandDescriptor, Long> lengths = graph.criticalPathLengths();
+		Assert.assertEquals(2, lengths.size());
+		Assert.assertEquals(Long.valueOf(1), lengths.get(a));
+		Assert.assertEquals(Long.valueOf(1), lengths.get(b));
+	}
+
+}
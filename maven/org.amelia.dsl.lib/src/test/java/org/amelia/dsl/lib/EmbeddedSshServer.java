@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.amelia.dsl.lib.util.Configuration;
+import org.apache.sshd.common.config.keys.PublicKeyEntry;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.command.CommandFactory;
+import org.apache.sshd.server.forward.StaticDecisionForwardingFilter;
+import org.apache.sshd.server.forward.TcpForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+import org.junit.Assert;
+
+/**
+ * An SSH server embedded in the tests, running commands (through sh) and
+ * shells (bash) as local processes. It accepts user {@link #USER} with password
+ * {@link #PASSWORD}, and it is trusted through a known hosts file as both
+ * 127.0.0.1 and localhost.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class EmbeddedSshServer {
+
+	public static final String USER = "amelia";
+
+	public static final String PASSWORD = "secret";
+
+	private final SshServer server;
+
+	/**
+	 * The sessions opened and not closed yet
+	 */
+	private final List<Session> sessions;
+
+	/**
+	 * The direct-tcpip channels requested
+	 */
+	private final AtomicInteger tunnels;
+
+	private File knownHosts;
+
+	public EmbeddedSshServer() {
+		this.sessions = new CopyOnWriteArrayList<Session>();
+		this.tunnels = new AtomicInteger();
+		this.server = SshServer.setUpDefaultServer();
+		this.server.setPort(0);
+		// JSch 0.1.53 fails to verify the default (ECDSA) host key signature
+		SimpleGeneratorHostKeyProvider keyProvider = new SimpleGeneratorHostKeyProvider();
+		keyProvider.setAlgorithm("RSA");
+		this.server.setKeyPairProvider(keyProvider);
+		this.server.setPasswordAuthenticator(new PasswordAuthenticator() {
+			public boolean authenticate(String username, String password,
+					ServerSession session) {
+				return USER.equals(username) && PASSWORD.equals(password);
+			}
+		});
+		this.server.setKeyboardInteractiveAuthenticator(null);
+		this.server.setForwardingFilter(new StaticDecisionForwardingFilter(true) {
+			@Override
+			public boolean canConnect(TcpForwardingFilter.Type type,
+					SshdSocketAddress address, Session session) {
+				tunnels.incrementAndGet();
+				return super.canConnect(type, address, session);
+			}
+		});
+		this.server.setCommandFactory(new CommandFactory() {
+			public Command createCommand(ChannelSession channel,
+					String command) throws IOException {
+				return new ProcessShellFactory(command, "/bin/sh", "-c",
+						command).createShell(channel);
+			}
+		});
+		// A login shell, as reported by "echo $0". Without a terminal, the
+		// prompt goes to the standard error, so it is merged as a pty would
+		this.server.setShellFactory(new ProcessShellFactory("bash", "bash",
+				"-c", "exec -a -bash bash --noediting -i 2>&1"));
+		this.server.addSessionListener(new SessionListener() {
+			@Override
+			public void sessionCreated(Session session) {
+				sessions.add(session);
+			}
+
+			@Override
+			public void sessionClosed(Session session) {
+				sessions.remove(session);
+			}
+		});
+	}
+
+	/**
+	 * Starts the server, and sets the default configuration with the
+	 * properties necessary to connect to it
+	 */
+	public void start() throws Exception {
+		this.server.start();
+		// Trust the server's key under both names used by the tests
+		KeyPair keyPair = this.server.getKeyPairProvider().loadKeys(null)
+				.iterator().next();
+		String key = PublicKeyEntry.toString(keyPair.getPublic());
+		this.knownHosts = File.createTempFile("known_hosts", "");
+		this.knownHosts.deleteOnExit();
+		OutputStream output = new FileOutputStream(this.knownHosts);
+		try {
+			for (String name : new String[] { "127.0.0.1", "localhost" })
+				output.write(("[" + name + "]:" + port() + " " + key + "\n")
+						.getBytes("UTF-8"));
+		} finally {
+			output.close();
+		}
+		new Configuration().setProperties();
+		System.setProperty("amelia.identity", this.knownHosts + ".none");
+		System.setProperty("amelia.known_hosts", this.knownHosts.getPath());
+		System.setProperty("amelia.server_alive_interval", "0");
+		System.setProperty("amelia.jump_host", "");
+	}
+
+	public void stop() throws Exception {
+		this.server.stop(true);
+		this.knownHosts.delete();
+	}
+
+	public int port() {
+		return this.server.getPort();
+	}
+
+	/**
+	 * @return the number of direct-tcpip channels requested so far
+	 */
+	public int tunnels() {
+		return this.tunnels.get();
+	}
+
+	/**
+	 * Closes all of the open sessions, as a dropped connection would
+	 */
+	public void dropSessions() throws Exception {
+		for (Session session : new ArrayList<Session>(this.sessions))
+			session.close(true);
+		awaitOpenSessions(0);
+	}
+
+	/**
+	 * Waits until the given number of sessions are open
+	 */
+	public void awaitOpenSessions(int expected) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (this.sessions.size() != expected
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Assert.assertEquals(expected, this.sessions.size());
+	}
+
+}
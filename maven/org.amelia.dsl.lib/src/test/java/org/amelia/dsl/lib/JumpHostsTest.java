@@ -0,0 +1,224 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.amelia.dsl.lib.descriptors.Host;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Proxy;
+
+/**
+ * Tunnels sessions through a jump host, using an embedded SSH server both
+ * as the jump host and as the target host.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class JumpHostsTest {
+
+	private static final EmbeddedSshServer server = new EmbeddedSshServer();
+
+	private JumpHosts jumpHosts;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		server.start();
+	}
+
+	@AfterClass
+	public static void stopServer() throws Exception {
+		server.stop();
+		System.clearProperty("amelia.jump_host");
+	}
+
+	@Before
+	public void setUp() {
+		System.setProperty("amelia.jump_host", "");
+		this.jumpHosts = new JumpHosts();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.jumpHosts.closeAll();
+		server.awaitOpenSessions(0);
+	}
+
+	private static Host bastion() {
+		return new Host("127.0.0.1", 21, server.port(), EmbeddedSshServer.USER,
+				EmbeddedSshServer.PASSWORD);
+	}
+
+	private static Host target() {
+		return new Host("localhost", 21, server.port(), EmbeddedSshServer.USER,
+				EmbeddedSshServer.PASSWORD);
+	}
+
+	/**
+	 * Connects to the target host through the given proxy, and executes a
+	 * command there
+	 * 
+	 * @return the session
+	 */
+	private static com.jcraft.jsch.Session connect(Host target, Proxy proxy)
+			throws Exception {
+		com.jcraft.jsch.Session session = SSHHandler.newJSch().getSession(
+				target.username(), target.hostname(), target.sshPort());
+		session.setPassword(target.password());
+		session.setUserInfo(SSHHandler.newUserInfo());
+		session.setProxy(proxy);
+		session.connect(10000);
+		return session;
+	}
+
+	private static String exec(com.jcraft.jsch.Session session, String command)
+			throws Exception {
+		ChannelExec channel = (ChannelExec) session.openChannel("exec");
+		channel.setCommand(command);
+		InputStream input = channel.getInputStream();
+		channel.connect(10000);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		for (int n; (n = input.read(buffer)) != -1;)
+			output.write(buffer, 0, n);
+		channel.disconnect();
+		return output.toString("UTF-8");
+	}
+
+	@Test
+	public void jumpHostOfUsesTheHostsOwnJumpHost() {
+		Host bastion = bastion();
+		Host target = target();
+		Assert.assertNull(this.jumpHosts.jumpHostOf(target));
+		target.setJumpHost(bastion);
+		Assert.assertSame(bastion, this.jumpHosts.jumpHostOf(target));
+		// A jump host is not used to reach itself
+		bastion.setJumpHost(bastion);
+		Assert.assertNull(this.jumpHosts.jumpHostOf(bastion));
+	}
+
+	@Test
+	public void jumpHostOfUsesTheConfiguredJumpHost() {
+		System.setProperty("amelia.jump_host", "admin@bastion.example.com:2222");
+		JumpHosts jumpHosts = new JumpHosts();
+		Host jumpHost = jumpHosts.jumpHostOf(target());
+		Assert.assertEquals("admin", jumpHost.username());
+		Assert.assertEquals("bastion.example.com", jumpHost.hostname());
+		Assert.assertEquals(2222, jumpHost.sshPort());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsMalformedJumpHosts() {
+		System.setProperty("amelia.jump_host", "bastion.example.com");
+		new JumpHosts();
+	}
+
+	@Test
+	public void tunnelsSessionsThroughOneJumpHostSession() throws Exception {
+		Host bastion = bastion();
+		Host target = target();
+		int tunnelsBefore = server.tunnels();
+
+		com.jcraft.jsch.Session first = connect(target,
+				this.jumpHosts.acquire(bastion, 10000));
+		Assert.assertEquals("tunnelled\n", exec(first, "echo tunnelled"));
+		com.jcraft.jsch.Session second = connect(target,
+				this.jumpHosts.acquire(bastion, 10000));
+		Assert.assertEquals("tunnelled\n", exec(second, "echo tunnelled"));
+
+		// One session to the jump host, and one per tunnelled session
+		Assert.assertEquals(2, server.tunnels() - tunnelsBefore);
+		server.awaitOpenSessions(3);
+
+		first.disconnect();
+		this.jumpHosts.release(bastion);
+		server.awaitOpenSessions(2);
+		second.disconnect();
+		this.jumpHosts.release(bastion);
+		// The jump host session is closed with the last tunnelled session
+		server.awaitOpenSessions(0);
+	}
+
+	@Test
+	public void releasesTheJumpHostWhenItCannotConnect() throws Exception {
+		Host bastion = new Host("127.0.0.1", 21, server.port(),
+				EmbeddedSshServer.USER,
+				"wrong");
+		try {
+			this.jumpHosts.acquire(bastion, 10000);
+			Assert.fail("The authentication failure was not propagated");
+		} catch (Exception e) {
+			// expected
+		}
+		server.awaitOpenSessions(0);
+		// A later acquisition connects again
+		Host valid = bastion();
+		com.jcraft.jsch.Session session = connect(target(),
+				this.jumpHosts.acquire(valid, 10000));
+		Assert.assertEquals("ok\n", exec(session, "echo ok"));
+		session.disconnect();
+		this.jumpHosts.release(valid);
+		server.awaitOpenSessions(0);
+	}
+
+	@Test
+	public void releasesTheLostChainWhenReconnecting() throws Exception {
+		// The target is reached through two chained jump hosts
+		Host outer = bastion();
+		Host inner = new Host("localhost", 21, server.port(),
+				EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD);
+		inner.setJumpHost(outer);
+		com.jcraft.jsch.Session first = connect(target(),
+				this.jumpHosts.acquire(inner, 10000));
+		server.awaitOpenSessions(3);
+
+		server.dropSessions();
+		first.disconnect();
+		// The lost sessions are noticed a bit later
+		com.jcraft.jsch.Session second = null;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (second == null) {
+			Proxy proxy = this.jumpHosts.acquire(inner, 10000);
+			try {
+				second = connect(target(), proxy);
+			} catch (Exception e) {
+				this.jumpHosts.release(inner);
+				if (System.currentTimeMillis() > deadline)
+					throw e;
+				Thread.sleep(50);
+			}
+		}
+		Assert.assertEquals("ok\n", exec(second, "echo ok"));
+		server.awaitOpenSessions(3);
+
+		second.disconnect();
+		this.jumpHosts.release(inner);
+		this.jumpHosts.release(inner);
+		// Neither jump host session is kept open
+		server.awaitOpenSessions(0);
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.amelia.dsl.lib.SSHHandler.OutputLog;
+import org.amelia.dsl.lib.SSHHandler.OutputLog.Retention;
+import org.amelia.dsl.lib.util.Configuration;
+import org.amelia.dsl.lib.util.TranscriptWriter;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class OutputLogTest {
+
+	@BeforeClass
+	public static void configure() {
+		new Configuration().setProperties();
+	}
+
+	private static TranscriptWriter transcript() throws IOException {
+		File file = File.createTempFile("amelia-", ".txt");
+		file.deleteOnExit();
+		return new TranscriptWriter(file);
+	}
+
+	/**
+	 * Appends numbered lines of 10 characters, e.g., "line 0007\n"
+	 */
+	private static String appendLines(OutputLog log, int from, int to)
+			throws IOException {
+		StringBuilder all = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			String line = String.format("line %04d\n", i);
+			log.append(line);
+			all.append(line);
+		}
+		return all.toString();
+	}
+
+	@Test
+	public void readsRangesAcrossSegments() throws IOException {
+		OutputLog log = new OutputLog();
+		String all = appendLines(log, 0, 10);
+		Assert.assertEquals(100, log.offset());
+		Assert.assertEquals(0, log.firstOffset());
+		Assert.assertEquals(all, log.since(0).toString());
+		Assert.assertEquals(all.substring(15, 42),
+				log.range(15, 42).toString());
+		CharSequence range = log.range(15, 42);
+		Assert.assertEquals(27, range.length());
+		Assert.assertEquals(all.charAt(25), range.charAt(10));
+		Assert.assertEquals(all.substring(20, 30),
+				range.subSequence(5, 15).toString());
+		Assert.assertEquals("", log.range(42, 42).toString());
+		Assert.assertEquals("", log.since(100).toString());
+	}
+
+	@Test
+	public void sinceReturnsTheOutputOfACommand() throws IOException {
+		OutputLog log = new OutputLog();
+		appendLines(log, 0, 3);
+		long start = log.offset();
+		String output = appendLines(log, 3, 5);
+		Assert.assertEquals(output, log.since(start).toString());
+	}
+
+	@Test
+	public void viewsAreNotAffectedByLaterAppends() throws IOException {
+		OutputLog log = new OutputLog(new Retention(30), null);
+		String all = appendLines(log, 0, 3);
+		CharSequence view = log.since(0);
+		appendLines(log, 3, 20);
+		Assert.assertEquals(all, view.toString());
+	}
+
+	@Test
+	public void evictsTheOldestSegmentsBeyondTheRetention() throws IOException {
+		OutputLog log = new OutputLog(new Retention(30), null);
+		String all = appendLines(log, 0, 100);
+		Assert.assertEquals(1000, log.offset());
+		Assert.assertTrue(log.firstOffset() > 0);
+		Assert.assertTrue(log.offset() - log.firstOffset() <= 30);
+		// The evicted output is discarded
+		Assert.assertEquals(all.substring((int) log.firstOffset()),
+				log.since(0).toString());
+		Assert.assertEquals(all.substring((int) log.firstOffset()),
+				log.fetch(0, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void keepsTheMostRecentSegment() throws IOException {
+		OutputLog log = new OutputLog(new Retention(5), null);
+		appendLines(log, 0, 10);
+		Assert.assertEquals("line 0009\n", log.since(0).toString());
+	}
+
+	@Test
+	public void fetchReadsTheEvictedOutputFromTheTranscript()
+			throws IOException {
+		TranscriptWriter transcript = transcript();
+		OutputLog log = new OutputLog(new Retention(50), transcript);
+		String all = appendLines(log, 0, 20000);
+		Assert.assertTrue(log.firstOffset() > 0);
+		try {
+			Assert.assertEquals(all, log.fetch(0, Long.MAX_VALUE));
+			// Only from disk, across memory and disk, and only from memory
+			Assert.assertEquals(all.substring(123, 145678),
+					log.fetch(123, 145678));
+			int inMemory = (int) log.firstOffset();
+			Assert.assertEquals(all.substring(inMemory - 15, inMemory + 15),
+					log.fetch(inMemory - 15, inMemory + 15));
+			Assert.assertEquals(all.substring(inMemory + 1),
+					log.fetch(inMemory + 1, Long.MAX_VALUE));
+			// The log keeps evicting after being read
+			String more = appendLines(log, 20000, 21000);
+			Assert.assertEquals(all + more, log.fetch(0, Long.MAX_VALUE));
+		} finally {
+			transcript.close();
+		}
+	}
+
+	@Test
+	public void fetchReadsNonAsciiOutput() throws IOException {
+		TranscriptWriter transcript = transcript();
+		OutputLog log = new OutputLog(new Retention(8), transcript);
+		StringBuilder all = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			String text = "Jiménez ✓ " + i + "\n";
+			log.append(text);
+			all.append(text);
+		}
+		try {
+			Assert.assertEquals(all.toString(), log.fetch(0, Long.MAX_VALUE));
+		} finally {
+			transcript.close();
+		}
+	}
+
+	@Test
+	public void sharesTheRetentionOfTheSession() throws IOException {
+		Retention retention = new Retention(100);
+		OutputLog first = new OutputLog(retention, null);
+		OutputLog second = new OutputLog(retention, null);
+		appendLines(first, 0, 8);
+		appendLines(second, 0, 8);
+		// The second log evicts its own output to stay within the limit
+		Assert.assertEquals(80, first.offset() - first.firstOffset());
+		Assert.assertEquals(20, second.offset() - second.firstOffset());
+	}
+
+	@Test
+	public void echoesTheOutputToItsReplicas() throws IOException {
+		OutputLog log = new OutputLog();
+		StringBuilder replica = new StringBuilder();
+		log.echoTo(replica);
+		String all = appendLines(log, 0, 5);
+		Assert.assertEquals(all, replica.toString());
+	}
+
+	@Test
+	public void reportsThePeakMemory() throws IOException {
+		OutputLog log = new OutputLog();
+		appendLines(log, 0, 10);
+		Assert.assertTrue(OutputLog.peakMemory() >= 200);
+	}
+
+	@Test
+	public void resetsTheMemoryStatistics() throws IOException {
+		OutputLog log = new OutputLog(new Retention(30), null);
+		appendLines(log, 0, 10);
+		Assert.assertTrue(OutputLog.evictedMemory() > 0);
+		OutputLog.resetMemoryStatistics();
+		Assert.assertEquals(0, OutputLog.evictedMemory());
+		long peak = OutputLog.peakMemory();
+		// The peak starts over from the memory still retained
+		OutputLog.resetMemoryStatistics();
+		Assert.assertTrue(OutputLog.peakMemory() <= peak);
+	}
+
+}
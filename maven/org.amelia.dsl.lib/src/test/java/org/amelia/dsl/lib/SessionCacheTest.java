@@ -0,0 +1,202 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.amelia.dsl.lib.descriptors.Host;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class SessionCacheTest {
+
+	/**
+	 * A host counting its connections, without connecting
+	 */
+	private static class CountingHost extends Host {
+
+		private final AtomicInteger opened = new AtomicInteger();
+
+		private final AtomicInteger closed = new AtomicInteger();
+
+		private volatile boolean failing;
+
+		public CountingHost() {
+			super("localhost", 21, 22, "user", null);
+		}
+
+		@Override
+		public boolean openSSHConnection(String subsystem) throws Exception {
+			if (this.failing)
+				throw new IOException("Connection refused");
+			this.opened.incrementAndGet();
+			return true;
+		}
+
+		@Override
+		public boolean closeSSHConnection() throws IOException {
+			this.closed.incrementAndGet();
+			return true;
+		}
+	}
+
+	private SessionCache cache;
+
+	private SessionCache cache(long idleTimeout) {
+		System.setProperty("amelia.session_idle_timeout",
+				String.valueOf(idleTimeout));
+		this.cache = new SessionCache();
+		return this.cache;
+	}
+
+	@After
+	public void tearDown() {
+		if (this.cache != null)
+			this.cache.closeAll();
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	@Test
+	public void closesTheSessionWhenTheLastReferenceIsReleased()
+			throws Exception {
+		SessionCache cache = cache(0);
+		CountingHost host = new CountingHost();
+		cache.acquire(host, "a");
+		cache.acquire(host, "b");
+		Assert.assertTrue(cache.isShared(host));
+		cache.release(host);
+		Assert.assertFalse(cache.isShared(host));
+		Assert.assertEquals(0, host.closed.get());
+		cache.release(host);
+		Assert.assertEquals(1, host.closed.get());
+		// Releasing an unused host has no effect
+		cache.release(host);
+		Assert.assertEquals(1, host.closed.get());
+	}
+
+	@Test
+	public void closesIdleSessionsAfterTheTimeout() throws Exception {
+		SessionCache cache = cache(50);
+		CountingHost host = new CountingHost();
+		cache.acquire(host, "a");
+		cache.release(host);
+		Assert.assertEquals(0, host.closed.get());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (host.closed.get() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Assert.assertEquals(1, host.closed.get());
+	}
+
+	@Test
+	public void keepsSessionsAcquiredAgainBeforeTheTimeout() throws Exception {
+		SessionCache cache = cache(200);
+		CountingHost host = new CountingHost();
+		cache.acquire(host, "a");
+		cache.release(host);
+		cache.acquire(host, "b");
+		Thread.sleep(400);
+		Assert.assertEquals(0, host.closed.get());
+		Assert.assertEquals(2, host.opened.get());
+	}
+
+	@Test
+	public void failedAcquisitionsDoNotKeepAReference() throws Exception {
+		SessionCache cache = cache(0);
+		CountingHost host = new CountingHost();
+		cache.acquire(host, "a");
+		host.failing = true;
+		try {
+			cache.acquire(host, "b");
+			Assert.fail("The failure was not propagated");
+		} catch (IOException e) {
+			// expected
+		}
+		Assert.assertFalse(cache.isShared(host));
+		cache.release(host);
+		Assert.assertEquals(1, host.closed.get());
+	}
+
+	@Test
+	public void closeAllClosesSessionsInUse() throws Exception {
+		SessionCache cache = cache(60000);
+		CountingHost a = new CountingHost();
+		CountingHost b = new CountingHost();
+		cache.acquire(a, "a");
+		cache.acquire(b, "a");
+		cache.release(b);
+		cache.closeAll();
+		Assert.assertEquals(1, a.closed.get());
+		Assert.assertEquals(1, b.closed.get());
+		this.cache = null;
+	}
+
+	@Test
+	public void reconnectsACachedSessionThatDropped() throws Exception {
+		Assume.assumeTrue(new File("/bin/bash").canExecute());
+		EmbeddedSshServer server = new EmbeddedSshServer();
+		server.start();
+		String subsystem = "SessionCacheTest";
+		try {
+			SessionCache cache = cache(60000);
+			Host host = new Host("127.0.0.1", 21, server.port(),
+					EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD);
+			Assert.assertTrue(cache.acquire(host, subsystem));
+			SSHHandler handler = host.ssh();
+			Assert.assertEquals("first\n", handler.exec("echo first", 0).output());
+			cache.release(host);
+
+			// The session drops while it is idle in the cache
+			server.dropSessions();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (handler.isConnected() && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			Assert.assertFalse(handler.isConnected());
+
+			SSHHandler.resetReconnections();
+			Assert.assertTrue(cache.acquire(host, subsystem));
+			Assert.assertSame(handler, host.ssh());
+			Assert.assertEquals(1, SSHHandler.reconnections());
+			Assert.assertTrue(handler.isConnected());
+			Assert.assertEquals("second\n", handler.exec("echo second", 0).output());
+			cache.release(host);
+			cache.closeAll();
+			this.cache = null;
+			// The lost session was not kept open
+			server.awaitOpenSessions(0);
+		} finally {
+			server.stop();
+			delete(new File("sessions" + File.separator + subsystem));
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the dispatch latency of {@link SingleThreadTaskQueue}, that is,
+ * the time from queueing a trivial task until its result is returned to the
+ * caller, and compares it with the previous dispatching scheme: a thread
+ * polling the queue every 10 ms and running each task in a second
+ * single-thread executor.
+ * <p>
+ * Run it as a plain Java application, e.g., with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.amelia.dsl.lib.SingleThreadTaskQueueBenchmark}.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class SingleThreadTaskQueueBenchmark {
+
+	private interface Queue {
+		<V> V execute(Callable<V> task) throws Exception;
+
+		void shutdown();
+	}
+
+	/**
+	 * The dispatching scheme replaced by the blocking hand-off
+	 */
+	private static class PollingQueue implements Queue, Runnable {
+
+		private final ExecutorService executor = Executors
+				.newSingleThreadExecutor();
+
+		private final PriorityBlockingQueue<Task<?>> queue =
+				new PriorityBlockingQueue<Task<?>>();
+
+		private volatile boolean shutdown;
+
+		private long sequence;
+
+		private class Task<V> implements Runnable, Comparable<Task<?>> {
+			private final Callable<V> callable;
+			private final CountDownLatch signal = new CountDownLatch(1);
+			private final long order;
+			private V result;
+
+			public Task(Callable<V> callable, long order) {
+				this.callable = callable;
+				this.order = order;
+			}
+
+			public int compareTo(Task<?> o) {
+				return Long.compare(this.order, o.order);
+			}
+
+			public void run() {
+				try {
+					this.result = this.callable.call();
+				} catch (Exception e) {
+					// The benchmark tasks do not fail
+				}
+				this.signal.countDown();
+			}
+		}
+
+		public PollingQueue() {
+			Thread thread = new Thread(this);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run() {
+			while (!this.shutdown) {
+				try {
+					Task<?> task = this.queue.poll(10, TimeUnit.MILLISECONDS);
+					if (task != null)
+						this.executor.submit(task).get();
+				} catch (Exception e) {
+					return;
+				}
+			}
+		}
+
+		public synchronized <V> V execute(Callable<V> callable)
+				throws Exception {
+			Task<V> task = new Task<V>(callable, this.sequence++);
+			this.queue.add(task);
+			task.signal.await();
+			return task.result;
+		}
+
+		public void shutdown() {
+			this.shutdown = true;
+			this.executor.shutdown();
+		}
+	}
+
+	private static Queue current() {
+		final SingleThreadTaskQueue queue = new SingleThreadTaskQueue();
+		queue.start();
+		return new Queue() {
+			public <V> V execute(Callable<V> task) throws Exception {
+				return queue.execute(task);
+			}
+
+			public void shutdown() {
+				queue.shutdown();
+			}
+		};
+	}
+
+	private static final Callable<String> TASK = new Callable<String>() {
+		public String call() throws Exception {
+			return "";
+		}
+	};
+
+	/**
+	 * @return the dispatch latency of each task, in nanoseconds
+	 */
+	private static long[] measure(Queue queue, int tasks) throws Exception {
+		long[] latencies = new long[tasks];
+		for (int i = 0; i < tasks; i++) {
+			long start = System.nanoTime();
+			queue.execute(TASK);
+			latencies[i] = System.nanoTime() - start;
+		}
+		return latencies;
+	}
+
+	private static String summary(long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long latency : sorted)
+			total += latency;
+		return String.format("mean %6.1f us, p50 %6.1f us, p99 %7.1f us",
+				total / (sorted.length * 1e3), sorted[sorted.length / 2] / 1e3,
+				sorted[(int) (sorted.length * 0.99)] / 1e3);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		Queue[] queues = { new PollingQueue(), current() };
+		String[] names = { "polling + executor", "blocking hand-off" };
+		for (int i = 0; i < queues.length; i++) {
+			measure(queues[i], tasks); // warm up
+			long[] latencies = measure(queues[i], tasks);
+			System.out.println(String.format("%-20s %s", names[i],
+					summary(latencies)));
+			queues[i].shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class SingleThreadTaskQueueTest {
+
+	private SingleThreadTaskQueue queue;
+
+	@Before
+	public void setUp() {
+		this.queue = new SingleThreadTaskQueue();
+		this.queue.start();
+	}
+
+	@After
+	public void tearDown() {
+		this.queue.shutdown();
+	}
+
+	@Test
+	public void returnsTheResultOfTheTask() throws Exception {
+		String result = this.queue.execute(new Callable<String>() {
+			public String call() throws Exception {
+				return "done";
+			}
+		});
+		Assert.assertEquals("done", result);
+	}
+
+	@Test
+	public void propagatesFailuresAndKeepsDispatching() throws Exception {
+		try {
+			this.queue.execute(new Callable<String>() {
+				public String call() throws Exception {
+					throw new IOException("broken pipe");
+				}
+			});
+			Assert.fail("The failure was not propagated");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+			Assert.assertEquals("broken pipe", e.getCause().getMessage());
+		}
+		Integer result = this.queue.execute(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return 1;
+			}
+		});
+		Assert.assertEquals(Integer.valueOf(1), result);
+	}
+
+	@Test
+	public void runsHigherPriorityFirstAndEqualPriorityInArrivalOrder()
+			throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final List<String> order = Collections
+				.synchronizedList(new ArrayList<String>());
+		// Keep the dispatching thread busy while the other tasks are queued
+		Thread blocker = submit(new Callable<String>() {
+			public String call() throws Exception {
+				blocked.await();
+				return null;
+			}
+		}, 0);
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(blocker);
+		String[] names = { "low-1", "high", "low-2", "medium", "low-3" };
+		long[] priorities = { 1, 10, 1, 5, 1 };
+		for (int i = 0; i < names.length; i++) {
+			final String name = names[i];
+			threads.add(submit(new Callable<String>() {
+				public String call() throws Exception {
+					order.add(name);
+					return name;
+				}
+			}, priorities[i]));
+		}
+		blocked.countDown();
+		for (Thread thread : threads)
+			thread.join(5000);
+		Assert.assertEquals(Arrays.asList("high", "medium", "low-1",
+				"low-2", "low-3"), order);
+	}
+
+	@Test
+	public void cancelsPendingTasksOnShutdown() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final List<Object> results = Collections
+				.synchronizedList(new ArrayList<Object>());
+		Thread blocker = submit(new Callable<String>() {
+			public String call() throws Exception {
+				started.countDown();
+				blocked.await();
+				return null;
+			}
+		}, 0);
+		started.await();
+		Thread pending = new Thread() {
+			@Override
+			public void run() {
+				try {
+					results.add(String.valueOf(queue.execute(
+							new Callable<String>() {
+								public String call() throws Exception {
+									return "executed";
+								}
+							})));
+				} catch (Exception e) {
+					results.add(e);
+				}
+			}
+		};
+		pending.start();
+		awaitWaiting(pending);
+		this.queue.shutdown();
+		pending.join(5000);
+		blocked.countDown();
+		blocker.join(5000);
+		Assert.assertEquals(Collections.singletonList("null"), results);
+		Assert.assertNull(this.queue.execute(new Callable<String>() {
+			public String call() throws Exception {
+				return "executed";
+			}
+		}));
+	}
+
+	/**
+	 * Executes the given task from a new thread, and waits until the task is
+	 * queued (i.e., the thread waits for the result).
+	 */
+	private Thread submit(final Callable<String> task, final long priority)
+			throws InterruptedException {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.execute(task, priority);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+		awaitWaiting(thread);
+		return thread;
+	}
+
+	private static void awaitWaiting(Thread thread) throws InterruptedException {
+		while (thread.getState() != Thread.State.WAITING
+				&& thread.getState() != Thread.State.TERMINATED)
+			Thread.sleep(1);
+	}
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import net.sf.expectit.Expect;
+import net.sf.expectit.ExpectBuilder;
+import net.sf.expectit.Result;
+import net.sf.expectit.matcher.Matchers;
+
+/**
+ * Measures the CPU time spent by the calling thread waiting for the end of
+ * a command, per MB of remote output, through a real {@link Expect}. Expect
+ * copies its whole buffer into a new string and hands it to the matcher
+ * every time a chunk of output arrives, so the cost of a matcher that only
+ * scans the new characters is still quadratic unless the buffer is
+ * consumed. The output is expected with: the prompt regular expression
+ * used before (nested quantifiers), the sentinel matcher through
+ * {@code expect.expect} (the buffer is copied as a whole), and the sentinel
+ * matcher through {@link MarkerMatcher#expect(Expect, MarkerMatcher, long)}
+ * (the buffer is drained). Only the last one should stay constant per MB.
+ * <p>
+ * Run it as a plain Java application, e.g., with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.amelia.dsl.lib.util.MarkerMatcherBenchmark}.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class MarkerMatcherBenchmark {
+
+	/**
+	 * The prompt regular expression replaced by the marker matcher
+	 */
+	private static final String PREVIOUS_REGEXP = "\\[Amelia "
+			+ "(\\d+){4}-(\\d+){2}-(\\d+){2} (\\d+){2}:(\\d+){2}:(\\d+){2} "
+			+ "([a-z_][a-z0-9_]{0,30})@([a-zA-Z0-9-\\.]{0,24}):"
+			+ "((\\/)?([^\\/ ]+(\\/)?)+|\\/)\\]\\$ ";
+
+	private static final String NONCE = "3fa9c2d1";
+
+	/**
+	 * The prompt before the nonce was added to it
+	 */
+	private static final String PREVIOUS_PROMPT = "[Amelia 2015-09-28 "
+			+ "18:54:34 user@grid0:/opt/app/releases/current]$ ";
+
+	private static final String SENTINEL = "\n__AMELIA_" + NONCE + "_0__\n";
+
+	private interface Operation {
+		Result expect(Expect expect) throws IOException;
+	}
+
+	/**
+	 * Output resembling a package installation or a build
+	 */
+	private static byte[] output(int bytes, String end) {
+		StringBuilder sb = new StringBuilder(bytes + end.length());
+		for (int i = 0; sb.length() < bytes; i++) {
+			sb.append("Get:" + i + " http://archive.ubuntu.com/ubuntu focal/main"
+					+ " amd64 libexample" + i + " amd64 1.2." + i + " [" + i
+					+ " kB]\r\n");
+			sb.append("Unpacking libexample" + i + " (1.2." + i + ") over "
+					+ "/var/cache/apt/archives/libexample" + i + ".deb ...\r\n");
+		}
+		sb.setLength(bytes);
+		return sb.append(end).toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Serves the output and then blocks, as an open session does
+	 */
+	private static class SessionInputStream extends InputStream {
+
+		private final byte[] output;
+		private int position;
+
+		private SessionInputStream(byte[] output) {
+			this.output = output;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len)
+				throws IOException {
+			if (this.position == this.output.length) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return -1;
+			}
+			int n = Math.min(len, this.output.length - this.position);
+			System.arraycopy(this.output, this.position, b, off, n);
+			this.position += n;
+			return n;
+		}
+	}
+
+	/**
+	 * @return the CPU time (in nanoseconds) spent by the calling thread
+	 */
+	private static long measure(Operation operation, byte[] output)
+			throws IOException {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Expect expect = new ExpectBuilder()
+				.withInputs(new SessionInputStream(output))
+				.withOutput(new ByteArrayOutputStream())
+				.withTimeout(10, TimeUnit.MINUTES)
+				.withExceptionOnFailure()
+				.build();
+		try {
+			long start = bean.getCurrentThreadCpuTime();
+			operation.expect(expect);
+			return bean.getCurrentThreadCpuTime() - start;
+		} finally {
+			expect.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 1, 2, 4 };
+		String[] names = { "previous regexp", "marker matcher",
+				"draining matcher" };
+		Operation[] operations = { new Operation() {
+			public Result expect(Expect expect) throws IOException {
+				return expect.expect(Matchers.regexp(
+						Pattern.compile(PREVIOUS_REGEXP)));
+			}
+		}, new Operation() {
+			public Result expect(Expect expect) throws IOException {
+				return expect.expect(ShellUtils.sentinelMatcher(NONCE));
+			}
+		}, new Operation() {
+			public Result expect(Expect expect) throws IOException {
+				return MarkerMatcher.expect(expect,
+						ShellUtils.sentinelMatcher(NONCE), -1);
+			}
+		} };
+		String[] ends = { PREVIOUS_PROMPT, SENTINEL, SENTINEL };
+		// Warm up
+		for (int i = 0; i < operations.length; i++) {
+			byte[] small = output(256 * 1024, ends[i]);
+			for (int j = 0; j < 5; j++)
+				measure(operations[i], small);
+		}
+		System.out.println("CPU ms per MB of output, end to end");
+		for (int size : sizes) {
+			StringBuilder line = new StringBuilder(size + " MB:");
+			for (int i = 0; i < operations.length; i++) {
+				byte[] output = output(size * 1024 * 1024, ends[i]);
+				long cpu = measure(operations[i], output);
+				line.append(String.format("  %s %9.2f", names[i],
+						cpu / 1e6 / size));
+			}
+			System.out.println(line);
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import net.sf.expectit.Expect;
+import net.sf.expectit.ExpectBuilder;
+import net.sf.expectit.ExpectIOException;
+import net.sf.expectit.Result;
+import net.sf.expectit.matcher.Matchers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class MarkerMatcherTest {
+
+	private static final String PROMPT =
+			"[Amelia 2015-09-28 18:54:34 user@grid0:~/Desktop #3fa9c2d1]$ ";
+
+	private static final String SENTINEL_COMMAND =
+			"{ make\n\n}; printf '\\n__AMELIA_n_%d__\\n' $?\r\n";
+
+	/**
+	 * Feeds the given text to a matcher in chunks of the given size, as
+	 * expect does: the whole buffer received so far, every time.
+	 * 
+	 * @return the first successful result, or the last one
+	 */
+	private static Result feed(MarkerMatcher matcher, String text, int chunk) {
+		Result result = null;
+		for (int end = Math.min(chunk, text.length());; end = Math.min(
+				end + chunk, text.length())) {
+			result = matcher.matches(text.substring(0, end), false);
+			if (result.isSuccessful() || end == text.length())
+				return result;
+		}
+	}
+
+	@Test
+	public void matchesThePrompt() {
+		String output = "total 0\r\n" + PROMPT;
+		Result result = ShellUtils.promptMatcher("3fa9c2d1").matches(output,
+				false);
+		Assert.assertTrue(result.isSuccessful());
+		Assert.assertEquals(PROMPT, result.group());
+		Assert.assertEquals("total 0\r\n", result.getBefore());
+	}
+
+	@Test
+	public void matchesTheSentinel() {
+		String output = SENTINEL_COMMAND + "done\r\n\r\n__AMELIA_n_2__\r\n";
+		Result result = ShellUtils.sentinelMatcher("n").matches(output, false);
+		Assert.assertTrue(result.isSuccessful());
+		Assert.assertEquals("2", result.group(1));
+		Assert.assertEquals(SENTINEL_COMMAND + "done\r\n\r\n",
+				result.getBefore());
+	}
+
+	@Test
+	public void skipsSentinelsWithoutAnExitStatus() {
+		Result result = ShellUtils.sentinelMatcher("n").matches(
+				SENTINEL_COMMAND + "__AMELIA_n_x__ __AMELIA_n___", false);
+		Assert.assertFalse(result.isSuccessful());
+		Assert.assertFalse(result.canStopMatching());
+	}
+
+	@Test
+	public void doesNotMatchAnotherNonce() {
+		Assert.assertFalse(ShellUtils.promptMatcher("00000000")
+				.matches(PROMPT, false).isSuccessful());
+		Assert.assertFalse(ShellUtils.sentinelMatcher("m")
+				.matches("\n__AMELIA_n_0__\n", false).isSuccessful());
+	}
+
+	@Test
+	public void matchesSplitAcrossChunks() {
+		String output = SENTINEL_COMMAND + "line 1\nline 2\n\n__AMELIA_n_127__\n";
+		// Every chunk size splits the marker, value or terminator somewhere
+		for (int chunk = 1; chunk <= output.length(); chunk++) {
+			Result result = feed(ShellUtils.sentinelMatcher("n"), output, chunk);
+			Assert.assertTrue("chunk " + chunk, result.isSuccessful());
+			Assert.assertEquals("chunk " + chunk, "127", result.group(1));
+			Assert.assertEquals("chunk " + chunk,
+					SENTINEL_COMMAND + "line 1\nline 2\n\n", result.getBefore());
+		}
+		String prompt = "building...\n" + PROMPT;
+		for (int chunk = 1; chunk <= prompt.length(); chunk++) {
+			Result result = feed(ShellUtils.promptMatcher("3fa9c2d1"), prompt,
+					chunk);
+			Assert.assertTrue("chunk " + chunk, result.isSuccessful());
+			Assert.assertEquals("chunk " + chunk, PROMPT, result.group());
+		}
+	}
+
+	@Test
+	public void matchesWhenSplitAtEveryPosition() {
+		String output = "x\n__AMELIA_n_0__";
+		for (int i = 1; i < output.length(); i++) {
+			MarkerMatcher matcher = ShellUtils.sentinelMatcher("n");
+			Assert.assertFalse(matcher.matches(output.substring(0, i), false)
+					.isSuccessful());
+			Result result = matcher.matches(output, false);
+			Assert.assertTrue("split at " + i, result.isSuccessful());
+			Assert.assertEquals("0", result.group(1));
+		}
+	}
+
+	@Test
+	public void startsOverWhenTheBufferIsConsumed() {
+		MarkerMatcher matcher = ShellUtils.sentinelMatcher("n");
+		Assert.assertFalse(matcher.matches("a lot of output before __AMELIA_n_",
+				false).isSuccessful());
+		Result result = matcher.matches("__AMELIA_n_0__", false);
+		Assert.assertTrue(result.isSuccessful());
+		Assert.assertEquals("", result.getBefore());
+	}
+
+	@Test
+	public void canStopMatchingAtTheEndOfTheInput() {
+		Result result = ShellUtils.sentinelMatcher("n").matches("no sentinel",
+				true);
+		Assert.assertFalse(result.isSuccessful());
+		Assert.assertTrue(result.canStopMatching());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void unsuccessfulResultsHaveNoGroups() {
+		ShellUtils.sentinelMatcher("n").matches("", false).group();
+	}
+
+	/**
+	 * Long output: numbered lines of 20 characters
+	 */
+	private static String lines(int count) {
+		StringBuilder output = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			output.append(String.format("output line %07d\n", i));
+		return output.toString();
+	}
+
+	private static Expect expect(InputStream input) throws IOException {
+		return new ExpectBuilder()
+			.withInputs(input)
+			.withOutput(new ByteArrayOutputStream())
+			.withExceptionOnFailure()
+			.build();
+	}
+
+	@Test
+	public void drainsLongOutputs() throws IOException {
+		String output = SENTINEL_COMMAND + lines(50000);
+		Expect expect = expect(new ByteArrayInputStream(
+				(output + "\n__AMELIA_n_0__\nafter").getBytes("UTF-8")));
+		try {
+			Result result = MarkerMatcher.expect(expect,
+					ShellUtils.sentinelMatcher("n"), 10000);
+			Assert.assertEquals("0", result.group(1));
+			Assert.assertEquals("__AMELIA_n_0__", result.group());
+			Assert.assertEquals(output + "\n", result.getBefore());
+			// Only the matched text is consumed
+			Assert.assertEquals("\nafter",
+					expect.expect(Matchers.eof()).getBefore());
+		} finally {
+			expect.close();
+		}
+	}
+
+	@Test
+	public void reportsTheWholeOutputOnTimeout() throws IOException {
+		PipedOutputStream remote = new PipedOutputStream();
+		PipedInputStream input = new PipedInputStream(remote, 1 << 20);
+		String output = lines(10000);
+		remote.write(output.getBytes("UTF-8"));
+		Expect expect = expect(input);
+		try {
+			MarkerMatcher.expect(expect, ShellUtils.sentinelMatcher("n"), 500);
+			Assert.fail("The sentinel was not printed");
+		} catch (ExpectIOException e) {
+			Assert.assertEquals(output, e.getInputBuffer());
+		} finally {
+			expect.close();
+			remote.close();
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class SharedFilesTest {
+
+	private static final int LENGTH = 1000000;
+
+	private File file;
+
+	private byte[] content;
+
+	@Before
+	public void setUp() throws IOException {
+		System.setProperty("amelia.shared_file_buffers", "true");
+		System.setProperty("amelia.shared_file_cache", "67108864");
+		this.file = File.createTempFile("shared", ".bin");
+		this.content = new byte[LENGTH];
+		new Random(42).nextBytes(this.content);
+		write(this.content);
+		SharedFiles.clear();
+		SharedFiles.resetStatistics();
+	}
+
+	@After
+	public void tearDown() {
+		SharedFiles.clear();
+		System.clearProperty("amelia.shared_file_buffers");
+		System.clearProperty("amelia.shared_file_cache");
+		this.file.delete();
+	}
+
+	@Test
+	public void readsTheFileOnceForConcurrentUploads() throws IOException {
+		InputStream[] streams = new InputStream[3];
+		ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[3];
+		for (int i = 0; i < streams.length; i++) {
+			streams[i] = SharedFiles.open(this.file);
+			outputs[i] = new ByteArrayOutputStream();
+		}
+		// Uploads at different paces
+		readInterleaved(streams, outputs, new int[] { 1000, 7000, 65536 });
+		for (ByteArrayOutputStream output : outputs)
+			Assert.assertArrayEquals(this.content, output.toByteArray());
+		Assert.assertEquals(LENGTH, SharedFiles.readBytes());
+		Assert.assertEquals(3 * LENGTH, SharedFiles.servedBytes());
+	}
+
+	@Test
+	public void readsEvictedChunksAgain() throws IOException {
+		System.setProperty("amelia.shared_file_cache", "262144");
+		// The budget is read when the buffers are cleared
+		SharedFiles.clear();
+		// Uploads progressing together still share each chunk
+		InputStream[] streams = { SharedFiles.open(this.file),
+				SharedFiles.open(this.file) };
+		ByteArrayOutputStream[] outputs = { new ByteArrayOutputStream(),
+				new ByteArrayOutputStream() };
+		readInterleaved(streams, outputs, new int[] { 8192, 8192 });
+		Assert.assertArrayEquals(this.content, outputs[0].toByteArray());
+		Assert.assertArrayEquals(this.content, outputs[1].toByteArray());
+		Assert.assertEquals(LENGTH, SharedFiles.readBytes());
+		// An upload far behind finds its chunks evicted
+		Assert.assertArrayEquals(this.content,
+				read(SharedFiles.open(this.file)));
+		Assert.assertEquals(2 * LENGTH, SharedFiles.readBytes());
+	}
+
+	@Test
+	public void usesTheDefaultBudgetIfUnset() throws IOException {
+		System.clearProperty("amelia.shared_file_cache");
+		SharedFiles.clear();
+		Assert.assertArrayEquals(this.content,
+				read(SharedFiles.open(this.file)));
+		Assert.assertArrayEquals(this.content,
+				read(SharedFiles.open(this.file)));
+		Assert.assertEquals(LENGTH, SharedFiles.readBytes());
+	}
+
+	@Test
+	public void failsIfTheFileIsTruncatedDuringTheUpload() throws IOException {
+		InputStream stream = SharedFiles.open(this.file);
+		Assert.assertEquals(1000, stream.read(new byte[1000]));
+		RandomAccessFile truncated = new RandomAccessFile(this.file, "rw");
+		try {
+			truncated.setLength(1000);
+		} finally {
+			truncated.close();
+		}
+		try {
+			read(stream);
+			Assert.fail("The truncation was not detected");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().contains("changed"));
+		}
+	}
+
+	@Test
+	public void uploadsStartingLaterReadTheNewContents() throws IOException {
+		Assert.assertArrayEquals(this.content,
+				read(SharedFiles.open(this.file)));
+		byte[] modified = Arrays.copyOf(this.content, LENGTH / 2);
+		write(modified);
+		Assert.assertArrayEquals(modified, read(SharedFiles.open(this.file)));
+	}
+
+	@Test
+	public void readsTheFileDirectlyIfDisabled() throws IOException {
+		System.setProperty("amelia.shared_file_buffers", "false");
+		InputStream stream = SharedFiles.open(this.file);
+		Assert.assertTrue(stream instanceof FileInputStream);
+		Assert.assertArrayEquals(this.content, read(stream));
+		Assert.assertEquals(0, SharedFiles.readBytes());
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		long lastModified = this.file.lastModified();
+		OutputStream output = new FileOutputStream(this.file);
+		try {
+			output.write(bytes);
+		} finally {
+			output.close();
+		}
+		// Make the change visible despite the timestamp resolution
+		this.file.setLastModified(lastModified + 2000);
+	}
+
+	private static byte[] read(InputStream stream) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[8192];
+			for (int n; (n = stream.read(buffer)) != -1;)
+				output.write(buffer, 0, n);
+		} finally {
+			stream.close();
+		}
+		return output.toByteArray();
+	}
+
+	private static void readInterleaved(InputStream[] streams,
+			ByteArrayOutputStream[] outputs, int[] paces) throws IOException {
+		boolean[] done = new boolean[streams.length];
+		int remaining = streams.length;
+		while (remaining > 0) {
+			for (int i = 0; i < streams.length; i++) {
+				if (done[i])
+					continue;
+				byte[] buffer = new byte[paces[i]];
+				int n = streams[i].read(buffer);
+				if (n == -1) {
+					streams[i].close();
+					done[i] = true;
+					remaining--;
+				} else {
+					outputs[i].write(buffer, 0, n);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ShellUtilsTest {
+
+	private static final String MARKER = "--amelia-exec-state--";
+
+	@Test
+	public void execStateSeparatesTheOutputFromTheState() {
+		String output = "hi\n\n" + MARKER + "\n" + MARKER + "cwd:/tmp\n"
+				+ MARKER + "env:FOO=bar\n";
+		ShellUtils.ExecState state = ShellUtils.execState(output, MARKER);
+		Assert.assertEquals("hi\n", state.output());
+		Assert.assertEquals("/tmp", state.workingDirectory());
+		Assert.assertEquals(Collections.singletonMap("FOO", "bar"),
+				state.variables());
+	}
+
+	@Test
+	public void execStateWithoutChanges() {
+		String output = "hi\n\n" + MARKER + "\n";
+		ShellUtils.ExecState state = ShellUtils.execState(output, MARKER);
+		Assert.assertEquals("hi\n", state.output());
+		Assert.assertNull(state.workingDirectory());
+		Assert.assertTrue(state.variables().isEmpty());
+	}
+
+	@Test
+	public void execStateWithoutStateLines() {
+		// e.g., the command exited the shell
+		ShellUtils.ExecState state = ShellUtils.execState("bye\n", MARKER);
+		Assert.assertEquals("bye\n", state.output());
+		Assert.assertNull(state.workingDirectory());
+		Assert.assertTrue(state.variables().isEmpty());
+	}
+
+	@Test
+	public void execStateKeepsValuesContainingEqualSigns() {
+		String output = "\n" + MARKER + "\n" + MARKER + "env:OPTS=-Da=b\n";
+		ShellUtils.ExecState state = ShellUtils.execState(output, MARKER);
+		Assert.assertEquals("", state.output());
+		Assert.assertEquals("-Da=b", state.variables().get("OPTS"));
+	}
+
+	@Test
+	public void execStateIgnoresMarkersPrintedByTheCommand() {
+		String output = MARKER + "cwd:/etc\n\n" + MARKER + "\n";
+		ShellUtils.ExecState state = ShellUtils.execState(output, MARKER);
+		Assert.assertEquals(MARKER + "cwd:/etc\n", state.output());
+		Assert.assertNull(state.workingDirectory());
+	}
+
+	@Test
+	public void statefulCommandReportsTheChangesOfTheCommand()
+			throws Exception {
+		String command = ShellUtils.statefulCommand(
+				"cd /tmp && export FOO=bar && echo hi", null,
+				Collections.<String, String> emptyMap(),
+				ShellUtils.exportedVariables("cd /tmp && export FOO=bar"),
+				MARKER);
+		ShellUtils.ExecState state = ShellUtils.execState(sh(command, 0),
+				MARKER);
+		Assert.assertEquals("hi\n", state.output());
+		Assert.assertEquals(new File("/tmp").getCanonicalPath(),
+				state.workingDirectory());
+		Assert.assertEquals(Collections.singletonMap("FOO", "bar"),
+				state.variables());
+	}
+
+	@Test
+	public void statefulCommandDoesNotReportAnUnchangedDirectory()
+			throws Exception {
+		String command = ShellUtils.statefulCommand("echo hi", null,
+				Collections.<String, String> emptyMap(),
+				Collections.<String> emptyList(), MARKER);
+		ShellUtils.ExecState state = ShellUtils.execState(sh(command, 0),
+				MARKER);
+		Assert.assertEquals("hi\n", state.output());
+		Assert.assertNull(state.workingDirectory());
+		Assert.assertTrue(state.variables().isEmpty());
+	}
+
+	@Test
+	public void statefulCommandRestoresTheGivenState() throws Exception {
+		Map<String, String> environment = new LinkedHashMap<String, String>();
+		environment.put("GREETING", "it's me");
+		String command = ShellUtils.statefulCommand(
+				"echo \"$GREETING\" && pwd", "/tmp", environment,
+				Collections.<String> emptyList(), MARKER);
+		ShellUtils.ExecState state = ShellUtils.execState(sh(command, 0),
+				MARKER);
+		Assert.assertEquals("it's me\n" + new File("/tmp").getCanonicalPath()
+				+ "\n", state.output());
+		Assert.assertNull(state.workingDirectory());
+	}
+
+	@Test
+	public void statefulCommandPreservesTheExitStatus() throws Exception {
+		String command = ShellUtils.statefulCommand("echo oops; false", null,
+				Collections.<String, String> emptyMap(),
+				Collections.<String> emptyList(), MARKER);
+		Assert.assertEquals("oops\n",
+				ShellUtils.execState(sh(command, 1), MARKER).output());
+	}
+
+	@Test
+	public void sentinelCommandReportsTheExitStatus() throws Exception {
+		Assert.assertTrue(sh(ShellUtils.sentinelCommand("echo hi", "n"), 0)
+				.endsWith("hi\n\n__AMELIA_n_0__\n"));
+		Assert.assertTrue(sh(ShellUtils.sentinelCommand("(exit 3)", "n"), 0)
+				.endsWith("\n__AMELIA_n_3__\n"));
+	}
+
+	@Test
+	public void sentinelCommandAfterATrailingComment() throws Exception {
+		Assert.assertTrue(sh(ShellUtils.sentinelCommand(
+				"echo hi # a comment", "n"), 0).endsWith("\n__AMELIA_n_0__\n"));
+	}
+
+	@Test
+	public void sentinelCommandAfterALineContinuation() throws Exception {
+		Assert.assertEquals("hi\n\n__AMELIA_n_0__\n",
+				sh(ShellUtils.sentinelCommand("echo hi \\", "n"), 0));
+	}
+
+	@Test
+	public void sentinelCommandAfterAHeredoc() throws Exception {
+		Assert.assertEquals("hi\n\n__AMELIA_n_0__\n", sh(ShellUtils
+				.sentinelCommand("cat <<EOF\nhi\nEOF", "n"), 0));
+	}
+
+	@Test
+	public void sentinelCommandAfterABackgroundCommand() throws Exception {
+		Assert.assertTrue(sh(ShellUtils.sentinelCommand("true &", "n"), 0)
+				.endsWith("\n__AMELIA_n_0__\n"));
+	}
+
+	@Test
+	public void exportedVariables() {
+		List<String> variables = ShellUtils.exportedVariables(
+				"export A=1 && cd x; export B_2=\"y\" | export=3");
+		Assert.assertEquals(Arrays.asList("A", "B_2"), variables);
+	}
+
+	/**
+	 * Runs the given command in a POSIX shell
+	 * 
+	 * @return the standard output
+	 */
+	private static String sh(String command, int expectedStatus)
+			throws Exception {
+		Assume.assumeTrue(new File("/bin/sh").canExecute());
+		Process process = new ProcessBuilder("/bin/sh", "-c", command)
+				.directory(new File("/"))
+				.start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream input = process.getInputStream();
+		byte[] buffer = new byte[1024];
+		for (int n; (n = input.read(buffer)) != -1;)
+			output.write(buffer, 0, n);
+		Assert.assertEquals(expectedStatus, process.waitFor());
+		return output.toString("UTF-8");
+	}
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class TarWriterTest {
+
+	private static final int BLOCK = 512;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		this.directory = File.createTempFile("tar", "");
+		this.directory.delete();
+		this.directory.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		delete(this.directory);
+	}
+
+	@Test
+	public void writesTheHeaderFields() throws IOException {
+		File file = write("a.txt", "hello");
+		file.setLastModified(1500000000000L);
+		byte[] archive = archive("lib/a.txt", file);
+		Assert.assertEquals("lib/a.txt", string(archive, 0, 100));
+		Assert.assertEquals(0644, octal(archive, 100, 8));
+		Assert.assertEquals(0, octal(archive, 108, 8));
+		Assert.assertEquals(5, octal(archive, 124, 12));
+		Assert.assertEquals(1500000000L, octal(archive, 136, 12));
+		Assert.assertEquals('0', archive[156]);
+		Assert.assertEquals("ustar", string(archive, 257, 6));
+		Assert.assertEquals("00", string(archive, 263, 2));
+		Assert.assertEquals("", string(archive, 345, 155));
+		assertChecksum(archive, 0);
+		Assert.assertEquals("hello", string(archive, BLOCK, 5));
+	}
+
+	@Test
+	public void padsTheDataAndEndsWithTwoEmptyBlocks() throws IOException {
+		byte[] archive = archive("a.txt", write("a.txt", "hello"));
+		// Header, one block of data and the end of the archive
+		Assert.assertEquals(4 * BLOCK, archive.length);
+		for (int i = BLOCK + 5; i < archive.length; i++)
+			Assert.assertEquals(0, archive[i]);
+		// Data that fills whole blocks is not padded
+		byte[] content = new byte[BLOCK];
+		Arrays.fill(content, (byte) 'x');
+		archive = archive("b.txt", write("b.txt", new String(content,
+				StandardCharsets.US_ASCII)));
+		Assert.assertEquals(4 * BLOCK, archive.length);
+	}
+
+	@Test
+	public void writesDirectoryEntries() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		TarWriter writer = new TarWriter(output);
+		writer.addDirectory("lib", this.directory);
+		writer.finish();
+		byte[] archive = output.toByteArray();
+		Assert.assertEquals("lib/", string(archive, 0, 100));
+		Assert.assertEquals(0755, octal(archive, 100, 8));
+		Assert.assertEquals(0, octal(archive, 124, 12));
+		Assert.assertEquals('5', archive[156]);
+		assertChecksum(archive, 0);
+		Assert.assertEquals(3 * BLOCK, archive.length);
+	}
+
+	@Test
+	public void splitsLongNamesIntoPrefixAndName() throws IOException {
+		String prefix = repeat('p', 120);
+		String name = repeat('n', 90);
+		byte[] archive = archive(prefix + "/" + name, write("a.txt", "a"));
+		Assert.assertEquals(name, string(archive, 0, 100));
+		Assert.assertEquals(prefix, string(archive, 345, 155));
+		Assert.assertEquals('0', archive[156]);
+		assertChecksum(archive, 0);
+	}
+
+	@Test
+	public void writesGnuLongNames() throws IOException {
+		// No '/' splits it into a prefix and a name that fit
+		String name = "dir/" + repeat('n', 150);
+		byte[] archive = archive(name, write("a.txt", "a"));
+		Assert.assertEquals("././@LongLink", string(archive, 0, 100));
+		Assert.assertEquals('L', archive[156]);
+		Assert.assertEquals(name.length() + 1, octal(archive, 124, 12));
+		assertChecksum(archive, 0);
+		Assert.assertEquals(name, string(archive, BLOCK, BLOCK));
+		// The entry itself follows the long name
+		Assert.assertEquals(name.substring(0, 100),
+				string(archive, 2 * BLOCK, 100));
+		Assert.assertEquals('0', archive[2 * BLOCK + 156]);
+		Assert.assertEquals(1, octal(archive, 2 * BLOCK + 124, 12));
+		assertChecksum(archive, 2 * BLOCK);
+	}
+
+	@Test
+	public void failsIfTheFileShrinks() throws IOException {
+		final File file = write("a.txt", "hello");
+		ByteArrayOutputStream output = new ByteArrayOutputStream() {
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				super.write(b, off, len);
+				// Truncate the file once its header is written
+				if (size() == BLOCK)
+					TarWriterTest.write(file, "");
+			}
+		};
+		try {
+			new TarWriter(output).addFile("a.txt", file);
+			Assert.fail("The truncation was not detected");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().contains("changed"));
+		}
+	}
+
+	@Test
+	public void extractsWithTar() throws Exception {
+		Assume.assumeTrue(new File("/bin/sh").canExecute());
+		String longName = "dir/" + repeat('n', 150);
+		String prefixed = repeat('p', 120) + "/" + repeat('n', 90);
+		File archive = new File(this.directory, "archive.tar");
+		OutputStream output = new FileOutputStream(archive);
+		try {
+			TarWriter writer = new TarWriter(output);
+			writer.addDirectory("dir", this.directory);
+			writer.addFile("dir/a.txt", write("a.txt", "hello"));
+			writer.addFile(longName, write("b.txt", "long"));
+			writer.addFile(prefixed, write("c.txt", "prefixed"));
+			writer.finish();
+		} finally {
+			output.close();
+		}
+		File target = new File(this.directory, "target");
+		target.mkdir();
+		Process process = new ProcessBuilder("/bin/sh", "-c",
+				"tar -xf ../archive.tar").directory(target).start();
+		Assume.assumeTrue(process.waitFor() != 127);
+		Assert.assertEquals(0, process.exitValue());
+		Assert.assertEquals("hello", read(new File(target, "dir/a.txt")));
+		Assert.assertEquals("long", read(new File(target, longName)));
+		Assert.assertEquals("prefixed", read(new File(target, prefixed)));
+	}
+
+	private byte[] archive(String name, File file) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		TarWriter writer = new TarWriter(output);
+		writer.addFile(name, file);
+		writer.finish();
+		return output.toByteArray();
+	}
+
+	private static void assertChecksum(byte[] archive, int offset) {
+		long sum = 0;
+		for (int i = 0; i < BLOCK; i++) {
+			boolean field = i >= 148 && i < 156;
+			sum += field ? ' ' : archive[offset + i] & 0xff;
+		}
+		Assert.assertEquals(sum, octal(archive, offset + 148, 8));
+	}
+
+	/**
+	 * @return the NUL-terminated string in the given field
+	 */
+	private static String string(byte[] archive, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && archive[end] != 0)
+			end++;
+		return new String(archive, offset, end - offset,
+				StandardCharsets.UTF_8);
+	}
+
+	private static long octal(byte[] archive, int offset, int length) {
+		return Long.parseLong(string(archive, offset, length).trim(), 8);
+	}
+
+	private static String repeat(char c, int times) {
+		char[] chars = new char[times];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private File write(String name, String content) throws IOException {
+		File file = new File(this.directory, name);
+		write(file, content);
+		return file;
+	}
+
+	private static void write(File file, String content) {
+		try {
+			OutputStream output = new FileOutputStream(file);
+			try {
+				output.write(content.getBytes(StandardCharsets.UTF_8));
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream input = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[1024];
+			for (int n; (n = input.read(buffer)) != -1;)
+				output.write(buffer, 0, n);
+		} finally {
+			input.close();
+		}
+		return output.toString("UTF-8");
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class TranscriptWriterTest {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		new Configuration().setProperties();
+		this.directory = File.createTempFile("transcript", "");
+		this.directory.delete();
+		this.directory.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		System.setProperty("amelia.transcript_rotation_size", "0");
+		System.setProperty("amelia.transcript_compression", "false");
+		for (File file : this.directory.listFiles())
+			file.delete();
+		this.directory.delete();
+	}
+
+	/**
+	 * Appends numbered lines of 10 characters, e.g., "line 0007\n"
+	 */
+	private static String appendLines(TranscriptWriter transcript, int from,
+			int to) {
+		StringBuilder all = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			String line = String.format("line %04d\n", i % 10000);
+			transcript.append(line);
+			all.append(line);
+		}
+		return all.toString();
+	}
+
+	@Test
+	public void readsAcrossCheckpoints() throws IOException {
+		TranscriptWriter transcript = new TranscriptWriter(
+				new File(this.directory, "session.txt"));
+		String all = appendLines(transcript, 0, 30000);
+		try {
+			Assert.assertEquals(all, transcript.read(0, all.length()));
+			int checkpoint = TranscriptWriter.CHECKPOINT_INTERVAL;
+			Assert.assertEquals(all.substring(checkpoint - 7, checkpoint + 7),
+					transcript.read(checkpoint - 7, checkpoint + 7));
+			Assert.assertEquals(all.substring(250000),
+					transcript.read(250000, Long.MAX_VALUE));
+		} finally {
+			transcript.close();
+		}
+	}
+
+	@Test
+	public void readsAcrossRotatedFiles() throws IOException {
+		System.setProperty("amelia.transcript_rotation_size", "1000");
+		TranscriptWriter transcript = new TranscriptWriter(
+				new File(this.directory, "session.txt"));
+		StringBuilder all = new StringBuilder();
+		try {
+			// Rotation happens between batches
+			for (int i = 0; i < 500; i += 50) {
+				all.append(appendLines(transcript, i, i + 50));
+				transcript.flush();
+			}
+			Assert.assertEquals(all.toString(),
+					transcript.read(0, all.length()));
+			Assert.assertEquals(all.substring(995, 3005),
+					transcript.read(995, 3005));
+			Assert.assertTrue(new File(this.directory, "session.1.txt").exists());
+		} finally {
+			transcript.close();
+		}
+	}
+
+	@Test
+	public void doesNotSplitNonAsciiCharacters() throws IOException {
+		TranscriptWriter transcript = new TranscriptWriter(
+				new File(this.directory, "session.txt"));
+		// A surrogate pair across the first checkpoint, and 2-byte characters
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < TranscriptWriter.CHECKPOINT_INTERVAL - 1; i++)
+			text.append('é');
+		text.append("😀 ✓ done\n");
+		transcript.append(text);
+		String all = text.toString();
+		try {
+			Assert.assertEquals(all, transcript.read(0, all.length()));
+			Assert.assertEquals(all.substring(all.length() - 10),
+					transcript.read(all.length() - 10, all.length()));
+		} finally {
+			transcript.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void cannotReadCompressedTranscripts() throws IOException {
+		System.setProperty("amelia.transcript_compression", "true");
+		TranscriptWriter transcript = new TranscriptWriter(
+				new File(this.directory, "session.txt"));
+		appendLines(transcript, 0, 10);
+		Assert.assertFalse(transcript.isReadable());
+		try {
+			transcript.read(0, 10);
+		} finally {
+			transcript.close();
+		}
+	}
+
+	private static String contents(InputStream input) throws IOException {
+		ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		try {
+			int read;
+			while ((read = input.read(buffer)) != -1)
+				contents.write(buffer, 0, read);
+		} finally {
+			input.close();
+		}
+		return contents.toString("UTF-8");
+	}
+
+	@Test
+	public void drainsAllTranscripts() throws IOException {
+		File first = new File(this.directory, "first.txt");
+		File second = new File(this.directory, "second.txt");
+		TranscriptWriter a = new TranscriptWriter(first);
+		TranscriptWriter b = new TranscriptWriter(second);
+		try {
+			String all = appendLines(a, 0, 1000);
+			appendLines(b, 0, 10);
+			a.flush();
+			// Chunks appended to a transcript with an open file
+			all += appendLines(a, 1000, 2000);
+			String other = appendLines(b, 10, 20);
+			TranscriptWriter.drain();
+			Assert.assertEquals(all, contents(new FileInputStream(first)));
+			Assert.assertTrue(contents(new FileInputStream(second))
+					.endsWith(other));
+		} finally {
+			a.close();
+			b.close();
+		}
+	}
+
+	@Test
+	public void completesCompressedFilesOnShutdown() throws Exception {
+		System.setProperty("amelia.transcript_compression", "true");
+		TranscriptWriter transcript = new TranscriptWriter(
+				new File(this.directory, "session.txt"));
+		String all = appendLines(transcript, 0, 1000);
+		TranscriptWriter.drain(true).get();
+		Assert.assertEquals(all, contents(new GZIPInputStream(
+				new FileInputStream(new File(this.directory, "session.txt.gz")))));
+	}
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class TransferManifestTest {
+
+	private static final String EMPTY_HASH =
+			"e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		this.directory = File.createTempFile("manifest", "");
+		this.directory.delete();
+		this.directory.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		delete(this.directory);
+		TransferManifest.clear();
+	}
+
+	@Test
+	public void parsesTheRemoteHashes() {
+		Map<String, String> hashes = TransferManifest.parse(
+				"abc  ./lib/a.jar\n" + "def  ./name with  spaces \n"
+						+ "sha256sum: ./secret: Permission denied\n" + "\n");
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("lib/a.jar", "abc");
+		expected.put("name with  spaces ", "def");
+		Assert.assertEquals(expected, hashes);
+	}
+
+	@Test
+	public void parsesEscapedNames() {
+		// sha256sum escapes names with a backslash or a line break
+		Map<String, String> hashes = TransferManifest.parse(
+				"\\abc  ./two\\nlines\n" + "\\def  ./back\\\\slash\n");
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("two\nlines", "abc");
+		expected.put("back\\slash", "def");
+		Assert.assertEquals(expected, hashes);
+	}
+
+	@Test
+	public void parsesTheHashOfARemoteFile() {
+		Assert.assertEquals(
+				Collections.singletonMap(TransferManifest.FILE, "abc"),
+				TransferManifest.parse("abc  .\n"));
+		Assert.assertTrue(TransferManifest.parse("").isEmpty());
+	}
+
+	@Test
+	public void parsesTheRemoteListing() {
+		Map<String, TransferManifest.Stat> files = TransferManifest
+				.parseListing("3 1700000000.1234567890 lib/a.jar\0"
+						+ "0 1700000001 two\nlines \0");
+		Assert.assertEquals(new HashSet<String>(
+				Arrays.asList("lib/a.jar", "two\nlines ")), files.keySet());
+		Assert.assertTrue(TransferManifest.parseListing("").isEmpty());
+	}
+
+	@Test
+	public void comparesSizesTimesAndHashes() throws IOException {
+		File same = write(new File(this.directory, "same"), "1");
+		File touched = write(new File(this.directory, "touched"), "2");
+		File changed = write(new File(this.directory, "changed"), "3");
+		File resized = write(new File(this.directory, "resized"), "4");
+		write(new File(this.directory, "new"), "5");
+		Map<String, TransferManifest.Stat> remote =
+				new HashMap<String, TransferManifest.Stat>();
+		remote.put("same", stat(same, 0));
+		remote.put("touched", stat(touched, 10));
+		remote.put("changed", stat(changed, 10));
+		remote.put("resized", new TransferManifest.Stat(2,
+				resized.lastModified() / 1000));
+		remote.put("stale", new TransferManifest.Stat(1, 0));
+		Map<String, File> local = TransferManifest.local(this.directory);
+		// Only the files with the same size and another time are hashed
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("touched",
+				"changed")), TransferManifest.unknown(local, remote));
+		Map<String, String> hashes = new HashMap<String, String>();
+		hashes.put("touched", TransferManifest.hash(touched));
+		hashes.put("changed", EMPTY_HASH);
+		TransferManifest manifest = TransferManifest.compare(local, remote,
+				hashes);
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("changed",
+				"resized", "new")), manifest.changed());
+		Assert.assertEquals(Collections.singleton("stale"), manifest.stale());
+		Assert.assertFalse(manifest.isChanged("same"));
+		Assert.assertFalse(manifest.isChanged("touched"));
+	}
+
+	@Test
+	public void cannotCompareAFileWithADirectory() throws IOException {
+		File file = write(new File(this.directory, "a"), "1");
+		Map<String, File> localFile = TransferManifest.local(file);
+		Map<String, File> localDirectory = TransferManifest.local(this.directory);
+		Map<String, TransferManifest.Stat> remoteFile = Collections
+				.singletonMap(TransferManifest.FILE, stat(file, 0));
+		Map<String, TransferManifest.Stat> remoteDirectory = Collections
+				.singletonMap("a", stat(file, 0));
+		Map<String, String> hashes = Collections.emptyMap();
+		Assert.assertNull(TransferManifest.compare(localFile, remoteDirectory,
+				hashes));
+		Assert.assertNull(TransferManifest.compare(localDirectory, remoteFile,
+				hashes));
+		// Nothing to compare with
+		Assert.assertEquals(localFile.keySet(), TransferManifest.compare(
+				localFile, Collections.<String, TransferManifest.Stat> emptyMap(),
+				hashes).changed());
+	}
+
+	@Test
+	public void hashesTheLocalFiles() throws IOException {
+		File empty = write(new File(this.directory, "empty"), "");
+		write(new File(this.directory, "lib/a.txt"), "a");
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("empty", "lib/a.txt")),
+				TransferManifest.local(this.directory).keySet());
+		Assert.assertEquals(EMPTY_HASH, TransferManifest.hash(empty));
+		Assert.assertEquals(Collections.singletonMap(TransferManifest.FILE,
+				empty), TransferManifest.local(empty));
+	}
+
+	@Test
+	public void rehashesModifiedFiles() throws IOException {
+		File file = write(new File(this.directory, "a.txt"), "a");
+		String before = TransferManifest.hash(file);
+		write(file, "b");
+		file.setLastModified(file.lastModified() + 2000);
+		Assert.assertNotEquals(before, TransferManifest.hash(file));
+	}
+
+	@Test
+	public void remoteCommandsMatchTheLocalFiles() throws Exception {
+		write(new File(this.directory, "empty"), "");
+		write(new File(this.directory, "lib/a.txt"), "a");
+		write(new File(this.directory, "with space.txt"), "b");
+		write(new File(this.directory, "two\nlines"), "c");
+		write(new File(this.directory, "back\\slash"), "d");
+		Map<String, File> local = TransferManifest.local(this.directory);
+		Map<String, TransferManifest.Stat> remote = TransferManifest
+				.parseListing(sh(TransferManifest.listCommand(
+						this.directory.getPath())));
+		Assert.assertEquals(local.keySet(), remote.keySet());
+		Assert.assertTrue(TransferManifest.unknown(local, remote).isEmpty());
+		Map<String, String> hashes = new HashMap<String, String>();
+		for (Map.Entry<String, File> file : local.entrySet())
+			hashes.put(file.getKey(), TransferManifest.hash(file.getValue()));
+		// Some paths, and all of them
+		Assert.assertEquals(Collections.singletonMap("two\nlines",
+				hashes.get("two\nlines")), TransferManifest.parse(sh(
+						TransferManifest.hashCommand(this.directory.getPath(),
+								Collections.singleton("two\nlines")))));
+		String[] many = new String[TransferManifest.MAX_HASHED_PATHS + 1];
+		Arrays.fill(many, "empty");
+		Assert.assertEquals(hashes, TransferManifest.parse(sh(TransferManifest
+				.hashCommand(this.directory.getPath(), Arrays.asList(many)))));
+		// A file
+		File file = new File(this.directory, "lib/a.txt");
+		Assert.assertEquals(Collections.singleton(TransferManifest.FILE),
+				TransferManifest.parseListing(sh(TransferManifest
+						.listCommand(file.getPath()))).keySet());
+		Assert.assertEquals(Collections.singletonMap(TransferManifest.FILE,
+				TransferManifest.hash(file)), TransferManifest.parse(sh(
+						TransferManifest.hashCommand(file.getPath(),
+								Collections.singleton(TransferManifest.FILE)))));
+		// Nothing is printed for missing files
+		Assert.assertEquals("", sh(TransferManifest.listCommand(
+				new File(this.directory, "missing").getPath())));
+	}
+
+	private static TransferManifest.Stat stat(File file, long skew) {
+		return new TransferManifest.Stat(file.length(),
+				file.lastModified() / 1000 + skew);
+	}
+
+	private static File write(File file, String content) throws IOException {
+		file.getParentFile().mkdirs();
+		OutputStream output = new FileOutputStream(file);
+		try {
+			output.write(content.getBytes("UTF-8"));
+		} finally {
+			output.close();
+		}
+		return file;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	private static String sh(String command) throws Exception {
+		Assume.assumeTrue(new File("/bin/sh").canExecute());
+		Assume.assumeTrue(new File("/usr/bin/sha256sum").canExecute()
+				|| new File("/bin/sha256sum").canExecute());
+		Process process = new ProcessBuilder("/bin/sh", "-c", command)
+				.start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream input = process.getInputStream();
+		byte[] buffer = new byte[1024];
+		for (int n; (n = input.read(buffer)) != -1;)
+			output.write(buffer, 0, n);
+		Assert.assertEquals(0, process.waitFor());
+		return output.toString("UTF-8");
+	}
+
+}